@@ -0,0 +1,35 @@
+package cs642.pa2.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/*
+
+    BenchmarkFiles: the scratch directory of a benchmark, created for each trial and removed with everything in it at
+    the end of the trial.
+
+*/
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static Path create_directory(String name) throws IOException {
+        return Files.createTempDirectory("pipeline-" + name + "-");
+    }
+
+    static void delete_directory(Path directory) throws IOException {
+
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
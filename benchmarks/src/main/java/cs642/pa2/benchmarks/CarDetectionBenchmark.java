@@ -0,0 +1,108 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.car_recognition.CarRecognition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    CarDetectionBenchmark: a full pass of car recognition over a synthetic bucket, reported as the time per image.
+
+    The detection parameter compares one detection at a time ("serial"), the worker pool ("concurrent") and the non
+    blocking client of the async execution mode ("async"). The label cache parameter compares a pass that has to
+    detect every image ("cold") with a pass over a bucket labelled by the previous pass ("warm"). The progress log is
+    turned off, so every pass starts at the beginning of the bucket.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CarDetectionBenchmark {
+
+    private static final int IMAGES = 500;
+
+    @Param({"serial", "concurrent", "async"})
+    public String detection;
+
+    @Param({"cold", "warm"})
+    public String labelCache;
+
+    @Param({"20ms~5ms"})
+    public String rekognitionProfile;
+
+    @Param({"5ms"})
+    public String sqsProfile;
+
+    private SyntheticCorpus corpus;
+    private FakeS3Client s3Client;
+    private FakeRekognitionClient rekognitionClient;
+    private FakeSqsClient sqsClient;
+    private Path directory;
+    private Path cacheFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        corpus = new SyntheticCorpus(IMAGES, 0.3, 0.5, 12, 0);
+        s3Client = new FakeS3Client(corpus, ServiceProfile.INSTANT, new byte[0]);
+        rekognitionClient = new FakeRekognitionClient(corpus, ServiceProfile.parse(rekognitionProfile));
+        sqsClient = new FakeSqsClient(ServiceProfile.parse(sqsProfile));
+
+        directory = BenchmarkFiles.create_directory("car-detection");
+        cacheFile = directory.resolve("label_cache.bin");
+
+        System.setProperty("car_recognition.label_cache", cacheFile.toString());
+        System.setProperty("car_recognition.progress_log", "");
+        System.setProperty("car_recognition.rekognition_tps", "0");
+        System.setProperty("car_recognition.concurrency", detection.equals("serial") ? "1" : "16");
+        System.setProperty("car_recognition.execution_mode", detection.equals("async") ? "async" : "sync");
+        System.setProperty("car_recognition.async_concurrency", "256");
+        System.setProperty("car_recognition.log_level", "info");
+
+    }
+
+    @Setup(Level.Invocation)
+    public void clear_cache() throws IOException {
+        if (labelCache.equals("cold")) {
+            Files.deleteIfExists(cacheFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        BenchmarkFiles.delete_directory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void car_recognition_pass() {
+
+        FakeRekognitionAsyncClient rekognition_async_client = null;
+        if (detection.equals("async")) {
+            rekognition_async_client = new FakeRekognitionAsyncClient(corpus, ServiceProfile.parse(rekognitionProfile));
+        }
+
+        new CarRecognition(s3Client, rekognitionClient, rekognition_async_client, sqsClient);
+    }
+
+}
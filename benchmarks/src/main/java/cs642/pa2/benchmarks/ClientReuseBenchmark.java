@@ -0,0 +1,190 @@
+package cs642.pa2.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import helloworld.DependencyFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.rekognition.model.S3Object;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    ClientReuseBenchmark: the latency of a warm invocation of the person recognition function, a detect labels
+    request and a send of its result, with the Rekognition and SQS clients built and closed by every invocation as the
+    function did at first, or shared by every invocation of the container through its DependencyFactory.
+
+    Both paths send their requests to a local HTTP stand in for Rekognition and SQS, so the difference is the building
+    of the clients, the credentials they resolve and the connections they open, rather than the time of the services.
+    The stand in speaks plain HTTP, so the TLS handshake a new client makes with the real services is left out and the
+    benchmark understates the cost of building the clients per invocation.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ClientReuseBenchmark {
+
+    private static final String QUEUE_PATH = "/000000000000/people_indexes.fifo";
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private URI endpoint;
+    private String queueUrl;
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        serverThreads = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", ClientReuseBenchmark::answer);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        endpoint = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+        queueUrl = endpoint + QUEUE_PATH;
+
+        // Note: the credentials are resolved from the system properties, the first place the default credentials
+        // provider looks, so neither path waits on a lookup that cannot succeed outside of AWS.
+        System.setProperty("aws.accessKeyId", "local");
+        System.setProperty("aws.secretAccessKey", "local");
+        System.setProperty("person_recognition.rekognition.endpoint", endpoint.toString());
+        System.setProperty("person_recognition.sqs.endpoint", endpoint.toString());
+        System.setProperty("person_recognition.sqs.region", Region.US_WEST_2.id());
+
+    }
+
+    @TearDown(Level.Trial)
+    public void tear_down() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public SendMessageResponse client_per_invocation() {
+
+        RekognitionClient rekognition_client = RekognitionClient.builder().region(Region.US_EAST_1).endpointOverride(endpoint).build();
+        SqsClient sqs_client = SqsClient.builder().region(Region.US_WEST_2).endpointOverride(endpoint).build();
+        try {
+            return invoke(rekognition_client, sqs_client);
+        } finally {
+            rekognition_client.close();
+            sqs_client.close();
+        }
+
+    }
+
+    @Benchmark
+    public SendMessageResponse shared_clients() {
+        return invoke(DependencyFactory.rekognitionClient(), DependencyFactory.sqsClient());
+    }
+
+    private SendMessageResponse invoke(RekognitionClient rekognition_client, SqsClient sqs_client) {
+
+        String image = "image-" + (invocation++) + ".jpg";
+        DetectLabelsRequest labels_request = DetectLabelsRequest.builder().image(Image.builder().s3Object(S3Object.builder().bucket("local-bucket").name(image).build()).build()).build();
+        DetectLabelsResponse labels_response = rekognition_client.detectLabels(labels_request);
+
+        String message_body = image + "\t" + labels_response.labels().get(0).name();
+        SendMessageRequest message_request = SendMessageRequest.builder().queueUrl(queueUrl).messageBody(message_body).messageDeduplicationId("people_indexes:" + image).messageGroupId("people_indexes").build();
+        return sqs_client.sendMessage(message_request);
+
+    }
+
+    /*
+
+        answer: this function answers a request of the stand in. Rekognition requests name their operation in the
+        X-Amz-Target header and get a JSON answer, while SQS requests are form encoded and get the XML answer of a
+        send, with the MD5 of the message body the SQS client checks.
+
+    */
+    private static void answer(HttpExchange exchange) throws IOException {
+
+        String request_body = read_body(exchange.getRequestBody());
+        byte[] response;
+        if (exchange.getRequestHeaders().getFirst("X-Amz-Target") != null) {
+            response = "{\"Labels\":[{\"Name\":\"Person\",\"Confidence\":98.5}],\"LabelModelVersion\":\"3.0\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.1");
+        } else {
+            String message_body = form_value(request_body, "MessageBody");
+            response = ("<SendMessageResponse xmlns=\"http://queue.amazonaws.com/doc/2012-11-05/\"><SendMessageResult><MessageId>" + UUID.randomUUID() + "</MessageId><MD5OfMessageBody>" + md5(message_body) + "</MD5OfMessageBody></SendMessageResult><ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata></SendMessageResponse>").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        }
+
+        exchange.getResponseHeaders().set("x-amzn-RequestId", UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+        }
+
+    }
+
+    private static String read_body(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read; (read = input.read(buffer)) > 0; ) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String form_value(String form, String name) throws UnsupportedEncodingException {
+        for (String pair : form.split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return "";
+    }
+
+    private static String md5(String value) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte digest_byte : MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", digest_byte));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.DetectTextRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.ThrottlingException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+
+    FakeRekognitionAsyncClient: the non blocking form of FakeRekognitionClient. A request returns at once and its
+    future is completed by a single timer thread once the latency of the profile has passed, so no thread is held while
+    a request is in flight, as with the Netty client of the async execution mode.
+
+*/
+public class FakeRekognitionAsyncClient implements RekognitionAsyncClient {
+
+    private final FakeRekognitionClient answers;
+    private final ScheduledExecutorService timer;
+
+    public FakeRekognitionAsyncClient(SyntheticCorpus corpus, ServiceProfile profile) {
+        this.answers = new FakeRekognitionClient(corpus, profile);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-rekognition-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public long calls() {
+        return answers.calls();
+    }
+
+    @Override
+    public CompletableFuture<DetectLabelsResponse> detectLabels(DetectLabelsRequest labels_request) {
+        return complete_later(() -> answers.labels_response(labels_request));
+    }
+
+    @Override
+    public CompletableFuture<DetectTextResponse> detectText(DetectTextRequest text_request) {
+        return complete_later(() -> answers.text_response(text_request));
+    }
+
+    @Override
+    public String serviceName() {
+        return "rekognition";
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> complete_later(Supplier<T> response) {
+
+        answers.count_call();
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        timer.schedule(() -> {
+            ThrottlingException throttled = answers.throttled();
+            if (throttled != null) {
+                future.completeExceptionally(throttled);
+            } else {
+                future.complete(response.get());
+            }
+        }, answers.profile().delay_nanos(), TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+}
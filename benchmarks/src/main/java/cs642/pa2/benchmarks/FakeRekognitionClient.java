@@ -0,0 +1,108 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.DetectTextRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectTextResponse;
+import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.rekognition.model.ThrottlingException;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    FakeRekognitionClient: a Rekognition client that answers detect labels and detect text requests from a synthetic
+    corpus in the same process. Each request holds the calling thread for the latency of the profile, and the share
+    of failed requests of the profile are throttled, as Rekognition does once the TPS limit of the account is passed.
+    A image sent as bytes rather than a S3 reference is answered as the first image of the corpus.
+
+*/
+public class FakeRekognitionClient implements RekognitionClient {
+
+    private final SyntheticCorpus corpus;
+    private final ServiceProfile profile;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public FakeRekognitionClient(SyntheticCorpus corpus, ServiceProfile profile) {
+        this.corpus = corpus;
+        this.profile = profile;
+    }
+
+    public long calls() {
+        return calls.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    @Override
+    public DetectLabelsResponse detectLabels(DetectLabelsRequest labels_request) {
+        calls.increment();
+        profile.await();
+        check_throttled();
+        return labels_response(labels_request);
+    }
+
+    @Override
+    public DetectTextResponse detectText(DetectTextRequest text_request) {
+        calls.increment();
+        profile.await();
+        check_throttled();
+        return text_response(text_request);
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    DetectLabelsResponse labels_response(DetectLabelsRequest labels_request) {
+        return DetectLabelsResponse.builder().labels(corpus.labels(image_key(labels_request.image()))).labelModelVersion("3.0").build();
+    }
+
+    DetectTextResponse text_response(DetectTextRequest text_request) {
+        return DetectTextResponse.builder().textDetections(corpus.text(image_key(text_request.image()))).textModelVersion("3.0").build();
+    }
+
+    /*
+
+        throttled: this function returns the failure of a throttled request, or null when the request goes through.
+
+    */
+    ThrottlingException throttled() {
+
+        if (!profile.fails()) {
+            return null;
+        }
+        failures.increment();
+        return ThrottlingException.builder().statusCode(400).message("Rate exceeded").build();
+    }
+
+    ServiceProfile profile() {
+        return profile;
+    }
+
+    void count_call() {
+        calls.increment();
+    }
+
+    private void check_throttled() {
+        ThrottlingException throttled = throttled();
+        if (throttled != null) {
+            throw throttled;
+        }
+    }
+
+    private String image_key(Image image) {
+        return image.s3Object() != null ? image.s3Object().name() : corpus.key(0);
+    }
+
+}
@@ -0,0 +1,129 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    FakeS3Client: a S3 client that answers from a synthetic corpus in the same process. Listing walks the keys of the
+    corpus a page at a time, with continuation tokens and the start after key, as ListObjectsV2 does. Every object has
+    the same content, the image bytes passed in, so the bytes image mode can be measured on a image of a known size.
+
+    Each call waits for the latency of the profile. Listing never fails, as a failed listing ends the whole run, while
+    the share of failed calls of the profile is applied to HeadObject and GetObject.
+
+*/
+public class FakeS3Client implements S3Client {
+
+    private final SyntheticCorpus corpus;
+    private final ServiceProfile profile;
+    private final byte[] imageBytes;
+
+    private final LongAdder calls = new LongAdder();
+
+    public FakeS3Client(SyntheticCorpus corpus, ServiceProfile profile, byte[] imageBytes) {
+        this.corpus = corpus;
+        this.profile = profile;
+        this.imageBytes = imageBytes;
+    }
+
+    public long calls() {
+        return calls.sum();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request list_request) {
+
+        call(false);
+
+        int max_keys = list_request.maxKeys() == null ? 1000 : list_request.maxKeys();
+        int first = 0;
+        if (list_request.continuationToken() != null) {
+            first = Integer.parseInt(list_request.continuationToken());
+        } else if (list_request.startAfter() != null) {
+            first = first_after(list_request.startAfter());
+        }
+
+        int last = Math.min(corpus.imageCount(), first + max_keys);
+        List<S3Object> contents = new ArrayList<S3Object>(last - first);
+        for (int image_index = first; image_index < last; image_index++) {
+            String key = corpus.key(image_index);
+            contents.add(S3Object.builder().key(key).eTag(corpus.eTag(key)).size((long) imageBytes.length).build());
+        }
+
+        ListObjectsV2Response.Builder list_response = ListObjectsV2Response.builder().contents(contents).keyCount(contents.size()).isTruncated(last < corpus.imageCount());
+        if (last < corpus.imageCount()) {
+            list_response.nextContinuationToken(String.valueOf(last));
+        }
+        return list_response.build();
+    }
+
+    // Note: the interface only declares the paginator, so it is built over listObjectsV2 as the SDK client does.
+    @Override
+    public ListObjectsV2Iterable listObjectsV2Paginator(ListObjectsV2Request list_request) {
+        return new ListObjectsV2Iterable(this, list_request);
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest head_request) {
+        call(true);
+        return HeadObjectResponse.builder().eTag(corpus.eTag(head_request.key())).contentLength((long) imageBytes.length).build();
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest object_request) {
+        call(true);
+        GetObjectResponse object_response = GetObjectResponse.builder().eTag(corpus.eTag(object_request.key())).contentLength((long) imageBytes.length).build();
+        return new ResponseInputStream<GetObjectResponse>(object_response, AbortableInputStream.create(new ByteArrayInputStream(imageBytes)));
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void call(boolean may_fail) {
+
+        calls.increment();
+        profile.await();
+        if (may_fail && profile.fails()) {
+            throw (S3Exception) S3Exception.builder().statusCode(503).message("Slow Down").build();
+        }
+    }
+
+    // Note: keys are padded image numbers, so the first key after a key is found by a binary search of the numbers.
+    private int first_after(String start_after) {
+
+        int low = 0;
+        int high = corpus.imageCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (corpus.key(middle).compareTo(start_after) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
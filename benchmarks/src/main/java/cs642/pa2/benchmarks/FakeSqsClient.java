@@ -0,0 +1,83 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    FakeSqsClient: a SQS client that accepts every message sent to it and only counts them, for measuring the stages
+    that send to a queue. Each request waits for the latency of the profile, and the share of failed calls of the
+    profile is applied to each entry of a batch, which SQS reports as a failed entry of a successful request rather than
+    as a failed request.
+
+*/
+public class FakeSqsClient implements SqsClient {
+
+    private final ServiceProfile profile;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    public FakeSqsClient(ServiceProfile profile) {
+        this.profile = profile;
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long messages() {
+        return messages.sum();
+    }
+
+    @Override
+    public SendMessageResponse sendMessage(SendMessageRequest message_request) {
+
+        requests.increment();
+        profile.await();
+        messages.increment();
+        return SendMessageResponse.builder().messageId(String.valueOf(nextMessageId.incrementAndGet())).build();
+    }
+
+    @Override
+    public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest batch_request) {
+
+        requests.increment();
+        profile.await();
+
+        List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+        List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+        for (SendMessageBatchRequestEntry entry : batch_request.entries()) {
+            if (profile.fails()) {
+                failed.add(BatchResultErrorEntry.builder().id(entry.id()).senderFault(false).code("InternalError").message("Injected failure").build());
+            } else {
+                messages.increment();
+                successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId(String.valueOf(nextMessageId.incrementAndGet())).build());
+            }
+        }
+
+        return SendMessageBatchResponse.builder().successful(successful).failed(failed).build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,90 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.pipeline_common.ImagePreprocessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.rekognition.model.Image;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    ImagePreprocessorBenchmark: the time to fetch a camera sized JPEG from the fake S3 client and prepare it for the
+    bytes image mode, scaled down or cropped to the set dimension.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ImagePreprocessorBenchmark {
+
+    @Param({"4000x3000"})
+    public String sourceSize;
+
+    @Param({"1024", "1920"})
+    public int maxDimension;
+
+    @Param({"scale", "crop"})
+    public String resize;
+
+    private ImagePreprocessor imagePreprocessor;
+    private String imageKey;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        String[] size = sourceSize.split("x");
+        SyntheticCorpus corpus = new SyntheticCorpus(1, 1.0, 0.0, 0, 0);
+        FakeS3Client s3_client = new FakeS3Client(corpus, ServiceProfile.INSTANT, jpeg(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+
+        imagePreprocessor = ImagePreprocessor.create(s3_client, "bytes", maxDimension, resize, 1);
+        imageKey = corpus.key(0);
+
+    }
+
+    @Benchmark
+    public Image prepare_image() {
+        return imagePreprocessor.image("benchmark", imageKey);
+    }
+
+    // Note: a gradient with noise over it, so the JPEG is about the size of a photo rather than of a flat image.
+    private static byte[] jpeg(int width, int height) throws IOException {
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, width, height, Color.ORANGE));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+
+        Random random = new Random(1);
+        for (int index = 0; index < width * height / 4; index++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt());
+        }
+
+        ByteArrayOutputStream jpeg_bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", jpeg_bytes);
+        return jpeg_bytes.toByteArray();
+    }
+
+}
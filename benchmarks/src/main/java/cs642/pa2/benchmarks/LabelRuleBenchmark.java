@@ -0,0 +1,92 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.pipeline_common.LabelRuleEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.rekognition.model.Label;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    LabelRuleBenchmark: the time to decide a image from its labels, with a scan for "Car" above 90% as it was at
+    first, and with the label rule engine for the default car and person rules and for a larger set of rules, which
+    still costs one lookup per label.
+
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LabelRuleBenchmark {
+
+    private static final int IMAGES = 256;
+
+    @Param({"10", "40"})
+    public int otherLabels;
+
+    private List<List<Label>> labels;
+    private LabelRuleEngine defaultRules;
+    private LabelRuleEngine manyRules;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        SyntheticCorpus corpus = new SyntheticCorpus(IMAGES, 0.5, 0.5, otherLabels, 0);
+        labels = new ArrayList<List<Label>>(IMAGES);
+        for (int index = 0; index < IMAGES; index++) {
+            labels.add(corpus.labels(corpus.key(index)));
+        }
+
+        List<LabelRuleEngine.LabelRule> default_rules = new ArrayList<LabelRuleEngine.LabelRule>();
+        default_rules.addAll(LabelRuleEngine.parse_rules("Car>90", true));
+        default_rules.addAll(LabelRuleEngine.parse_rules("Person>90", false));
+        defaultRules = new LabelRuleEngine(default_rules);
+
+        manyRules = new LabelRuleEngine(LabelRuleEngine.parse_rules("Car>90,Person>90,Truck>80,Bus>80,Bicycle>75,Motorcycle>75,Dog>70,Traffic Light>85,Sign>60,Text>60", false));
+
+    }
+
+    private List<Label> next_labels() {
+        next = (next + 1) & (IMAGES - 1);
+        return labels.get(next);
+    }
+
+    @Benchmark
+    public boolean label_scan() {
+
+        for (Label label : next_labels()) {
+            if (label.name().equals("Car") && label.confidence() > 90.0F) {
+                return true;
+            }
+        }
+        return false;
+
+    }
+
+    @Benchmark
+    public LabelRuleEngine.Result default_rules() {
+        return defaultRules.evaluate(next_labels());
+    }
+
+    @Benchmark
+    public LabelRuleEngine.Result many_rules() {
+        return manyRules.evaluate(next_labels());
+    }
+
+}
@@ -0,0 +1,99 @@
+package cs642.pa2.benchmarks;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+
+    LocalContext: the Lambda context of a invocation run in the same process. The log of the function is printed when
+    verbose, and dropped otherwise, as the function logs a line for every invocation.
+
+*/
+public class LocalContext implements Context {
+
+    private final String functionName;
+    private final String requestId;
+    private final int memoryLimitMb;
+    private final long deadline;
+    private final LambdaLogger logger;
+
+    public LocalContext(String functionName, String requestId, int memoryLimitMb, int timeoutSeconds, boolean verbose) {
+        this.functionName = functionName;
+        this.requestId = requestId;
+        this.memoryLimitMb = memoryLimitMb;
+        this.deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        this.logger = new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                if (verbose) {
+                    System.out.println(functionName + " " + message);
+                }
+            }
+
+            @Override
+            public void log(byte[] message) {
+                log(new String(message, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/" + functionName;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "local";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:local:000000000000:function:" + functionName;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return memoryLimitMb;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return logger;
+    }
+
+}
@@ -0,0 +1,148 @@
+package cs642.pa2.benchmarks;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+
+    LocalEventSource: the SQS event source of a Lambda function, run in the same process. Each poller stands for one
+    container of the function with its own handler, and long polls the queue for batches of records. A batch is passed
+    to the handler as a SQS event, then the records it did not report as batch item failures are deleted, and the
+    failed records are made visible again so they are delivered to the next poll, as SQS does once their visibility
+    timeout runs out. A handler that throws fails the whole batch.
+
+    The queue only delivers one batch of a message group at a time, so as with Lambda on a FIFO queue, the number of
+    containers at work is bounded by the number of message groups.
+
+*/
+public class LocalEventSource implements AutoCloseable {
+
+    private static final int POLL_WAIT_SECONDS = 1;
+
+    private final SqsClient sqsClient;
+    private final String queueURL;
+    private final int batchSize;
+    private final List<Thread> pollers = new ArrayList<Thread>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong nextRequestId = new AtomicLong();
+
+    private final LongAdder invocations = new LongAdder();
+    private final LongAdder failedRecords = new LongAdder();
+    private final LongAdder failedInvocations = new LongAdder();
+
+    public LocalEventSource(SqsClient sqsClient, String queueURL, int batchSize) {
+        this.sqsClient = sqsClient;
+        this.queueURL = queueURL;
+        this.batchSize = batchSize;
+    }
+
+    /*
+
+        start: this function starts the passed in number of containers, each with a handler of its own from the passed
+        in supplier.
+
+    */
+    public void start(int containers, Supplier<RequestHandler<SQSEvent, SQSBatchResponse>> handlers, String function_name, boolean verbose) {
+
+        for (int container = 0; container < containers; container++) {
+            RequestHandler<SQSEvent, SQSBatchResponse> handler = handlers.get();
+            Thread poller = new Thread(() -> poll(handler, function_name, verbose), function_name + "-" + container);
+            poller.setDaemon(true);
+            pollers.add(poller);
+            poller.start();
+        }
+    }
+
+    public String statistics() {
+        return "Invocations: " + invocations.sum() + " Failed Invocations: " + failedInvocations.sum() + " Failed Records: " + failedRecords.sum();
+    }
+
+    /*
+
+        close: this function stops the containers once their invocation in flight has returned.
+
+    */
+    @Override
+    public void close() throws InterruptedException {
+        running.set(false);
+        for (Thread poller : pollers) {
+            poller.join();
+        }
+    }
+
+    private void poll(RequestHandler<SQSEvent, SQSBatchResponse> handler, String function_name, boolean verbose) {
+
+        ReceiveMessageRequest receive_request = ReceiveMessageRequest.builder().queueUrl(queueURL).maxNumberOfMessages(batchSize).waitTimeSeconds(POLL_WAIT_SECONDS).attributeNamesWithStrings("All").build();
+
+        while (running.get()) {
+
+            List<Message> messages = sqsClient.receiveMessage(receive_request).messages();
+            if (messages.isEmpty()) {
+                continue;
+            }
+
+            List<SQSEvent.SQSMessage> records = new ArrayList<SQSEvent.SQSMessage>(messages.size());
+            for (Message message : messages) {
+                SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+                record.setMessageId(message.messageId());
+                record.setReceiptHandle(message.receiptHandle());
+                record.setBody(message.body());
+                record.setAttributes(message.attributesAsStrings());
+                record.setEventSource("aws:sqs");
+                record.setEventSourceArn(queueURL);
+                records.add(record);
+            }
+            SQSEvent event = new SQSEvent();
+            event.setRecords(records);
+
+            Set<String> failed_ids = new HashSet<String>();
+            invocations.increment();
+            try {
+                SQSBatchResponse batch_response = handler.handleRequest(event, new LocalContext(function_name, String.valueOf(nextRequestId.incrementAndGet()), 512, 20, verbose));
+                if (batch_response != null && batch_response.getBatchItemFailures() != null) {
+                    for (SQSBatchResponse.BatchItemFailure failure : batch_response.getBatchItemFailures()) {
+                        failed_ids.add(failure.getItemIdentifier());
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println(function_name + " Invocation Failed: " + e);
+                failedInvocations.increment();
+                for (Message message : messages) {
+                    failed_ids.add(message.messageId());
+                }
+            }
+            failedRecords.add(failed_ids.size());
+
+            List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<DeleteMessageBatchRequestEntry>();
+            for (Message message : messages) {
+                if (failed_ids.contains(message.messageId())) {
+                    sqsClient.changeMessageVisibility(ChangeMessageVisibilityRequest.builder().queueUrl(queueURL).receiptHandle(message.receiptHandle()).visibilityTimeout(0).build());
+                } else {
+                    deletes.add(DeleteMessageBatchRequestEntry.builder().id(String.valueOf(deletes.size())).receiptHandle(message.receiptHandle()).build());
+                }
+            }
+            if (!deletes.isEmpty()) {
+                sqsClient.deleteMessageBatch(DeleteMessageBatchRequest.builder().queueUrl(queueURL).entries(deletes).build());
+            }
+
+        }
+
+    }
+
+}
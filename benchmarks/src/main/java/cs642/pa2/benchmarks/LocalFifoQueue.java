@@ -0,0 +1,352 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+
+    LocalFifoQueue: a SQS FIFO queue held in memory, for running the whole pipeline in one process. It keeps the
+    parts of the FIFO semantics the stages rely on:
+
+        1. Messages are delivered in the order they were sent within their message group, and a group with a message
+        in flight is not delivered again until that message is deleted or becomes visible again, so only one
+        consumer works on a group at a time while other consumers take the other groups.
+
+        2. A message sent with the deduplication id of a message sent in the last 5 minutes is accepted but not
+        queued again.
+
+        3. A received message that is not deleted within the visibility timeout is delivered again, in its place at
+        the front of its group, as is a message whose visibility timeout is set to zero.
+
+    Unlike SQS, the queue holds a bounded number of messages, and a send waits while the queue is full, so a fast stage
+    is held back by the stage after it rather than building a backlog the size of the bucket.
+
+*/
+public class LocalFifoQueue {
+
+    private static final long DEDUPLICATION_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final String url;
+    private final int capacity;
+    private final long visibilityTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition messagesVisible = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+
+    // Note: the visible messages of each group by sequence number, with the groups in the order they are served in,
+    // and the messages in flight by receipt handle along with the number in flight in each group.
+    private final LinkedHashMap<String, TreeMap<Long, Entry>> groups = new LinkedHashMap<String, TreeMap<Long, Entry>>();
+    private final Map<String, Entry> inFlight = new HashMap<String, Entry>();
+    private final Map<String, Integer> inFlightGroups = new HashMap<String, Integer>();
+    private final LinkedHashMap<String, Deduplication> deduplications = new LinkedHashMap<String, Deduplication>();
+    private int size;
+    private long sequence;
+    private long receipts;
+
+    private final List<Consumer<String>> deleteListeners = new ArrayList<Consumer<String>>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private int maxSize;
+
+    public LocalFifoQueue(String url, int capacity, int visibilityTimeoutSeconds) {
+        this.url = url;
+        this.capacity = Math.max(1, capacity);
+        this.visibilityTimeoutNanos = TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds);
+    }
+
+    public String url() {
+        return url;
+    }
+
+    // Note: listeners are called with the body of every deleted message, on the thread that deleted it.
+    public void on_delete(Consumer<String> listener) {
+        deleteListeners.add(listener);
+    }
+
+    /*
+
+        send: this function adds a message to the end of its group and returns its message id, waiting while the queue
+        is full. A duplicate is not added and the message id of the first message is returned.
+
+    */
+    public String send(String body, String deduplication_id, String message_group_id) throws InterruptedException {
+
+        if (deduplication_id == null || message_group_id == null) {
+            throw new IllegalArgumentException("A FIFO queue needs a message group id and deduplication id: " + url);
+        }
+
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity) {
+                spaceAvailable.await();
+            }
+
+            long now = System.nanoTime();
+            expire_deduplications(now);
+            Deduplication deduplication = deduplications.get(deduplication_id);
+            if (deduplication != null) {
+                duplicates.increment();
+                return deduplication.messageId;
+            }
+
+            Entry entry = new Entry(url.hashCode() + "-" + (++sequence), body, message_group_id, deduplication_id, sequence);
+            deduplications.put(deduplication_id, new Deduplication(entry.messageId, now + DEDUPLICATION_INTERVAL_NANOS));
+            groups.computeIfAbsent(message_group_id, group -> new TreeMap<Long, Entry>()).put(entry.sequence, entry);
+            size++;
+            maxSize = Math.max(maxSize, size);
+            sent.increment();
+            messagesVisible.signalAll();
+            return entry.messageId;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /*
+
+        receive: this function returns up to the passed in number of messages, waiting up to the passed in time when
+        none are visible. Messages are taken from the front of each group that has none in flight, a group at a time,
+        and a group that was served is moved behind the others so every group gets its turn.
+
+    */
+    public List<Message> receive(int max_messages, long wait_nanos, boolean with_attributes) throws InterruptedException {
+
+        List<Message> messages = new ArrayList<Message>();
+        long deadline = System.nanoTime() + wait_nanos;
+
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+
+                long now = System.nanoTime();
+                long next_expiry = expire_in_flight(now);
+
+                // Note: a served group that still has visible messages after a full batch goes behind the others,
+                // while a group left empty is dropped until a message is sent to it or made visible in it again.
+                List<Map.Entry<String, TreeMap<Long, Entry>>> served_groups = new ArrayList<Map.Entry<String, TreeMap<Long, Entry>>>();
+                Iterator<Map.Entry<String, TreeMap<Long, Entry>>> group_iterator = groups.entrySet().iterator();
+                while (messages.size() < max_messages && group_iterator.hasNext()) {
+
+                    Map.Entry<String, TreeMap<Long, Entry>> group = group_iterator.next();
+                    if (inFlightGroups.containsKey(group.getKey())) {
+                        continue;
+                    }
+
+                    while (messages.size() < max_messages && !group.getValue().isEmpty()) {
+                        messages.add(deliver(group.getValue().pollFirstEntry().getValue(), now, with_attributes));
+                    }
+                    group_iterator.remove();
+                    served_groups.add(group);
+                }
+
+                for (Map.Entry<String, TreeMap<Long, Entry>> served_group : served_groups) {
+                    if (!served_group.getValue().isEmpty()) {
+                        groups.put(served_group.getKey(), served_group.getValue());
+                    }
+                }
+
+                long remaining = deadline - now;
+                if (!messages.isEmpty() || remaining <= 0) {
+                    return messages;
+                }
+                messagesVisible.awaitNanos(Math.min(remaining, next_expiry - now));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /*
+
+        delete: this function removes a message in flight from the queue, and returns false when the receipt handle is
+        not of a message in flight, such as one whose visibility timeout ran out.
+
+    */
+    public boolean delete(String receipt_handle) {
+
+        String body;
+        lock.lock();
+        try {
+            Entry entry = inFlight.remove(receipt_handle);
+            if (entry == null) {
+                return false;
+            }
+            release_group(entry.groupId);
+            size--;
+            deleted.increment();
+            spaceAvailable.signalAll();
+            messagesVisible.signalAll();
+            body = entry.body;
+        } finally {
+            lock.unlock();
+        }
+
+        for (Consumer<String> listener : deleteListeners) {
+            listener.accept(body);
+        }
+        return true;
+
+    }
+
+    /*
+
+        change_visibility: this function sets when a message in flight is delivered again. A timeout of zero makes the
+        message visible at once, as Lambda does for the records of a batch reported as failures once their own timeout
+        runs out.
+
+    */
+    public boolean change_visibility(String receipt_handle, int visibility_timeout_seconds) {
+
+        lock.lock();
+        try {
+            Entry entry = inFlight.get(receipt_handle);
+            if (entry == null) {
+                return false;
+            }
+            if (visibility_timeout_seconds > 0) {
+                entry.visibleAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibility_timeout_seconds);
+                return true;
+            }
+            inFlight.remove(receipt_handle);
+            make_visible(entry);
+            messagesVisible.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String statistics() {
+        lock.lock();
+        try {
+            return url + " Sent: " + sent.sum() + " Duplicates: " + duplicates.sum() + " Received: " + received.sum() + " Redelivered: " + redelivered.sum() + " Deleted: " + deleted.sum() + " Max Depth: " + maxSize + " Depth: " + size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message deliver(Entry entry, long now, boolean with_attributes) {
+
+        String receipt_handle = entry.messageId + ":" + (++receipts);
+        entry.visibleAt = now + visibilityTimeoutNanos;
+        entry.receiveCount++;
+        inFlight.put(receipt_handle, entry);
+        inFlightGroups.merge(entry.groupId, 1, Integer::sum);
+        received.increment();
+        if (entry.receiveCount > 1) {
+            redelivered.increment();
+        }
+
+        Message.Builder message = Message.builder().messageId(entry.messageId).receiptHandle(receipt_handle).body(entry.body);
+        if (with_attributes) {
+            Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("MessageGroupId", entry.groupId);
+            attributes.put("MessageDeduplicationId", entry.deduplicationId);
+            attributes.put("SequenceNumber", String.valueOf(entry.sequence));
+            attributes.put("ApproximateReceiveCount", String.valueOf(entry.receiveCount));
+            message.attributesWithStrings(attributes);
+        }
+        return message.build();
+    }
+
+    // Note: returns when the next message in flight runs out of its visibility timeout.
+    private long expire_in_flight(long now) {
+
+        long next_expiry = now + visibilityTimeoutNanos;
+        Iterator<Entry> entries = inFlight.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.visibleAt - now <= 0) {
+                entries.remove();
+                make_visible(entry);
+            } else if (entry.visibleAt - next_expiry < 0) {
+                next_expiry = entry.visibleAt;
+            }
+        }
+        return next_expiry;
+    }
+
+    // Note: the messages in flight of a group are always ahead of its visible messages, so a message made visible
+    // again goes back in its place at the front of its group.
+    private void make_visible(Entry entry) {
+        release_group(entry.groupId);
+        TreeMap<Long, Entry> group = groups.get(entry.groupId);
+        if (group == null) {
+            group = new TreeMap<Long, Entry>();
+            groups.put(entry.groupId, group);
+        }
+        group.put(entry.sequence, entry);
+    }
+
+    private void release_group(String group_id) {
+        inFlightGroups.computeIfPresent(group_id, (group, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private void expire_deduplications(long now) {
+        Iterator<Deduplication> iterator = deduplications.values().iterator();
+        while (iterator.hasNext() && iterator.next().expires - now <= 0) {
+            iterator.remove();
+        }
+    }
+
+    private static final class Entry {
+
+        private final String messageId;
+        private final String body;
+        private final String groupId;
+        private final String deduplicationId;
+        private final long sequence;
+        private long visibleAt;
+        private int receiveCount;
+
+        private Entry(String messageId, String body, String groupId, String deduplicationId, long sequence) {
+            this.messageId = messageId;
+            this.body = body;
+            this.groupId = groupId;
+            this.deduplicationId = deduplicationId;
+            this.sequence = sequence;
+        }
+
+    }
+
+    private static final class Deduplication {
+
+        private final String messageId;
+        private final long expires;
+
+        private Deduplication(String messageId, long expires) {
+            this.messageId = messageId;
+            this.expires = expires;
+        }
+
+    }
+
+}
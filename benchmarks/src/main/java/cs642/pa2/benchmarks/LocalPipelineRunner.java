@@ -0,0 +1,423 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.car_recognition.CarRecognition;
+import cs642.pa2.pipeline_common.PipelineConfig;
+import cs642.pa2.pipeline_common.PipelineMetrics;
+import cs642.pa2.text_extraction.TextExtraction;
+import helloworld.App;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/*
+
+    LocalPipelineRunner: runs the whole pipeline in one process as a load test. Car recognition lists a synthetic
+    bucket and sends to a local car indexes queue, person recognition is invoked by a local event source on batches of
+    that queue and sends to a local people indexes queue, and text extraction reads that queue and writes the output
+    file. S3 and Rekognition are the fake clients of the benchmarks, and the queues are bounded local FIFO queues, so a
+    run needs no AWS account and gives the same answers every time.
+
+    Car recognition can be run as several producers, each a instance of its own with the same shard count and its
+    own shard index, label cache and SQS client, as separate machines would be run against a large bucket.
+
+    At the end of the run the keys of the output file are checked against the images of the corpus that hold both a
+    car and a person, so a image that is missing, written twice or not expected fails the run, and the throughput of
+    the run and the end to end latency of each written image are reported.
+    The latency of a image runs from its first detect labels request in car recognition to the delete of its message
+    from the people indexes queue, which text extraction only sends once the text of the image has been written.
+
+    Options are passed as name=value arguments, such as:
+
+        java -cp benchmarks.jar cs642.pa2.benchmarks.LocalPipelineRunner images=20000 message_groups=8 containers=8
+
+        java -cp benchmarks.jar cs642.pa2.benchmarks.LocalPipelineRunner images=20000 producers=4
+
+*/
+public final class LocalPipelineRunner {
+
+    private static final String BUCKET_NAME = "local-bucket";
+    private static final String CAR_QUEUE_URL = "local://car_indexes.fifo";
+    private static final String PEOPLE_QUEUE_URL = "local://people_indexes.fifo";
+
+    private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULT_OPTIONS.put("images", "10000");
+        DEFAULT_OPTIONS.put("car_rate", "0.3");
+        DEFAULT_OPTIONS.put("person_rate", "0.5");
+        DEFAULT_OPTIONS.put("other_labels", "12");
+        DEFAULT_OPTIONS.put("text_lines", "3");
+        DEFAULT_OPTIONS.put("s3", "2ms~1ms");
+        DEFAULT_OPTIONS.put("rekognition", "20ms~5ms");
+        DEFAULT_OPTIONS.put("sqs", "5ms~2ms");
+        DEFAULT_OPTIONS.put("rekognition_tps", "0");
+        DEFAULT_OPTIONS.put("execution_mode", "sync");
+        DEFAULT_OPTIONS.put("concurrency", "16");
+        DEFAULT_OPTIONS.put("message_groups", "4");
+        DEFAULT_OPTIONS.put("producers", "1");
+        DEFAULT_OPTIONS.put("containers", "4");
+        DEFAULT_OPTIONS.put("batch_size", "10");
+        DEFAULT_OPTIONS.put("queue_capacity", "1000");
+        DEFAULT_OPTIONS.put("visibility_timeout", "30");
+        DEFAULT_OPTIONS.put("metrics", "false");
+        DEFAULT_OPTIONS.put("verbose", "false");
+        DEFAULT_OPTIONS.put("keep_output", "false");
+    }
+
+    private LocalPipelineRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = parse_options(args);
+        boolean async = options.get("execution_mode").equalsIgnoreCase("async");
+        boolean verbose = Boolean.parseBoolean(options.get("verbose"));
+
+        /*
+
+            Setting Application Variables: necessary parameters to run the stages against the local services.
+
+                1. corpus: this variable is used to set the images of the bucket, the share of them with a car and of
+                those with a person, and the labels and lines of text detected in each.
+
+                2. directory: this variable is used to hold the label cache of car recognition and the output file of
+                text extraction, and is removed at the end of the run unless keep_output is set.
+
+                3. stage properties: these are the properties each stage reads its settings from, pointing the stages
+                at the local bucket and queues, with a fresh label cache and no progress log so every run starts from
+                the beginning of the bucket.
+
+                4. producerConfigs: these are the settings of each car recognition producer, read under a prefix of
+                their own, such as car_recognition.producer0.shard_index, as every producer runs in this process and
+                the system properties are shared by all of them.
+
+        */
+        SyntheticCorpus corpus = new SyntheticCorpus(Integer.parseInt(options.get("images")), Double.parseDouble(options.get("car_rate")), Double.parseDouble(options.get("person_rate")), Integer.parseInt(options.get("other_labels")), Integer.parseInt(options.get("text_lines")));
+        Path directory = BenchmarkFiles.create_directory("local-pipeline");
+        Path output_file = directory.resolve("output.txt");
+
+        int producers = Math.max(1, Integer.parseInt(options.get("producers")));
+        List<PipelineConfig> producer_configs = new ArrayList<PipelineConfig>();
+        for (int producer = 0; producer < producers; producer++) {
+            String prefix = "car_recognition.producer" + producer;
+            System.setProperty(prefix + ".bucket", BUCKET_NAME);
+            System.setProperty(prefix + ".queue_url", CAR_QUEUE_URL);
+            System.setProperty(prefix + ".label_cache", directory.resolve("label_cache-" + producer + ".bin").toString());
+            System.setProperty(prefix + ".progress_log", "");
+            System.setProperty(prefix + ".rekognition_tps", options.get("rekognition_tps"));
+            System.setProperty(prefix + ".concurrency", options.get("concurrency"));
+            System.setProperty(prefix + ".execution_mode", options.get("execution_mode"));
+            System.setProperty(prefix + ".message_groups", options.get("message_groups"));
+            System.setProperty(prefix + ".shard_index", String.valueOf(producer));
+            System.setProperty(prefix + ".shard_count", String.valueOf(producers));
+            producer_configs.add(PipelineConfig.load(prefix, "CAR_RECOGNITION_"));
+        }
+        System.setProperty("text_extraction.bucket", BUCKET_NAME);
+        System.setProperty("text_extraction.queue_url", PEOPLE_QUEUE_URL);
+        System.setProperty("text_extraction.output", output_file.toString());
+        System.setProperty("text_extraction.concurrency", options.get("concurrency"));
+        System.setProperty("text_extraction.execution_mode", options.get("execution_mode"));
+
+        /*
+
+            Setting Local Services Instances: the in process services that take the place of AWS.
+
+                1. s3Client: this service is used by every stage to list and read the synthetic bucket.
+
+                2. rekognition clients: these services are used to detect labels and text. Each stage has its own, as
+                the stages close their clients when they finish, while the producers of car recognition share one so a
+                TPS limit of the profile holds for all of them. Closing it is left out, so the first producer to finish
+                does not stop the timer of the async client the others still wait on. The client of car recognition
+                also marks the start of each image on the timeline.
+
+                3. carQueue and peopleQueue: these services are the car indexes and people indexes FIFO queues. A delete
+                from the people indexes queue marks the end of each image on the timeline.
+
+                4. eventSource: this service is used to invoke the person recognition handler on batches of the car
+                indexes queue, with a container per poller.
+
+        */
+        ServiceProfile s3_profile = ServiceProfile.parse(options.get("s3"));
+        ServiceProfile rekognition_profile = ServiceProfile.parse(options.get("rekognition"));
+        ServiceProfile sqs_profile = ServiceProfile.parse(options.get("sqs"));
+        ImageTimeline timeline = new ImageTimeline();
+
+        FakeS3Client s3_client = new FakeS3Client(corpus, s3_profile, new byte[0]);
+        FakeRekognitionClient car_rekognition = new FakeRekognitionClient(corpus, rekognition_profile) {
+            @Override
+            public DetectLabelsResponse detectLabels(DetectLabelsRequest labels_request) {
+                timeline.start(labels_request.image().s3Object().name());
+                return super.detectLabels(labels_request);
+            }
+        };
+        FakeRekognitionAsyncClient car_rekognition_async = !async ? null : new FakeRekognitionAsyncClient(corpus, rekognition_profile) {
+            @Override
+            public CompletableFuture<DetectLabelsResponse> detectLabels(DetectLabelsRequest labels_request) {
+                timeline.start(labels_request.image().s3Object().name());
+                return super.detectLabels(labels_request);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FakeRekognitionClient person_rekognition = new FakeRekognitionClient(corpus, rekognition_profile);
+        FakeRekognitionClient text_rekognition = new FakeRekognitionClient(corpus, rekognition_profile);
+        FakeRekognitionAsyncClient text_rekognition_async = !async ? null : new FakeRekognitionAsyncClient(corpus, rekognition_profile);
+
+        int queue_capacity = Integer.parseInt(options.get("queue_capacity"));
+        int visibility_timeout = Integer.parseInt(options.get("visibility_timeout"));
+        LocalFifoQueue car_queue = new LocalFifoQueue(CAR_QUEUE_URL, queue_capacity, visibility_timeout);
+        LocalFifoQueue people_queue = new LocalFifoQueue(PEOPLE_QUEUE_URL, queue_capacity, visibility_timeout);
+        people_queue.on_delete(timeline::finish);
+
+        LocalSqsClient person_sqs = new LocalSqsClient(sqs_profile, car_queue, people_queue);
+        LocalEventSource event_source = new LocalEventSource(person_sqs, CAR_QUEUE_URL, Integer.parseInt(options.get("batch_size")));
+
+        System.out.println("Local Pipeline: " + options);
+        long started = System.nanoTime();
+
+        event_source.start(Integer.parseInt(options.get("containers")), () -> new App(person_rekognition, s3_client, person_sqs, BUCKET_NAME, PEOPLE_QUEUE_URL), "person_recognition", verbose);
+        List<Stage> car_stages = new ArrayList<Stage>();
+        for (int producer = 0; producer < producers; producer++) {
+            PipelineConfig producer_config = producer_configs.get(producer);
+            car_stages.add(Stage.start(producers == 1 ? "car_recognition" : "car_recognition_" + producer, () -> new CarRecognition(s3_client, car_rekognition, car_rekognition_async, new LocalSqsClient(sqs_profile, car_queue, people_queue), producer_config)));
+        }
+        Stage text_stage = Stage.start("text_extraction", () -> new TextExtraction(s3_client, text_rekognition, text_rekognition_async, new LocalSqsClient(sqs_profile, car_queue, people_queue), null));
+
+        // Note: text extraction only returns once the stop signal has passed through every stage, so the run is over
+        // when it returns, while a stage that failed would leave it waiting on the stop signal forever.
+        while (!text_stage.join(TimeUnit.SECONDS.toMillis(1))) {
+            if (failed(car_stages)) {
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+
+        event_source.close();
+        for (Stage car_stage : car_stages) {
+            car_stage.join(0);
+        }
+
+        boolean passed = report(corpus, output_file, elapsed, timeline, options);
+        System.out.println(car_queue.statistics());
+        System.out.println(people_queue.statistics());
+        System.out.println("person_recognition " + event_source.statistics());
+
+        if (Boolean.parseBoolean(options.get("metrics"))) {
+            // Note: the three stages share the metrics of the pipeline_common module in this process, so the
+            // metrics of a name, such as rekognition.retries, add up the stages that record it.
+            System.out.println("pipeline " + PipelineMetrics.snapshot());
+        }
+
+        if (Boolean.parseBoolean(options.get("keep_output"))) {
+            System.out.println("Output Kept: " + directory);
+        } else {
+            BenchmarkFiles.delete_directory(directory);
+        }
+
+        List<Stage> stages = new ArrayList<Stage>(car_stages);
+        stages.add(text_stage);
+        for (Stage stage : stages) {
+            if (stage.failure() != null) {
+                System.err.println(stage.name + " Failed:");
+                stage.failure().printStackTrace();
+                passed = false;
+            }
+        }
+        System.exit(passed ? 0 : 1);
+
+    }
+
+    /*
+
+        report: this function prints the throughput and end to end latency of the run, and returns false when the
+        keys of the output are not exactly the images of the corpus with both a car and a person, each written once.
+
+    */
+    private static boolean report(SyntheticCorpus corpus, Path output_file, long elapsed, ImageTimeline timeline, Map<String, String> options) throws IOException {
+
+        int cars = 0;
+        int people = 0;
+        Set<String> expected = new HashSet<String>();
+        for (int image_index = 0; image_index < corpus.imageCount(); image_index++) {
+            String key = corpus.key(image_index);
+            cars += corpus.hasCar(key) ? 1 : 0;
+            people += corpus.hasPerson(key) ? 1 : 0;
+            if (corpus.hasCar(key) && corpus.hasPerson(key)) {
+                expected.add(key);
+            }
+        }
+
+        long written = 0;
+        Set<String> written_keys = new HashSet<String>();
+        Set<String> duplicates = new TreeSet<String>();
+        if (Files.exists(output_file)) {
+            try (Stream<String> lines = Files.lines(output_file, StandardCharsets.UTF_8)) {
+                for (String line : (Iterable<String>) lines::iterator) {
+                    int separator = line.indexOf('\t');
+                    String key = separator < 0 ? line : line.substring(0, separator);
+                    if (!written_keys.add(key)) {
+                        duplicates.add(key);
+                    }
+                    written++;
+                }
+            }
+        }
+        Set<String> missing = new TreeSet<String>(expected);
+        missing.removeAll(written_keys);
+        Set<String> unexpected = new TreeSet<String>(written_keys);
+        unexpected.removeAll(expected);
+
+        double seconds = elapsed / 1e9;
+        long[] latencies = timeline.latencies();
+        System.out.println(String.format(Locale.ROOT, "Images: %d Cars: %d People: %d Written: %d", corpus.imageCount(), cars, people, written));
+        System.out.println(String.format(Locale.ROOT, "Elapsed: %.2fs Throughput: %.1f images/s %.1f written/s", seconds, corpus.imageCount() / seconds, written / seconds));
+        System.out.println(String.format(Locale.ROOT, "End To End Latency (ms): count=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f", latencies.length, percentile(latencies, 50) / 1e6, percentile(latencies, 90) / 1e6, percentile(latencies, 99) / 1e6, percentile(latencies, 100) / 1e6));
+
+        if (!missing.isEmpty() || !unexpected.isEmpty() || !duplicates.isEmpty()) {
+            System.err.println("Output Mismatch: expected " + expected.size() + " images with a car and a person, written " + written);
+            print_keys("Missing", missing);
+            print_keys("Unexpected", unexpected);
+            print_keys("Duplicated", duplicates);
+            return false;
+        }
+        return true;
+    }
+
+    // Note: only the first keys of a long list are printed, as a run that went wrong tends to get many of them wrong.
+    private static void print_keys(String name, Set<String> keys) {
+        if (!keys.isEmpty()) {
+            List<String> first_keys = new ArrayList<String>(keys).subList(0, Math.min(10, keys.size()));
+            System.err.println(name + " (" + keys.size() + "): " + first_keys + (keys.size() > first_keys.size() ? " ..." : ""));
+        }
+    }
+
+    private static boolean failed(List<Stage> stages) {
+        for (Stage stage : stages) {
+            if (stage.failure() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static Map<String, String> parse_options(String[] args) {
+
+        Map<String, String> options = new LinkedHashMap<String, String>(DEFAULT_OPTIONS);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = separator < 0 ? arg : arg.substring(0, separator);
+            if (separator < 0 || !options.containsKey(name)) {
+                System.err.println("Unknown Option: " + arg + " (options: " + DEFAULT_OPTIONS.keySet() + ")");
+                System.exit(1);
+            }
+            options.put(name, arg.substring(separator + 1).trim());
+        }
+        return options;
+    }
+
+    /*
+
+        ImageTimeline: the start and end of every image of the run. A image is started by its first request, as a
+        retried request does not start it again, and images that are ended without being started, such as the stop
+        markers, are left out.
+
+    */
+    private static final class ImageTimeline {
+
+        private final Map<String, Long> started = new ConcurrentHashMap<String, Long>();
+        private final Map<String, Long> finished = new ConcurrentHashMap<String, Long>();
+
+        void start(String image) {
+            started.putIfAbsent(image, System.nanoTime());
+        }
+
+        void finish(String image) {
+            Long image_started = started.get(image);
+            if (image_started != null) {
+                finished.putIfAbsent(image, System.nanoTime() - image_started);
+            }
+        }
+
+        long[] latencies() {
+            long[] latencies = new long[finished.size()];
+            int index = 0;
+            for (long latency : finished.values()) {
+                if (index < latencies.length) {
+                    latencies[index++] = latency;
+                }
+            }
+            latencies = Arrays.copyOf(latencies, index);
+            Arrays.sort(latencies);
+            return latencies;
+        }
+
+    }
+
+    /*
+
+        Stage: a stage of the pipeline run on a thread of its own, keeping the failure that ended it, if any.
+
+    */
+    private static final class Stage {
+
+        private final String name;
+        private final Thread thread;
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private Stage(String name, Runnable stage) {
+            this.name = name;
+            this.thread = new Thread(() -> {
+                try {
+                    stage.run();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }, name);
+        }
+
+        static Stage start(String name, Runnable stage) {
+            Stage started = new Stage(name, stage);
+            started.thread.start();
+            return started;
+        }
+
+        boolean join(long millis) throws InterruptedException {
+            thread.join(millis);
+            return !thread.isAlive();
+        }
+
+        Throwable failure() {
+            return failure.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    LocalSqsClient: a SQS client over local FIFO queues, found by their queue URL. Each request waits for the latency
+    of the profile before it reaches the queue, the same as a request to SQS, while a long poll then waits on the
+    queue for as long as the request asks. Requests a FIFO queue would refuse, such as a batch of more than 10 entries,
+    fail with a SqsException, and a request interrupted while it waits on a queue ends the same way as a aborted SDK
+    request.
+
+    Closing the client does not close the queues, so every stage can close its own client as it does with SQS.
+
+*/
+public class LocalSqsClient implements SqsClient {
+
+    private static final int MAX_BATCH_ENTRIES = 10;
+
+    private final ServiceProfile profile;
+    private final Map<String, LocalFifoQueue> queues = new HashMap<String, LocalFifoQueue>();
+
+    public LocalSqsClient(ServiceProfile profile, LocalFifoQueue... queues) {
+        this.profile = profile;
+        for (LocalFifoQueue queue : queues) {
+            this.queues.put(queue.url(), queue);
+        }
+    }
+
+    @Override
+    public SendMessageResponse sendMessage(SendMessageRequest message_request) {
+
+        LocalFifoQueue queue = queue(message_request.queueUrl());
+        profile.await();
+        String message_id = send(queue, message_request.messageBody(), message_request.messageDeduplicationId(), message_request.messageGroupId());
+        return SendMessageResponse.builder().messageId(message_id).build();
+    }
+
+    @Override
+    public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest batch_request) {
+
+        LocalFifoQueue queue = queue(batch_request.queueUrl());
+        check_batch_size(batch_request.entries().size());
+        profile.await();
+
+        List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+        List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+        for (SendMessageBatchRequestEntry entry : batch_request.entries()) {
+            if (entry.messageDeduplicationId() == null || entry.messageGroupId() == null) {
+                failed.add(BatchResultErrorEntry.builder().id(entry.id()).senderFault(true).code("MissingParameter").message("A FIFO queue needs a message group id and deduplication id").build());
+                continue;
+            }
+            String message_id = send(queue, entry.messageBody(), entry.messageDeduplicationId(), entry.messageGroupId());
+            successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId(message_id).build());
+        }
+
+        return SendMessageBatchResponse.builder().successful(successful).failed(failed).build();
+    }
+
+    @Override
+    public ReceiveMessageResponse receiveMessage(ReceiveMessageRequest receive_request) {
+
+        LocalFifoQueue queue = queue(receive_request.queueUrl());
+        int max_messages = receive_request.maxNumberOfMessages() == null ? 1 : receive_request.maxNumberOfMessages();
+        check_batch_size(max_messages);
+        int wait_seconds = receive_request.waitTimeSeconds() == null ? 0 : receive_request.waitTimeSeconds();
+        boolean with_attributes = receive_request.hasAttributeNamesWithStrings() && !receive_request.attributeNamesWithStrings().isEmpty();
+        profile.await();
+
+        try {
+            List<Message> messages = queue.receive(max_messages, TimeUnit.SECONDS.toNanos(wait_seconds), with_attributes);
+            return ReceiveMessageResponse.builder().messages(messages).build();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ReceiveMessageResponse.builder().messages(Collections.<Message>emptyList()).build();
+        }
+    }
+
+    @Override
+    public DeleteMessageResponse deleteMessage(DeleteMessageRequest delete_request) {
+
+        LocalFifoQueue queue = queue(delete_request.queueUrl());
+        profile.await();
+        if (!queue.delete(delete_request.receiptHandle())) {
+            throw failure(400, "ReceiptHandleIsInvalid: " + delete_request.receiptHandle());
+        }
+        return DeleteMessageResponse.builder().build();
+    }
+
+    @Override
+    public DeleteMessageBatchResponse deleteMessageBatch(DeleteMessageBatchRequest delete_request) {
+
+        LocalFifoQueue queue = queue(delete_request.queueUrl());
+        check_batch_size(delete_request.entries().size());
+        profile.await();
+
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<DeleteMessageBatchResultEntry>();
+        List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+        for (DeleteMessageBatchRequestEntry entry : delete_request.entries()) {
+            if (queue.delete(entry.receiptHandle())) {
+                successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+            } else {
+                failed.add(BatchResultErrorEntry.builder().id(entry.id()).senderFault(true).code("ReceiptHandleIsInvalid").message("The receipt handle is not of a message in flight").build());
+            }
+        }
+
+        return DeleteMessageBatchResponse.builder().successful(successful).failed(failed).build();
+    }
+
+    @Override
+    public ChangeMessageVisibilityResponse changeMessageVisibility(ChangeMessageVisibilityRequest visibility_request) {
+
+        LocalFifoQueue queue = queue(visibility_request.queueUrl());
+        profile.await();
+        if (!queue.change_visibility(visibility_request.receiptHandle(), visibility_request.visibilityTimeout())) {
+            throw failure(400, "MessageNotInflight: " + visibility_request.receiptHandle());
+        }
+        return ChangeMessageVisibilityResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private LocalFifoQueue queue(String queue_url) {
+        LocalFifoQueue queue = queues.get(queue_url);
+        if (queue == null) {
+            throw failure(400, "AWS.SimpleQueueService.NonExistentQueue: " + queue_url);
+        }
+        return queue;
+    }
+
+    private static String send(LocalFifoQueue queue, String body, String deduplication_id, String message_group_id) {
+        try {
+            return queue.send(body, deduplication_id, message_group_id);
+        } catch (IllegalArgumentException e) {
+            throw failure(400, "MissingParameter: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure(500, "Interrupted while waiting for space on: " + queue.url());
+        }
+    }
+
+    private static void check_batch_size(int entries) {
+        if (entries < 1) {
+            throw failure(400, "EmptyBatchRequest");
+        }
+        if (entries > MAX_BATCH_ENTRIES) {
+            throw failure(400, "TooManyEntriesInBatchRequest: " + entries);
+        }
+    }
+
+    private static SqsException failure(int status_code, String message) {
+        return SqsException.builder().statusCode(status_code).message(message).build();
+    }
+
+}
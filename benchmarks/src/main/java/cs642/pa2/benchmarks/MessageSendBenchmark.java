@@ -0,0 +1,80 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.pipeline_common.BatchingMessageSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    MessageSendBenchmark: the time per message of sending the car indexes of a pass to a queue, one SendMessage
+    request per image as the stages did at first, or through the batching message sender. The SQS profile sets the
+    round trip of a request and the share of batch entries that fail and are retried.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class MessageSendBenchmark {
+
+    private static final int MESSAGES = 200;
+    private static final String QUEUE_URL = "https://sqs.local/000000000000/car_indexes.fifo";
+
+    @Param({"5ms", "5ms~2ms/2%"})
+    public String sqsProfile;
+
+    private FakeSqsClient sqsClient;
+    private String[] images;
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        SyntheticCorpus corpus = new SyntheticCorpus(MESSAGES, 1.0, 0.0, 0, 0);
+        sqsClient = new FakeSqsClient(ServiceProfile.parse(sqsProfile));
+        images = new String[MESSAGES];
+        for (int index = 0; index < MESSAGES; index++) {
+            images[index] = corpus.key(index) + "\tCar=97.5;Person=12.0";
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void single_sends() {
+
+        for (String image : images) {
+            SendMessageRequest message_request = SendMessageRequest.builder().queueUrl(QUEUE_URL).messageBody(image).messageDeduplicationId("car_indexes:" + image).messageGroupId("car_indexes").build();
+            sqsClient.sendMessage(message_request);
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void batched_sends() {
+
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqsClient, QUEUE_URL, 100, 5)) {
+            for (String image : images) {
+                message_sender.send(image, "car_indexes:" + image, "car_indexes");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.text_extraction.BinaryOutputSink;
+import cs642.pa2.text_extraction.OutputSink;
+import cs642.pa2.text_extraction.TextFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    OutputWriterBenchmark: the time per entry of writing the text of a run to the output, with each strategy the
+    text extraction stage has had. The file is opened, written and closed for every entry as it was at first, or the
+    entries go through the long lived output sink, or through the binary output sink.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class OutputWriterBenchmark {
+
+    private static final int ENTRIES = 2000;
+
+    @Param({"4"})
+    public int textLines;
+
+    private final List<String> images = new ArrayList<String>();
+    private final List<List<TextDetection>> texts = new ArrayList<List<TextDetection>>();
+    private final TextFormatter textFormatter = new TextFormatter(TextFormatter.DetectionFilter.ALL, 0.0F);
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        SyntheticCorpus corpus = new SyntheticCorpus(ENTRIES, 0.0, 0.0, 0, textLines);
+        for (int index = 0; index < ENTRIES; index++) {
+            images.add(corpus.key(index));
+            texts.add(corpus.text(corpus.key(index)));
+        }
+        directory = BenchmarkFiles.create_directory("output-writer");
+
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        BenchmarkFiles.delete_directory(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void reopened_file_writer() throws IOException {
+
+        String output_file = directory.resolve("reopened.txt").toString();
+        new FileWriter(output_file).close();
+
+        for (int index = 0; index < ENTRIES; index++) {
+            try (PrintWriter print_writer = new PrintWriter(new BufferedWriter(new FileWriter(output_file, true)))) {
+                print_writer.println(textFormatter.format(images.get(index), texts.get(index)));
+            }
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void output_sink() throws IOException {
+
+        OutputSink output_sink = new OutputSink(directory.resolve("sink.txt").toString(), 64, 1000);
+        try {
+            for (int index = 0; index < ENTRIES; index++) {
+                output_sink.append(textFormatter.format(images.get(index), texts.get(index)));
+            }
+        } finally {
+            output_sink.close();
+        }
+        output_sink.delete_segments();
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void binary_output_sink() throws IOException {
+
+        BinaryOutputSink binary_output_sink = new BinaryOutputSink(directory.resolve("sink.bin").toString());
+        try {
+            for (int index = 0; index < ENTRIES; index++) {
+                binary_output_sink.append(images.get(index), texts.get(index));
+                if (index % 64 == 63) {
+                    binary_output_sink.commit();
+                }
+            }
+        } finally {
+            binary_output_sink.close();
+        }
+        binary_output_sink.delete_segments();
+
+    }
+
+}
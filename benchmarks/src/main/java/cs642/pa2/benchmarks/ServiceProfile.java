@@ -0,0 +1,135 @@
+package cs642.pa2.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+
+    ServiceProfile: how a fake service behaves on every call, the latency it adds, spread evenly over the jitter
+    around it, and the share of calls that fail. A profile is parsed from a short form so it can be passed as a
+    benchmark parameter, such as "20ms", "20ms~5ms" or "20ms~5ms/1%".
+
+    A profile may also have a TPS limit, such as "20ms~5ms@50tps", past which calls fail as they do at a account
+    limit. The limit is a token bucket of one second of calls, shared by every client of the profile, and a failed
+    call does not take a token.
+
+*/
+public class ServiceProfile {
+
+    public static final ServiceProfile INSTANT = new ServiceProfile(0, 0, 0.0);
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double errorRate;
+    private final double tpsLimit;
+
+    // Note: the tokens of the TPS limit, refilled as time passes, guarded by the profile.
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public ServiceProfile(long latencyNanos, long jitterNanos, double errorRate) {
+        this(latencyNanos, jitterNanos, errorRate, 0);
+    }
+
+    public ServiceProfile(long latencyNanos, long jitterNanos, double errorRate, double tpsLimit) {
+        this.latencyNanos = Math.max(0, latencyNanos);
+        this.jitterNanos = Math.max(0, Math.min(jitterNanos, latencyNanos));
+        this.errorRate = Math.max(0.0, Math.min(1.0, errorRate));
+        this.tpsLimit = Math.max(0.0, tpsLimit);
+        this.tokens = this.tpsLimit;
+    }
+
+    /*
+
+        parse: this function reads a profile of the form "<latency>ms[~<jitter>ms][/<error rate>%][@<limit>tps]".
+
+    */
+    public static ServiceProfile parse(String profile) {
+
+        String latency = profile.trim();
+        double error_rate = 0.0;
+        long jitter_nanos = 0;
+        double tps_limit = 0.0;
+
+        int limit_start = latency.indexOf('@');
+        if (limit_start >= 0) {
+            tps_limit = Double.parseDouble(latency.substring(limit_start + 1).replace("tps", "").trim());
+            latency = latency.substring(0, limit_start);
+        }
+
+        int error_start = latency.indexOf('/');
+        if (error_start >= 0) {
+            error_rate = Double.parseDouble(latency.substring(error_start + 1).replace("%", "").trim()) / 100.0;
+            latency = latency.substring(0, error_start);
+        }
+
+        int jitter_start = latency.indexOf('~');
+        if (jitter_start >= 0) {
+            jitter_nanos = millis_to_nanos(latency.substring(jitter_start + 1));
+            latency = latency.substring(0, jitter_start);
+        }
+
+        return new ServiceProfile(millis_to_nanos(latency), jitter_nanos, error_rate, tps_limit);
+    }
+
+    private static long millis_to_nanos(String millis) {
+        return (long) (Double.parseDouble(millis.replace("ms", "").trim()) * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /*
+
+        delay_nanos: this function picks the latency of a single call.
+
+    */
+    public long delay_nanos() {
+
+        if (jitterNanos == 0) {
+            return latencyNanos;
+        }
+        return latencyNanos - jitterNanos + ThreadLocalRandom.current().nextLong(2 * jitterNanos + 1);
+    }
+
+    /*
+
+        await: this function holds the calling thread for the latency of a single call, as a blocking client would.
+
+    */
+    public void await() {
+
+        long remaining = delay_nanos();
+        long deadline = System.nanoTime() + remaining;
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    // Note: a call fails at the error rate of the profile, or when it is past the TPS limit of the profile.
+    public boolean fails() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate || over_limit();
+    }
+
+    @Override
+    public String toString() {
+        String profile = String.format("%.1fms~%.1fms/%.1f%%", latencyNanos / 1e6, jitterNanos / 1e6, errorRate * 100);
+        return tpsLimit > 0 ? profile + String.format("@%.0ftps", tpsLimit) : profile;
+    }
+
+    private synchronized boolean over_limit() {
+
+        if (tpsLimit <= 0) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        tokens = Math.min(tpsLimit, tokens + (now - lastRefill) * tpsLimit / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+        if (tokens < 1.0) {
+            return true;
+        }
+        tokens -= 1.0;
+        return false;
+    }
+
+}
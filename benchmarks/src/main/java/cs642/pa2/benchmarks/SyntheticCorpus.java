@@ -0,0 +1,178 @@
+package cs642.pa2.benchmarks;
+
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.Geometry;
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/*
+
+    SyntheticCorpus: a bucket of made up images for the fake services to answer for. Every image has a key, an ETag,
+    the labels Rekognition would detect in it and the text it would find, all worked out from the key alone, so the
+    same image always gets the same answer without anything being stored.
+
+    A set share of images hold a car, and of those a set share also hold a person, both above the 90% confidence of
+    the default label rules, while the rest get the same labels below it now and then so the rules still have to look
+    at them. Every image also gets a number of other labels from a fixed list, and a number of lines of words.
+
+*/
+public class SyntheticCorpus {
+
+    private static final String[] OTHER_LABELS = {
+            "Road", "Tree", "Building", "Sky", "Outdoors", "Nature", "Urban", "City", "Street", "Plant", "Wheel",
+            "Tire", "Sign", "Symbol", "Text", "Window", "Door", "Grass", "Cloud", "Light", "Traffic Light", "Pole",
+            "Architecture", "Housing", "Parking", "Asphalt", "Tarmac", "Vegetation", "Landscape", "Animal", "Dog",
+            "Bicycle", "Bus", "Truck", "Motorcycle", "Intersection", "Crosswalk", "Bench", "Fence", "Wall"};
+
+    private static final String[] WORDS = {
+            "STOP", "EXIT", "OPEN", "SALE", "PARKING", "ONLY", "NO", "LEFT", "RIGHT", "TURN", "SPEED", "LIMIT", "ONE",
+            "WAY", "MAIN", "ST", "AVE", "CAFE", "PIZZA", "HOTEL", "BANK", "PHARMACY", "YIELD", "SCHOOL", "ZONE", "BUS",
+            "LANE", "TAXI", "RENO", "NEVADA", "WELCOME", "PUSH", "PULL", "ENTER", "CLOSED", "24", "HOURS", "FREE",
+            "WIFI", "DRIVE", "THRU", "SLOW", "CHILDREN", "AT", "PLAY", "DEAD", "END", "DETOUR", "AHEAD", "MERGE"};
+
+    private final int imageCount;
+    private final double carRate;
+    private final double personRate;
+    private final int otherLabels;
+    private final int textLines;
+
+    public SyntheticCorpus(int imageCount, double carRate, double personRate, int otherLabels, int textLines) {
+        this.imageCount = imageCount;
+        this.carRate = carRate;
+        this.personRate = personRate;
+        this.otherLabels = Math.min(otherLabels, OTHER_LABELS.length);
+        this.textLines = textLines;
+    }
+
+    public int imageCount() {
+        return imageCount;
+    }
+
+    /*
+
+        key: this function returns the key of a image. Keys are padded so the listing order of the bucket is the order
+        of the image numbers.
+
+    */
+    public String key(int image_index) {
+        return String.format("images/%08d.jpg", image_index);
+    }
+
+    public String eTag(String key) {
+        return "\"" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    public boolean hasCar(String key) {
+        return random(key, 1).nextDouble() < carRate;
+    }
+
+    public boolean hasPerson(String key) {
+        return hasCar(key) && random(key, 2).nextDouble() < personRate;
+    }
+
+    /*
+
+        labels: this function returns the labels detected in a image, with the car and person labels first.
+
+    */
+    public List<Label> labels(String key) {
+
+        Random random = random(key, 3);
+        List<Label> labels = new ArrayList<Label>(otherLabels + 3);
+
+        if (hasCar(key)) {
+            labels.add(label("Car", 90.5F + 9.4F * random.nextFloat(), 1 + random.nextInt(3), random, "Vehicle", "Transportation"));
+            labels.add(label("Vehicle", 92.0F + 7.9F * random.nextFloat(), 0, random, "Transportation"));
+        } else if (random.nextInt(4) == 0) {
+            labels.add(label("Car", 50.0F + 39.0F * random.nextFloat(), 1, random, "Vehicle", "Transportation"));
+        }
+
+        if (hasPerson(key)) {
+            labels.add(label("Person", 90.5F + 9.4F * random.nextFloat(), 1 + random.nextInt(4), random));
+        } else if (random.nextInt(4) == 0) {
+            labels.add(label("Person", 50.0F + 39.0F * random.nextFloat(), 1, random));
+        }
+
+        int first = random.nextInt(OTHER_LABELS.length);
+        for (int index = 0; index < otherLabels; index++) {
+            labels.add(label(OTHER_LABELS[(first + index) % OTHER_LABELS.length], 55.0F + 44.9F * random.nextFloat(), 0, random));
+        }
+
+        return labels;
+    }
+
+    /*
+
+        text: this function returns the text detected in a image, each line followed by the words in it, as
+        Rekognition returns them.
+
+    */
+    public List<TextDetection> text(String key) {
+
+        Random random = random(key, 4);
+        List<TextDetection> detections = new ArrayList<TextDetection>(textLines * 4);
+
+        int id = 0;
+        for (int line = 0; line < textLines; line++) {
+
+            int line_id = id++;
+            int word_count = 1 + random.nextInt(4);
+            StringBuilder line_text = new StringBuilder();
+            List<TextDetection> words = new ArrayList<TextDetection>(word_count);
+
+            for (int word = 0; word < word_count; word++) {
+                String word_text = WORDS[random.nextInt(WORDS.length)];
+                line_text.append(word == 0 ? "" : " ").append(word_text);
+                words.add(detection(word_text, TextTypes.WORD, id++, line_id, random));
+            }
+
+            detections.add(detection(line_text.toString(), TextTypes.LINE, line_id, null, random));
+            detections.addAll(words);
+        }
+
+        return detections;
+    }
+
+    private static Label label(String name, float confidence, int instance_count, Random random, String... parents) {
+
+        List<Instance> instances = new ArrayList<Instance>(instance_count);
+        for (int index = 0; index < instance_count; index++) {
+            instances.add(Instance.builder().confidence(Math.max(50.0F, confidence - 10.0F * random.nextFloat())).boundingBox(box(random)).build());
+        }
+
+        List<Parent> label_parents = new ArrayList<Parent>(parents.length);
+        for (String parent : parents) {
+            label_parents.add(Parent.builder().name(parent).build());
+        }
+
+        return Label.builder().name(name).confidence(confidence).instances(instances).parents(label_parents).aliases(Collections.emptyList()).categories(Collections.emptyList()).build();
+    }
+
+    private static TextDetection detection(String text, TextTypes type, int id, Integer parent_id, Random random) {
+        return TextDetection.builder().detectedText(text).type(type).id(id).parentId(parent_id).confidence(80.0F + 19.9F * random.nextFloat()).geometry(Geometry.builder().boundingBox(box(random)).build()).build();
+    }
+
+    private static BoundingBox box(Random random) {
+        float left = 0.8F * random.nextFloat();
+        float top = 0.8F * random.nextFloat();
+        return BoundingBox.builder().left(left).top(top).width(0.2F * random.nextFloat()).height(0.2F * random.nextFloat()).build();
+    }
+
+    // Note: the seeds of neighbouring keys and streams are close together, and Random gives close seeds close first
+    // values, so the seed is mixed first to keep the streams of a image and the images of the corpus independent.
+    private static Random random(String key, int stream) {
+        long seed = key.hashCode() * 31L + stream;
+        seed = (seed ^ (seed >>> 33)) * 0xff51afd7ed558ccdL;
+        seed = (seed ^ (seed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return new Random(seed ^ (seed >>> 33));
+    }
+
+}
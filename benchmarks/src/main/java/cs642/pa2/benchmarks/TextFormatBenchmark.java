@@ -0,0 +1,77 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.text_extraction.TextFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    TextFormatBenchmark: the time to turn the text detected in a image into its output entry, by joining every
+    detection onto a new string as it was at first, or with the text formatter and its reused buffer, keeping every
+    detection or only the lines.
+
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TextFormatBenchmark {
+
+    @Param({"2", "20"})
+    public int textLines;
+
+    private String image;
+    private List<TextDetection> text;
+    private TextFormatter allFormatter;
+    private TextFormatter lineFormatter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        SyntheticCorpus corpus = new SyntheticCorpus(1, 0.0, 0.0, 0, textLines);
+        image = corpus.key(0);
+        text = corpus.text(image);
+        allFormatter = new TextFormatter(TextFormatter.DetectionFilter.ALL, 0.0F);
+        lineFormatter = new TextFormatter(TextFormatter.DetectionFilter.LINE, 0.0F);
+
+    }
+
+    @Benchmark
+    public String concatenated_string() {
+
+        String concatenated_text = "";
+        for (TextDetection detection : text) {
+            concatenated_text = concatenated_text + " " + detection.detectedText();
+        }
+        return image + "\t" + concatenated_text;
+
+    }
+
+    @Benchmark
+    public void formatter_all(Blackhole blackhole) {
+        blackhole.consume(allFormatter.format(image, text));
+    }
+
+    @Benchmark
+    public void formatter_lines(Blackhole blackhole) {
+        blackhole.consume(lineFormatter.format(image, text));
+    }
+
+}
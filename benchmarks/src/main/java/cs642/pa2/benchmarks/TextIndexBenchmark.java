@@ -0,0 +1,81 @@
+package cs642.pa2.benchmarks;
+
+import cs642.pa2.text_extraction.TextIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+
+    TextIndexBenchmark: the time to build the text index of a run and to answer a term, a two term and, and a prefix
+    query against it.
+
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TextIndexBenchmark {
+
+    @Param({"10000"})
+    public int images;
+
+    private final List<String> keys = new ArrayList<String>();
+    private final List<List<TextDetection>> texts = new ArrayList<List<TextDetection>>();
+    private TextIndex textIndex;
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        SyntheticCorpus corpus = new SyntheticCorpus(images, 0.0, 0.0, 0, 3);
+        for (int index = 0; index < images; index++) {
+            keys.add(corpus.key(index));
+            texts.add(corpus.text(corpus.key(index)));
+        }
+        textIndex = build_index();
+
+    }
+
+    @Benchmark
+    public TextIndex build_index() {
+
+        TextIndex text_index = new TextIndex();
+        for (int index = 0; index < keys.size(); index++) {
+            text_index.add(keys.get(index), texts.get(index));
+        }
+        return text_index;
+
+    }
+
+    @Benchmark
+    public int[] term_query() {
+        return textIndex.term("parking");
+    }
+
+    @Benchmark
+    public int[] and_query() {
+        return textIndex.and("one", "way");
+    }
+
+    @Benchmark
+    public int[] prefix_query() {
+        return textIndex.prefix("s");
+    }
+
+}
@@ -0,0 +1,187 @@
+package cs642.pa2.car_recognition;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+
+    BucketImageLister: streams the objects of the images within a S3 bucket. The bucket is listed page by page using
+    ListObjectsV2 continuation tokens on a background thread, and each matching object, with its key and ETag, is
+    handed to the consumer through a bounded queue. Detection can therefore start on the first page while later pages
+    are still being fetched, and no more than the queue capacity of objects are ever held in memory regardless of the
+    size of the bucket. When the bucket is split into shards, only the keys of the shard of this lister are returned.
+
+*/
+public class BucketImageLister implements Iterable<S3Object>, AutoCloseable {
+
+    // Note: a unique instance used to mark the end of the listing, compared by reference so no object can collide with
+    // it.
+    private static final S3Object END_OF_LISTING = S3Object.builder().key("END_OF_LISTING").build();
+
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final String prefix;
+    private final String startAfter;
+    private final List<String> suffixes;
+    private final int capacity;
+    private final int shardIndex;
+    private final int shardCount;
+
+    private Thread listing_thread;
+
+    public BucketImageLister(S3Client s3Client, String bucketName, String prefix, String startAfter, List<String> suffixes, int capacity) {
+        this(s3Client, bucketName, prefix, startAfter, suffixes, capacity, 0, 1);
+    }
+
+    public BucketImageLister(S3Client s3Client, String bucketName, String prefix, String startAfter, List<String> suffixes, int capacity, int shardIndex, int shardCount) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.startAfter = startAfter;
+        this.suffixes = suffixes;
+        this.capacity = Math.max(1, capacity);
+        this.shardIndex = shardIndex;
+        this.shardCount = Math.max(1, shardCount);
+    }
+
+    /*
+
+        iterator: this function starts the listing of the bucket and returns a iterator over the matching objects.
+
+        Summary: The function creates a bounded queue and starts a daemon thread that walks every page of the bucket
+        listing, starting after the start key when one is given. Each key that passes the prefix, suffix and shard
+        filters is put on the queue, which blocks the listing thread while the consumer is behind. When the listing is
+        finished, or fails, the end marker is put on the queue so the iterator knows to stop, and a failure is thrown
+        again on the consuming thread.
+
+    */
+    @Override
+    public synchronized Iterator<S3Object> iterator() {
+
+        if (listing_thread != null) {
+            throw new IllegalStateException("Bucket listing can only be iterated once: " + bucketName);
+        }
+
+        final BlockingQueue<S3Object> image_objects = new ArrayBlockingQueue<S3Object>(capacity);
+        final RuntimeException[] listing_failure = new RuntimeException[1];
+
+        listing_thread = new Thread(() -> {
+            try {
+                ListObjectsV2Request.Builder list_request = ListObjectsV2Request.builder().bucket(bucketName);
+                if (!prefix.isEmpty()) {
+                    list_request.prefix(prefix);
+                }
+                // Note: S3 lists keys in order, so a resumed listing starts with the first key after the checkpoint.
+                if (startAfter != null) {
+                    list_request.startAfter(startAfter);
+                }
+
+                for (S3Object image_object : s3Client.listObjectsV2Paginator(list_request.build()).contents()) {
+                    if (is_image_key(image_object.key()) && is_shard_key(image_object.key())) {
+                        image_objects.put(image_object);
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                listing_failure[0] = e;
+            }
+
+            try {
+                image_objects.put(END_OF_LISTING);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "bucket-lister-" + bucketName);
+        listing_thread.setDaemon(true);
+        listing_thread.start();
+
+        return new Iterator<S3Object>() {
+            private S3Object next_object;
+
+            @Override
+            public boolean hasNext() {
+                if (next_object == null) {
+                    try {
+                        next_object = image_objects.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while listing: " + bucketName, e);
+                    }
+                }
+
+                if (next_object == END_OF_LISTING) {
+                    // Note: the end marker is left in place so repeated calls keep returning false.
+                    if (listing_failure[0] != null) {
+                        throw listing_failure[0];
+                    }
+                    return false;
+                }
+
+                return true;
+            }
+
+            @Override
+            public S3Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                S3Object image_object = next_object;
+                next_object = null;
+                return image_object;
+            }
+        };
+
+    }
+
+    /*
+
+        is_image_key: this function checks a key against the suffix filter. Keys are compared without case so that
+        names such as "IMG_01.JPG" are still processed. An empty suffix list accepts every key.
+
+    */
+    private boolean is_image_key(String key) {
+
+        if (suffixes.isEmpty()) {
+            return true;
+        }
+
+        String lower_key = key.toLowerCase(Locale.ROOT);
+        for (String suffix : suffixes) {
+            if (lower_key.endsWith(suffix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /*
+
+        is_shard_key: this function checks that a key belongs to the shard of this lister. Keys are spread over the
+        shards by the hash of the key, which is the same in every JVM, so every producer agrees on the shard of every
+        key without talking to each other and each key is processed by exactly one shard.
+
+    */
+    private boolean is_shard_key(String key) {
+        return shardCount == 1 || (key.hashCode() & 0x7FFFFFFF) % shardCount == shardIndex;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (listing_thread != null) {
+            listing_thread.interrupt();
+        }
+    }
+
+}
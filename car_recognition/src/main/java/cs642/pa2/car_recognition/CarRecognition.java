@@ -1,29 +1,101 @@
 package cs642.pa2.car_recognition;
 
+import cs642.pa2.pipeline_common.AdaptiveLimiter;
+import cs642.pa2.pipeline_common.BatchingMessageSender;
+import cs642.pa2.pipeline_common.ImagePreprocessor;
+import cs642.pa2.pipeline_common.LabelCache;
+import cs642.pa2.pipeline_common.LabelRuleEngine;
+import cs642.pa2.pipeline_common.PipelineConfig;
+import cs642.pa2.pipeline_common.PipelineMetrics;
+import cs642.pa2.pipeline_common.RetryClassifier;
+import cs642.pa2.pipeline_common.StopMarker;
+
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.rekognition.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CarRecognition {
 
+    // Metrics: these are the latencies and counts recorded by the application, written as snapshots to the file set
+    // by car_recognition.metrics_file. The per image lines of the log are only printed at the debug log level, set by
+    // car_recognition.log_level, as printing them costs more than the rest of the work done for a cached image.
+    private static final PipelineMetrics.Histogram DETECT_LABELS = PipelineMetrics.histogram("rekognition.detectLabels");
+    private static final PipelineMetrics.Histogram SEND_MESSAGE = PipelineMetrics.histogram("sqs.sendMessage");
+    private static final LongAdder DETECT_LABELS_ERRORS = PipelineMetrics.counter("rekognition.detectLabels.errors");
+    private static final LongAdder LABEL_CACHE_HITS = PipelineMetrics.counter("labelCache.hits");
+    private static final LongAdder LABEL_CACHE_MISSES = PipelineMetrics.counter("labelCache.misses");
+    private static final LongAdder VERDICTS_REUSED = PipelineMetrics.counter("progressLog.verdictsReused");
+    private static final LongAdder IMAGES_COMPLETED = PipelineMetrics.counter("images.completed");
+    private static final LongAdder IMAGES_ENQUEUED = PipelineMetrics.counter("images.enqueued");
+    private static final boolean DEBUG_LOGGING = "debug".equalsIgnoreCase(DependencyFactory.config().string("log_level", "info"));
+
     // AWS Services Instances: these are instances used by the application to store connections to different services.
     private final S3Client s3Client;
     private final RekognitionClient rekognitionClient;
+    private final RekognitionAsyncClient rekognitionAsyncClient;
     private final SqsClient sqsClient;
+    private final BatchingMessageSender messageSender;
+    private final LabelCache labelCache;
+    private final ImagePreprocessor imagePreprocessor;
+    private final ProgressLog progressLog;
 
     // Application Variables: these are variables used by the application to access the names of defined resources.
     private final String bucketName;
     private final String queueURL;
+    private final String imagePrefix;
+    private final String imageSuffixes;
+    private final int concurrency;
+    private final int asyncConcurrency;
+    private final AdaptiveLimiter rekognitionLimiter;
+    private final LabelRuleEngine labelRules;
+    private final ThreadLocal<LabelRuleEngine.Result> labelResults;
+    private final int checkpointInterval;
+    private final int maxImages;
+    private final int shardIndex;
+    private final int shardCount;
+    private final int messageGroups;
+    private final String metricsFile;
+
+    // Pipeline State: these are the number of images completed by this run and the key of the last one, which is
+    // where the progress log resumes from.
+    private int completedImages;
+    private String lastCompletedKey;
 
     public CarRecognition() {
+        this(DependencyFactory.config());
+    }
+
+    private CarRecognition(PipelineConfig config) {
+        this(DependencyFactory.s3Client(config), DependencyFactory.rekognitionClient(config), DependencyFactory.rekognitionAsyncClient(config), DependencyFactory.sqsClient(config), config);
+    }
+
+    public CarRecognition(S3Client s3Client, RekognitionClient rekognitionClient, SqsClient sqsClient) {
+        this(s3Client, rekognitionClient, null, sqsClient);
+    }
+
+    public CarRecognition(S3Client s3Client, RekognitionClient rekognitionClient, RekognitionAsyncClient rekognitionAsyncClient, SqsClient sqsClient) {
+        this(s3Client, rekognitionClient, rekognitionAsyncClient, sqsClient, DependencyFactory.config());
+    }
+
+    public CarRecognition(S3Client s3Client, RekognitionClient rekognitionClient, RekognitionAsyncClient rekognitionAsyncClient, SqsClient sqsClient, PipelineConfig config) {
 
         /*
             CarRecognition: The constructor runs the under laying code to process images, add images to a SQS Queue, and
@@ -35,14 +107,80 @@ public class CarRecognition {
             Setting Application Variables: necessary parameters to do two of the following operations.
 
                 1. bucketName: this variable is used to set the bucket for which images are initially pulled from for
-                processing.
+                processing. It can be set by the car_recognition.bucket property.
 
                 2. queueURL: this variable is used to set the queue to send the processed images with cars above the
-                90% threshold.
+                90% threshold. It can be set by the car_recognition.queue_url property, such as to the in memory queues
+                of a local run of the pipeline.
+
+                3. imagePrefix: this variable is used to limit the listing to keys under a prefix of the bucket.
+
+                4. imageSuffixes: this variable is used to set the comma separated file endings of keys that are sent
+                for processing, so that objects that are not images are skipped.
+
+                5. concurrency: this variable is used to set how many detect labels requests may be in flight at once.
+
+                6. labelRules: this variable is used to evaluate every label the pipeline needs in one pass over the
+                detected labels. The label rules, "Car>90" unless configured, decide if a image is enqueued, while the
+                forward rules, "Person>90" unless configured, are carried forward so the person recognition stage does
+                not need to detect labels again. Each thread evaluates every image into a result of its own, kept in
+                labelResults, so no result is allocated per image.
+
+                7. checkpointInterval: this variable is used to set after how many images the queued messages are
+                flushed and the progress of the run is saved.
+
+                8. maxImages: this variable is used to split a large bucket into chunks. A run stops after this many
+                images, without the stop signal, and the next run resumes after them. Zero processes the whole bucket.
+
+                9. shardIndex and shardCount: these variables are used to split the bucket across several producers,
+                each run with the same shard count and its own shard index. Every producer only processes the keys of
+                its shard and sends a stop marker for its shard, and the later stages stop once every shard is done.
+
+                10. messageGroups: this variable is used to spread the images over several message groups of the car
+                indexes queue by the hash of the image name. A FIFO queue only delivers one group in order at a time,
+                so more groups let more consumers work at once, while each group keeps its own order.
+
+                11. asyncConcurrency: this variable is used in the async execution mode, set by the
+                car_recognition.execution_mode property, to set how many detect labels requests may be in flight at
+                once on the non blocking Rekognition client. It is set by the car_recognition.async_concurrency
+                property.
+
+                12. metricsFile: this variable is used to set the file that a snapshot of the metrics of the run is
+                appended to every car_recognition.metrics_interval seconds, and once more at the end of the run. No
+                metrics are written when the car_recognition.metrics_file property is not set.
+
+                13. rekognitionLimiter: this variable is used to bound the detect labels requests in flight by a limit
+                that grows while Rekognition answers quickly and is cut when it throttles, and to retry throttled
+                requests with a backoff. It is shared by every worker, or by every request of the async execution
+                mode, and is tuned by the car_recognition.limiter.* and car_recognition.detection.* properties. When
+                the car_recognition.rekognition_tps property is set, every attempt, retries included, also takes a
+                token from a bucket refilled at that rate, to stay under a fixed Rekognition TPS limit. It is off by
+                default, which leaves the rate to the adapting limit alone.
 
         */
-        bucketName = "cs442-unr";
-        queueURL = "https://sqs.us-west-2.amazonaws.com/608375520976/car_indexes.fifo";
+        // Note: each setting named by a car_recognition.* property below can also be set by its CAR_RECOGNITION_*
+        // environment variable or in the file set by car_recognition.config_file, as read by the PipelineConfig.
+        bucketName = config.string("bucket", "cs442-unr");
+        queueURL = config.string("queue_url", "https://sqs.us-west-2.amazonaws.com/608375520976/car_indexes.fifo");
+        imagePrefix = config.string("prefix", "");
+        imageSuffixes = config.string("suffixes", ".jpg,.jpeg,.png");
+        concurrency = DependencyFactory.concurrency(config);
+        asyncConcurrency = DependencyFactory.asyncConcurrency(config);
+        List<LabelRuleEngine.LabelRule> label_rules = new ArrayList<LabelRuleEngine.LabelRule>();
+        label_rules.addAll(LabelRuleEngine.load_rules(config.string("label_rules_file"), config.string("label_rules", "Car>90"), true));
+        label_rules.addAll(LabelRuleEngine.parse_rules(config.string("forward_rules", "Person>90"), false));
+        labelRules = new LabelRuleEngine(label_rules);
+        labelResults = ThreadLocal.withInitial(labelRules::newResult);
+        checkpointInterval = Math.max(1, config.integer("checkpoint_interval", 500));
+        maxImages = Math.max(0, config.integer("max_images", 0));
+        shardIndex = config.integer("shard_index", 0);
+        shardCount = config.integer("shard_count", 1);
+        messageGroups = Math.max(1, config.integer("message_groups", 1));
+        metricsFile = config.string("metrics_file", "");
+        rekognitionLimiter = AdaptiveLimiter.from_config(config, "rekognition", rekognitionAsyncClient == null ? concurrency : asyncConcurrency);
+        PipelineMetrics.start_reporting(metricsFile, config.integer("metrics_interval", 10));
+        // Note: a shard index outside of the shard count fails here, before any image is processed.
+        StopMarker.of(shardIndex, shardCount);
 
         /*
 
@@ -53,36 +191,72 @@ public class CarRecognition {
                 by the pipeline.
 
                 2. rekognitionClient: this service is used to create the labels as part of processing. The labels to be
-                identified by the client are Cars found in the image with 90% or more confidence.
+                identified by the client are Cars found in the image with 90% or more confidence. In the async
+                execution mode, the labels are created by the non blocking rekognitionAsyncClient instead. The
+                DependencyFactory only builds the client of the selected mode, and leaves the other one null.
 
                 3. sqsClient: this service is used to communicate to the car indexes queue when a image has been
                 processed with the required parameters.
 
-        */
-        s3Client = DependencyFactory.s3Client();
-        rekognitionClient = DependencyFactory.rekognitionClient();
-        sqsClient = DependencyFactory.sqsClient();
+                4. messageSender: this service is used to group the processed images into batches of up to 10
+                messages before they are sent to the car indexes queue.
 
-        // Note: this code downloads the image names that are within the set bucket and then stores each entry in a
-        // list.
-        List<String> image_names = download_bucket_image_names();
+                5. labelCache: this service is used to keep the labels of every processed image, so a image that has
+                not changed since a earlier run is not sent to Rekognition again. Its file keeps up to
+                car_recognition.label_cache_file_entries images, 200000 unless configured, and is compacted to the
+                most recently used of them once it holds more.
 
-        // Note: this loop iterates through each image in the image_names list and then processes for cars.
-        for (String image : image_names) {
+                6. imagePreprocessor: this service is used in the "bytes" image mode to fetch each image, scale it down
+                or crop it to car_recognition.max_dimension, and send it to Rekognition as bytes. In the default "s3"
+                image mode it is not created and Rekognition reads the images from the bucket itself.
 
-            // Note: when iterating through each image, the image is checked for a car detected, when detected its added to
-            // the car index queue.
-            if (is_car_detected(image)) {
-                enqueue_image(image);
-            }
+                7. progressLog: this service is used to save the key the run has got to and the verdict of every
+                image, so a stopped run resumes after its last checkpoint and unchanged images are not classified
+                again. It is kept in the file set by car_recognition.progress_log, and is not used when the property
+                is empty.
 
+        */
+        this.s3Client = s3Client;
+        this.rekognitionClient = rekognitionClient;
+        this.rekognitionAsyncClient = rekognitionAsyncClient;
+        this.sqsClient = sqsClient;
+        this.messageSender = new BatchingMessageSender(sqsClient, queueURL, 100, 5);
+        this.labelCache = open_label_cache(config.string("label_cache", "label_cache.bin"), config.integer("label_cache_file_entries", 200000));
+        this.progressLog = open_progress_log(config.string("progress_log", shardCount > 1 ? "progress-" + shardIndex + "-of-" + shardCount + ".log" : "progress.log"));
+        this.imagePreprocessor = ImagePreprocessor.create(s3Client, config.string("image_mode", "s3"), config.integer("max_dimension", 1920), config.string("resize", "scale"), concurrency);
+
+        // Note: this code streams the image names that are within the set bucket while each image is processed for
+        // cars, with detected cars added to the car index queue in the same order as the bucket listing.
+        boolean listing_complete = false;
+        try (BucketImageLister image_names = download_bucket_image_names()) {
+            listing_complete = process_images(image_names);
+        } catch (S3Exception e) {
+            System.err.println(e);
+            System.exit(1);
         }
+        checkpoint_progress();
 
         // Note: this code runs after each image identified from the bucket has been iterated in which the stop signal
-        // is the added to the queue after processing.
-        enqueue_stop();
+        // is the added to the queue after processing. A run that stopped at the end of a chunk leaves the stop signal
+        // to the run that finishes the bucket.
+        if (listing_complete) {
+            enqueue_stop();
+            complete_progress();
+        } else {
+            System.out.println("Chunk Complete - next run resumes after: " + lastCompletedKey);
+        }
 
-        rekognitionClient.close();
+        messageSender.close();
+        System.out.println(rekognitionLimiter.statistics());
+        close_progress_log();
+        close_label_cache();
+        PipelineMetrics.stop_reporting(metricsFile);
+        if (rekognitionClient != null) {
+            rekognitionClient.close();
+        }
+        if (rekognitionAsyncClient != null) {
+            rekognitionAsyncClient.close();
+        }
         s3Client.close();
         sqsClient.close();
 
@@ -92,32 +266,275 @@ public class CarRecognition {
         new CarRecognition();
     }
 
+    /*
+
+        process_images: this function is responsible for running car detection for many images at once while keeping
+        the car index queue in the order of the passed in image objects.
+
+        Summary: The function creates a fixed pool of worker threads sized by the concurrency setting. Each image is
+        submitted to the pool as a detection task, and the resulting future is kept in a window of pending results.
+        A image whose unchanged version already has a verdict in the progress log reuses it instead of being
+        classified again. Once the window is full, the oldest result is waited on and, when a car was detected, the
+        image is enqueued before another image is submitted. This bounds the number of outstanding requests while the
+        queue only ever sees images in listing order. After every image has been submitted, the remaining results are
+        drained in the same order so that the stop signal is sent strictly after the last car. The function returns
+        false when it stopped at the end of a chunk rather than at the end of the listing.
+
+        In the async execution mode, the detection of each image is instead composed from non blocking stages by
+        detect_verdict_async(), and the window grows to the async concurrency, so this thread alone keeps that many
+        requests in flight. The pool then only runs the CPU bound image preprocessing of the bytes image mode, and the
+        window still holds back the listing once it is full, which is the backpressure of the pipeline.
+
+    */
+    private boolean process_images(Iterable<software.amazon.awssdk.services.s3.model.S3Object> image_objects) {
+
+        ExecutorService detection_pool = Executors.newFixedThreadPool(concurrency);
+        Deque<software.amazon.awssdk.services.s3.model.S3Object> pending_images = new ArrayDeque<software.amazon.awssdk.services.s3.model.S3Object>();
+        Deque<Future<ProgressLog.Verdict>> pending_verdicts = new ArrayDeque<Future<ProgressLog.Verdict>>();
+        int window = rekognitionAsyncClient == null ? concurrency * 4 : asyncConcurrency;
+        int submitted_images = 0;
+        boolean listing_complete = true;
+
+        try {
+            for (final software.amazon.awssdk.services.s3.model.S3Object image_object : image_objects) {
+
+                if (maxImages > 0 && submitted_images >= maxImages) {
+                    listing_complete = false;
+                    break;
+                }
+                submitted_images++;
+
+                ProgressLog.Verdict known_verdict = progressLog == null ? null : progressLog.verdict(image_object.key(), image_object.eTag());
+
+                pending_images.add(image_object);
+                if (known_verdict != null) {
+                    VERDICTS_REUSED.increment();
+                    if (DEBUG_LOGGING) {
+                        System.out.println("Reusing Verdict: " + image_object.key());
+                    }
+                    pending_verdicts.add(CompletableFuture.completedFuture(known_verdict));
+                } else if (rekognitionAsyncClient != null) {
+                    pending_verdicts.add(detect_verdict_async(image_object.key(), image_object.eTag(), detection_pool));
+                } else {
+                    pending_verdicts.add(detection_pool.submit(() -> detect_verdict(image_object.key(), image_object.eTag())));
+                }
+
+                if (pending_verdicts.size() >= window) {
+                    complete_image(pending_images.poll(), pending_verdicts.poll());
+                }
+
+            }
+
+            while (!pending_verdicts.isEmpty()) {
+                complete_image(pending_images.poll(), pending_verdicts.poll());
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while detecting labels", e);
+        } finally {
+            detection_pool.shutdownNow();
+        }
+
+        return listing_complete;
+
+    }
+
+    /*
+
+        complete_image: this function waits on the verdict of a image and enqueues the image, together with the labels
+        matched by the label rules, when a car was detected. The verdict is then kept in the progress log, which is
+        checkpointed every checkpointInterval images. Failures other than those handled by generate_image_labels() are
+        passed on to the caller as they would be in a serial loop.
+
+    */
+    private void complete_image(software.amazon.awssdk.services.s3.model.S3Object image_object, Future<ProgressLog.Verdict> image_verdict) {
+
+        String image_name = image_object.key();
+
+        try {
+            ProgressLog.Verdict verdict = image_verdict.get();
+            if (verdict != null && verdict.accepted()) {
+                enqueue_image(image_name, image_object.eTag(), verdict.payload());
+            }
+
+            // Note: a image whose labels could not be detected has no verdict, so it is classified again next pass.
+            if (progressLog != null && verdict != null) {
+                progressLog.record(image_name, image_object.eTag(), verdict.accepted(), verdict.payload());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while detecting: " + image_name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed detecting: " + image_name, e.getCause());
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+        completedImages++;
+        IMAGES_COMPLETED.increment();
+        lastCompletedKey = image_name;
+        if (completedImages % checkpointInterval == 0) {
+            checkpoint_progress();
+        }
+
+    }
+
+    /*
+
+        detect_verdict: this function classifies a image on a worker thread and decides if a car was detected, or
+        returns null when no labels could be detected for the image.
+
+    */
+    private ProgressLog.Verdict detect_verdict(String image_name, String e_tag) throws InterruptedException {
+
+        return verdict(image_name, e_tag, classify_image(image_name, e_tag));
+    }
+
+    /*
+
+        detect_verdict_async: this function decides if a car was detected in a image without blocking a thread on the
+        request, or completes with null when no labels could be detected for the image.
+
+        Summary: The function follows generate_image_labels() and detect_verdict() as a chain of stages. Labels of the
+        same version of the image in the label cache complete the verdict at once. Otherwise, the image is prepared on
+        the passed in pool in the bytes image mode or referenced as a S3Object, and the detect labels request is sent
+        through the non blocking Rekognition client once the Rekognition limiter has a place for it, which also retries
+        it when it is throttled. When the response arrives, the labels are stored in the label cache and evaluated by
+        the label rules on the thread that completed the request. A failed request is handled as in
+        generate_image_labels(), while any other failure completes the verdict exceptionally so that complete_image()
+        passes it on.
+
+    */
+    private CompletableFuture<ProgressLog.Verdict> detect_verdict_async(String image_name, String e_tag, ExecutorService preprocess_pool) throws InterruptedException {
+
+        if (labelCache != null) {
+            List<Label> cached_labels = labelCache.get(bucketName, image_name, e_tag);
+            if (cached_labels != null) {
+                LABEL_CACHE_HITS.increment();
+                return CompletableFuture.completedFuture(verdict(image_name, e_tag, evaluate_labels(cached_labels)));
+            }
+            LABEL_CACHE_MISSES.increment();
+        }
+
+        if (DEBUG_LOGGING) {
+            System.out.println("Getting labels: " + image_name);
+        }
+
+        CompletableFuture<Image> unlabeled_image;
+        if (imagePreprocessor == null) {
+            unlabeled_image = CompletableFuture.completedFuture(null);
+        } else {
+            unlabeled_image = CompletableFuture.supplyAsync(() -> imagePreprocessor.image(bucketName, image_name), preprocess_pool);
+        }
+
+        return unlabeled_image.thenCompose(image -> {
+            if (image == null) {
+                S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+                image = Image.builder().s3Object(retrieved_image).build();
+            }
+            DetectLabelsRequest labels_request = DetectLabelsRequest.builder().image(image).build();
+            return rekognitionLimiter.call_async(() -> {
+                long requested = System.nanoTime();
+                return rekognitionAsyncClient.detectLabels(labels_request).whenComplete((labels_response, failure) -> DETECT_LABELS.record_since(requested));
+            });
+        }).thenApply(labels_response -> {
+            if (labelCache != null) {
+                labelCache.put(bucketName, image_name, e_tag, labels_response.labels());
+            }
+            return verdict(image_name, e_tag, evaluate_labels(labels_response.labels()));
+        }).exceptionally(failure -> {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof RekognitionException) {
+                DETECT_LABELS_ERRORS.increment();
+            }
+            if (!(cause instanceof RekognitionException) || RetryClassifier.classify((RekognitionException) cause) != RetryClassifier.Classification.PERMANENT) {
+                throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(cause);
+            }
+            System.err.println(cause);
+            return verdict(image_name, e_tag, null);
+        });
+
+    }
+
+    private ProgressLog.Verdict verdict(String image_name, String e_tag, LabelRuleEngine.Result label_result) {
+
+        boolean car_detected = is_car_detected(image_name, label_result);
+
+        if (label_result == null) {
+            return null;
+        }
+
+        return new ProgressLog.Verdict(e_tag, car_detected, label_result.payload());
+    }
+
     /*
 
         generate_image_labels: this function is responsible for grabbing the labels from a image given a image name.
 
-        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name.
+        Summary: The function takes in a image and its ETag, and first checks the label cache for labels of the same
+        version of the image, which are returned without calling Rekognition. Otherwise, the image is grabbed as a
+        S3Object using the passed in image name, or in the bytes image mode as the scaled down bytes of the image from
+        the image preprocessor.
         From this, a Image object is created in which the returned S3Object is used to create the image object.
         This image object is then used to create a request object for labels in which is executed by the detect labels
-        function of Rekognition. This action results in a list of Label objects which are then returned. If no labels
-        are detected, then the function returns null.
+        function of Rekognition, once the Rekognition limiter has a place for it. This action results in a list of
+        Label objects which are stored in the label cache and then returned. A throttled or transient failure is
+        retried by the limiter, and once its attempts run out it is thrown, ending the run rather than leaving the
+        image out of the queue, so a resumed run picks the image up again after the last checkpoint. A permanent
+        failure of the image, such as a image that is not a supported format, would fail on every attempt, so the
+        function returns null for it as no labels were detected. A rejected request, such as access denied or expired
+        credentials, is thrown at once and ends the run in the same way, as it says nothing about the image.
 
     */
-    private List<Label> generate_image_labels(String image_name) {
+    private List<Label> generate_image_labels(String image_name, String e_tag) throws InterruptedException {
+
+        if (labelCache != null) {
+            List<Label> cached_labels = labelCache.get(bucketName, image_name, e_tag);
+            if (cached_labels != null) {
+                LABEL_CACHE_HITS.increment();
+                return cached_labels;
+            }
+            LABEL_CACHE_MISSES.increment();
+        }
+
 
         try {
-            System.out.println("Getting labels: " + image_name);
-            S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+            if (DEBUG_LOGGING) {
+                System.out.println("Getting labels: " + image_name);
+            }
+            Image unlabeled_image = imagePreprocessor == null ? null : imagePreprocessor.image(bucketName, image_name);
 
-            Image unlabeled_image = Image.builder().s3Object(retrieved_image).build();
+            if (unlabeled_image == null) {
+                S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+                unlabeled_image = Image.builder().s3Object(retrieved_image).build();
+            }
 
             DetectLabelsRequest labels_request = DetectLabelsRequest.builder().image(unlabeled_image).build();
 
-            DetectLabelsResponse labels_response = rekognitionClient.detectLabels(labels_request);
-
+            DetectLabelsResponse labels_response = rekognitionLimiter.call(() -> {
+                long requested = System.nanoTime();
+                try {
+                    return rekognitionClient.detectLabels(labels_request);
+                } finally {
+                    DETECT_LABELS.record_since(requested);
+                }
+            });
+
+            if (labelCache != null) {
+                labelCache.put(bucketName, image_name, e_tag, labels_response.labels());
+            }
             return labels_response.labels();
 
         } catch (RekognitionException e) {
+            DETECT_LABELS_ERRORS.increment();
+            if (RetryClassifier.classify(e) != RetryClassifier.Classification.PERMANENT) {
+                throw e;
+            }
             System.err.println(e);
         }
 
@@ -125,92 +542,236 @@ public class CarRecognition {
 
     }
 
+    /*
+
+        classify_image: this function is responsible for evaluating every label rule of the application against the
+        labels of a image.
+
+        Summary: The function takes in a image name and ETag, in which labels are detected using the helper function
+        generate_image_labels(). The labels are then passed once through the label rule engine, which finds the
+        confidence of "Car" and of every other rule label, such as "Person", from the same response. The result of the
+        rules is returned, or null when no labels could be detected.
+
+    */
+    private LabelRuleEngine.Result classify_image(String image_name, String e_tag) throws InterruptedException {
+        List<Label> image_labels = generate_image_labels(image_name, e_tag);
+
+        if (image_labels == null) {
+            return null;
+        }
+
+        return evaluate_labels(image_labels);
+    }
+
+    /*
+
+        evaluate_labels: this function evaluates the label rules into the result kept by the calling thread, so no
+        result is allocated per image. The result is only valid until the thread evaluates another image, which is
+        safe as verdict() takes the decision and the payload from it before the thread moves on, on the worker threads,
+        on the threads that complete the async requests, and on this thread for the labels found in the label cache.
+
+    */
+    private LabelRuleEngine.Result evaluate_labels(List<Label> image_labels) {
+        LabelRuleEngine.Result label_result = labelResults.get();
+        labelRules.evaluate(image_labels, label_result);
+        return label_result;
+    }
+
     /*
 
         is_car_detected: this function is responsible for ensuring the required confidence levels are met for image
         processing.
 
-        Summary: The function takes in a image name, in which labels are detected using the helper function
-        generate_image_labels(). The labels of the image are saved in a list of Label objects in which each label
-        object is iterated. During each iteration, the image label is checked for the label for "Car"
-        and label confidence is greater than 90%. If that requirement is met, then the function stops and returns a
-        boolean to state a image is found with a car with high confidence. Otherwise, the function returns false.
+        Summary: The function takes in a image name and the result of the label rules for the image. The result is
+        checked for every required label rule, which by default is the label for "Car" with a label confidence greater
+        than 90%. If that requirement is met, then the function returns a boolean to state a image is found with a car
+        with high confidence. Otherwise, the function returns false.
 
     */
-    private boolean is_car_detected(String image_name) {
-        List<Label> image_labels = generate_image_labels(image_name);
+    private boolean is_car_detected(String image_name, LabelRuleEngine.Result label_result) {
 
-        if (image_labels == null) {
+        if (label_result == null) {
+            if (DEBUG_LOGGING) {
+                System.out.println("Car Not Detected: " + image_name);
+            }
             return false;
         }
 
-        for (Label label : image_labels) {
-            if (label.name().equals("Car") && (label.confidence() > 90.0F)) {
-                System.out.println("Car Detected: " + image_name + " Confidence: " + label.confidence());
-                return true;
-            } else if (label.name().equals("Car") && (label.confidence() <= 90.0F)) {
-                System.out.println("Car Not Detected: " + image_name + " Confidence: " + label.confidence());
+        if (label_result.accepted()) {
+            if (DEBUG_LOGGING) {
+                System.out.println("Car Detected: " + image_name + " Labels: " + label_result.payload());
             }
+            return true;
         }
 
-        System.out.println("Car Not Detected: " + image_name);
-
+        if (DEBUG_LOGGING) {
+            System.out.println("Car Not Detected: " + image_name + " Labels: " + label_result.payload());
+        }
         return false;
     }
 
     /*
 
-        download_bucket_image_names: this function downloads the name of files within the initialized S3 bucket.
-
-        Summary: The function prepares a list in which is used to store strings. After preparing the list, a request object
-        is created to request the list of objects in the bucket. This request would be used to develop the response object
-        in which the response contains a list of the S3 contents. This would be stored in a variable called images. The image
-        variable gets iterated with each iteration grabbing the key value of the object. The key value would be the name of
-        S3 Object in which is then added to the image list prepared earlier. Once iteration is completed without issues, it
-        is returned.
+        open_label_cache: this function opens the label cache stored in the passed in file. The cache only saves
+        Rekognition calls, so when the file can not be used the run carries on without it.
 
     */
-    private List<String> download_bucket_image_names() {
+    private static LabelCache open_label_cache(String cache_file, int file_entries) {
 
-        List<String> image_list = new ArrayList<String>();
+        try {
+            return new LabelCache(cache_file, 10000, file_entries);
+        } catch (IOException e) {
+            System.err.println("Label Cache Disabled: " + e);
+            return null;
+        }
 
+    }
+
+    private void close_label_cache() {
+
+        if (labelCache == null) {
+            return;
+        }
+
+        System.out.println(labelCache.statistics());
         try {
-            ListObjectsRequest bucket_objects_request = ListObjectsRequest.builder().bucket(bucketName).build();
-            ListObjectsResponse bucket_objects_response = s3Client.listObjects(bucket_objects_request);
-            List<software.amazon.awssdk.services.s3.model.S3Object> images = bucket_objects_response.contents();
+            labelCache.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
 
+    }
+
+    /*
+
+        open_progress_log: this function opens the progress log stored in the passed in file for the current label
+        rules. A run without a progress log processes the whole bucket, so when the file can not be used the run
+        carries on without it.
 
-            for (software.amazon.awssdk.services.s3.model.S3Object image_object : images) {
-                image_list.add(image_object.key());
+    */
+    private ProgressLog open_progress_log(String log_file) {
+
+        if (log_file.isEmpty()) {
+            return null;
+        }
+
+        try {
+            ProgressLog progress_log = new ProgressLog(log_file, labelRules.describe());
+            if (progress_log.resumeAfter() != null) {
+                System.out.println("Resuming After: " + progress_log.resumeAfter());
             }
+            return progress_log;
+        } catch (IOException e) {
+            System.err.println("Progress Log Disabled: " + e);
+            return null;
+        }
 
-        } catch (S3Exception e) {
+    }
+
+    /*
+
+        checkpoint_progress: this function flushes every queued message and then saves the verdicts and the key of the
+        last completed image, so the progress log never records a image whose message could still be lost.
+
+    */
+    private void checkpoint_progress() {
+
+        if (progressLog == null || lastCompletedKey == null) {
+            return;
+        }
+
+        messageSender.flush();
+        try {
+            progressLog.checkpoint(lastCompletedKey);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+    }
+
+    private void complete_progress() {
+
+        if (progressLog == null) {
+            return;
+        }
+
+        try {
+            progressLog.complete_pass();
+        } catch (IOException e) {
             System.err.println(e);
             System.exit(1);
         }
 
-        return image_list;
+    }
+
+    private void close_progress_log() {
+
+        if (progressLog == null) {
+            return;
+        }
+
+        try {
+            progressLog.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
 
     }
 
     /*
 
-        enqueue_image: this function is used to enqueue image names to the car indexes queue. Images are added into a FIFO
-        list within a message group called car_indexes.
+        download_bucket_image_names: this function streams the name of image files within the initialized S3 bucket.
+
+        Summary: The function splits the configured suffix list into lower case entries and then creates a bucket
+        lister for the bucket, prefix, and suffixes. The lister walks the bucket one ListObjectsV2 page at a time using
+        continuation tokens, so buckets of more than 1000 objects are read in full. Only keys ending with one of the
+        suffixes are returned, which stops objects that are not images from costing a Rekognition call. Keys are
+        handed over as soon as their page arrives through a bounded buffer, which keeps memory flat for any bucket size.
+        When the progress log has a checkpoint, the listing starts after the checkpointed key, and when the bucket is
+        split into shards only the keys of the shard of this producer are returned.
+
+    */
+    private BucketImageLister download_bucket_image_names() {
+
+        List<String> suffixes = new ArrayList<String>();
+        for (String suffix : imageSuffixes.split(",")) {
+            if (!suffix.trim().isEmpty()) {
+                suffixes.add(suffix.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        String start_after = progressLog == null ? null : progressLog.resumeAfter();
+        return new BucketImageLister(s3Client, bucketName, imagePrefix, start_after, suffixes, 2000, shardIndex, shardCount);
+
+    }
+
+    /*
+
+        enqueue_image: this function is used to enqueue image names to the car indexes queue. Images are added into a
+        FIFO list within a message group called car_indexes, or when several message groups are set, within the group
+        car_indexes-<n> picked by the hash of the image name.
 
         Summary: The function prepares several variables used to define the deduplication_id and message_group_id used
-        to operate the queue. The request to send the passed in image name is built using the previously created
-        variables. Once created, the message is sent to the SQS queue for car indexes.
+        to operate the queue. The message body is the image name followed by a tab and the label payload, which carries
+        the rule labels found in the image so the next stage does not have to detect labels again, and then by a tab and
+        the ETag of the image from the listing, so the next stage can use its label cache without reading the ETag from
+        S3 again. The body is then handed to the message sender with the previously created variables, which sends it to
+        the SQS queue for car indexes as part of a batch.
 
     */
-    private void enqueue_image(String image_name) {
+    private void enqueue_image(String image_name, String e_tag, String label_payload) {
 
+        int group_index = message_group(image_name);
         String deduplication_id = "car_indexes:" + image_name;
-        String message_group_id = "car_indexes";
-        SendMessageRequest image_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody(image_name).messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
+        String message_group_id = messageGroups == 1 ? "car_indexes" : "car_indexes-" + group_index;
 
-        sqsClient.sendMessage(image_request);
-        System.out.println("Enqueuing Image: " + image_name);
+        String message_body = e_tag == null ? image_name + "\t" + label_payload : image_name + "\t" + label_payload + "\t" + e_tag;
+        messageSender.send(message_body, deduplication_id, message_group_id);
+        IMAGES_ENQUEUED.increment();
+        if (DEBUG_LOGGING) {
+            System.out.println("Enqueuing Image: " + image_name);
+        }
     }
 
     /*
@@ -218,21 +779,50 @@ public class CarRecognition {
         enqueue_stop: this function is used to enqueue the stop signal which reports that all images have been processed
         and sent to the queue.
 
-        Summary: The function prepares several variables used to define the deduplication_id and message_group_id used
-        to operate the queue. The request then attaches a "-1" to the deduplication_id to ensure the message does not
-        get lost and is sent last. The request to send the stop signal is built using the previously created
-        variables. Once created, the message is sent to the SQS queue for car indexes.
+        Summary: The function first flushes the message sender so that every batched image has been accepted by the
+        queue before the stop signal. It then prepares several variables used to define the deduplication_id and
+        message_group_id used to operate the queue. The request then attaches a "-1" to the deduplication_id to ensure
+        the message does not get lost and is sent last. When the bucket is split into shards, the stop marker of the
+        shard of this producer, such as "-1:0:4", is sent in place of "-1" with a deduplication_id of its own, so the
+        markers of different shards are never deduplicated against each other. When several message groups are set, a
+        stop marker is sent at the end of every group, as the order of the queue only holds within a group. The request
+        to send the stop signal is built using the previously created variables. Once created, the message is sent to
+        the SQS queue for car indexes.
 
     */
     private void enqueue_stop() {
 
-        String deduplication_id = "car_indexes:" + "-1";
-        String message_group_id = "car_indexes";
-        SendMessageRequest stop_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody("-1").messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
+        messageSender.flush();
+
+        for (int group_index = 0; group_index < messageGroups; group_index++) {
+
+            StopMarker stop_marker = StopMarker.of(shardIndex, shardCount);
+            String message_group_id = "car_indexes";
+            if (messageGroups > 1) {
+                stop_marker = StopMarker.of(shardIndex, shardCount, group_index, messageGroups);
+                message_group_id = "car_indexes-" + group_index;
+            }
+
+            String stop_body = stop_marker.body();
+            String deduplication_id = "car_indexes:" + stop_body;
+            SendMessageRequest stop_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody(stop_body).messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
+
+            long sent = System.nanoTime();
+            sqsClient.sendMessage(stop_request);
+            SEND_MESSAGE.record_since(sent);
+            System.out.println("Enqueuing Stop Message: " + stop_body);
+        }
+
+    }
 
-        sqsClient.sendMessage(stop_request);
-        System.out.println("Enqueuing Stop Message");
+    /*
+
+        message_group: this function picks the message group of a image from the hash of its name. The hash is mixed
+        before it is used, so that the group does not follow the shard, which is picked from the same hash.
 
+    */
+    private int message_group(String image_name) {
+        return ((image_name.hashCode() * 0x9E3779B9) >>> 1) % messageGroups;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,347 @@
+package cs642.pa2.car_recognition;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+
+    ProgressLog: a durable record of how far a pass over the bucket has got, so a run that stops part way through
+    resumes after the last checkpoint instead of starting over. The log also keeps the verdict of every image, if a
+    car was detected and the label payload sent on, keyed by the key and ETag of the image, so a image that has not
+    changed is not classified again in a later pass.
+
+    The log is a append only local file of records, each a int length followed by a record type and its fields:
+
+        verdict         key, ETag, accepted and payload of a image that has been processed
+        checkpoint      key of the last image of the pass whose message has been accepted by the queue
+        pass complete   the stop signal of the pass has been sent, so the next run starts a new pass
+        rules           the label rules the verdicts after it were decided with
+
+    Verdicts are held in memory and only written at a checkpoint, after the message sender has been flushed, so the
+    log never gets ahead of the queue. A image processed after the last checkpoint of a run that stopped is processed
+    again on resume, and its message may be sent twice when the resume comes after the deduplication window of the
+    queue, which is bounded by the checkpoint interval. Each new pass appends the verdicts of the bucket again, so the
+    file is compacted down to the latest verdict of each key once it is mostly superseded records. Verdicts decided
+    with other label rules than the current ones are dropped, as their payload no longer matches the rules.
+
+*/
+public class ProgressLog implements AutoCloseable {
+
+    private static final int FILE_MAGIC = 0x50524731;
+
+    private static final byte RECORD_VERDICT = 1;
+    private static final byte RECORD_CHECKPOINT = 2;
+    private static final byte RECORD_PASS_COMPLETE = 3;
+    private static final byte RECORD_RULES = 4;
+
+    // Note: the least number of superseded records before the file is compacted, so small logs are left alone.
+    private static final long MIN_COMPACTION_RECORDS = 10000;
+
+    private final Path logPath;
+    private final Map<String, Verdict> verdicts = new HashMap<String, Verdict>();
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+
+    private final String rules;
+
+    private FileChannel channel;
+    private String resumeAfter;
+    private String loadedRules = "";
+    private long fileRecords;
+
+    public ProgressLog(String logFile, String rules) throws IOException {
+
+        this.logPath = Paths.get(logFile);
+        this.rules = rules;
+        this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        load_records();
+        if (!rules.equals(loadedRules)) {
+            verdicts.clear();
+            append_record(rules_record());
+            write_pending();
+        }
+        compact_if_needed();
+
+    }
+
+    /*
+
+        resumeAfter: this function returns the key the current pass should continue after, or null when the last pass
+        was completed and a new pass starts at the beginning of the bucket.
+
+    */
+    public synchronized String resumeAfter() {
+        return resumeAfter;
+    }
+
+    /*
+
+        verdict: this function returns the verdict of a earlier pass for the same version of a image, or null when the
+        image is new or has changed.
+
+    */
+    public synchronized Verdict verdict(String key, String eTag) {
+
+        Verdict verdict = verdicts.get(key);
+        if (verdict == null || eTag == null || !eTag.equals(verdict.eTag)) {
+            return null;
+        }
+        return verdict;
+
+    }
+
+    /*
+
+        record: this function keeps the verdict of a processed image to be written at the next checkpoint.
+
+    */
+    public synchronized void record(String key, String eTag, boolean accepted, String payload) throws IOException {
+
+        if (eTag == null) {
+            return;
+        }
+
+        Verdict verdict = new Verdict(eTag, accepted, payload);
+        verdicts.put(key, verdict);
+        append_record(verdict_record(key, verdict));
+
+    }
+
+    /*
+
+        checkpoint: this function writes every verdict kept since the last checkpoint followed by the key the pass has
+        got to, and forces them to disk. The caller must have flushed the messages of those images to the queue.
+
+    */
+    public synchronized void checkpoint(String last_key) throws IOException {
+
+        append_record(checkpoint_record(last_key));
+
+        write_pending();
+        resumeAfter = last_key;
+        compact_if_needed();
+
+    }
+
+    /*
+
+        complete_pass: this function marks the pass as finished once its stop signal has been sent.
+
+    */
+    public synchronized void complete_pass() throws IOException {
+
+        ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+        new DataOutputStream(record_bytes).writeByte(RECORD_PASS_COMPLETE);
+        append_record(record_bytes);
+
+        write_pending();
+        resumeAfter = null;
+        compact_if_needed();
+
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static ByteArrayOutputStream verdict_record(String key, Verdict verdict) throws IOException {
+        ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(record_bytes);
+        record.writeByte(RECORD_VERDICT);
+        record.writeUTF(key);
+        record.writeUTF(verdict.eTag);
+        record.writeBoolean(verdict.accepted);
+        record.writeUTF(verdict.payload);
+        return record_bytes;
+    }
+
+    private static ByteArrayOutputStream checkpoint_record(String last_key) throws IOException {
+        ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(record_bytes);
+        record.writeByte(RECORD_CHECKPOINT);
+        record.writeUTF(last_key);
+        return record_bytes;
+    }
+
+    private ByteArrayOutputStream rules_record() throws IOException {
+        ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(record_bytes);
+        record.writeByte(RECORD_RULES);
+        record.writeUTF(rules);
+        return record_bytes;
+    }
+
+    private void append_record(ByteArrayOutputStream record_bytes) throws IOException {
+        DataOutputStream pending = new DataOutputStream(pendingRecords);
+        pending.writeInt(record_bytes.size());
+        record_bytes.writeTo(pending);
+        fileRecords++;
+    }
+
+    private void write_pending() throws IOException {
+
+        ByteBuffer records = ByteBuffer.wrap(pendingRecords.toByteArray());
+        channel.position(channel.size());
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        channel.force(false);
+        pendingRecords.reset();
+
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(4).putInt(FILE_MAGIC);
+        header.flip();
+        return header;
+    }
+
+    /*
+
+        load_records: this function reads every record of the log to rebuild the verdicts and the resume point. A new
+        file gets its header written, and a record cut short by a crash is dropped by truncating the file to the end of
+        the last complete record.
+
+    */
+    private void load_records() throws IOException {
+
+        if (channel.size() == 0) {
+            channel.write(header());
+            channel.force(false);
+            return;
+        }
+
+        long offset = 4;
+        try (DataInputStream records = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath), 64 * 1024))) {
+
+            if (records.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a progress log file: " + logPath);
+            }
+
+            try {
+                while (true) {
+                    byte[] record_bytes = new byte[records.readInt()];
+                    records.readFully(record_bytes);
+                    read_record(new DataInputStream(new ByteArrayInputStream(record_bytes)));
+                    offset += 4 + record_bytes.length;
+                    fileRecords++;
+                }
+            } catch (EOFException e) {
+                // Note: the end of the file, or the start of a record that was not written in full.
+            }
+        }
+
+        channel.truncate(offset);
+
+    }
+
+    private void read_record(DataInputStream record) throws IOException {
+
+        byte record_type = record.readByte();
+        if (record_type == RECORD_VERDICT) {
+            String key = record.readUTF();
+            String e_tag = record.readUTF();
+            boolean accepted = record.readBoolean();
+            verdicts.put(key, new Verdict(e_tag, accepted, record.readUTF()));
+        } else if (record_type == RECORD_CHECKPOINT) {
+            resumeAfter = record.readUTF();
+        } else if (record_type == RECORD_PASS_COMPLETE) {
+            resumeAfter = null;
+        } else if (record_type == RECORD_RULES) {
+            String record_rules = record.readUTF();
+            if (!record_rules.equals(loadedRules)) {
+                verdicts.clear();
+            }
+            loadedRules = record_rules;
+        } else {
+            throw new IOException("Unknown progress log record: " + record_type);
+        }
+
+    }
+
+    /*
+
+        compact_if_needed: this function rewrites the log with only the latest verdict of each key and the current
+        resume point once most of its records have been superseded. The compacted log is written to a new file that is
+        renamed over the log in a single step, so a crash during compaction leaves the old log in place.
+
+    */
+    private void compact_if_needed() throws IOException {
+
+        long superseded_records = fileRecords - verdicts.size() - 1;
+        if (superseded_records < MIN_COMPACTION_RECORDS || superseded_records < verdicts.size()) {
+            return;
+        }
+
+        System.out.println("Compacting Progress Log: " + fileRecords + " Records, " + verdicts.size() + " Verdicts");
+
+        fileRecords = 0;
+        append_record(rules_record());
+        for (Map.Entry<String, Verdict> verdict : verdicts.entrySet()) {
+            append_record(verdict_record(verdict.getKey(), verdict.getValue()));
+        }
+        if (resumeAfter != null) {
+            append_record(checkpoint_record(resumeAfter));
+        }
+
+        Path compacted_path = Paths.get(logPath + ".compacting");
+        try (FileChannel compacted = FileChannel.open(compacted_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            compacted.write(header());
+
+            ByteBuffer records = ByteBuffer.wrap(pendingRecords.toByteArray());
+            while (records.hasRemaining()) {
+                compacted.write(records);
+            }
+            compacted.force(false);
+        }
+        pendingRecords.reset();
+
+        channel.close();
+        Files.move(compacted_path, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    }
+
+    /*
+
+        Verdict: the outcome of a image in a earlier pass, if a car was detected and the label payload sent with it.
+
+    */
+    public static class Verdict {
+
+        private final String eTag;
+        private final boolean accepted;
+        private final String payload;
+
+        Verdict(String eTag, boolean accepted, String payload) {
+            this.eTag = eTag;
+            this.accepted = accepted;
+            this.payload = payload;
+        }
+
+        public boolean accepted() {
+            return accepted;
+        }
+
+        public String payload() {
+            return payload;
+        }
+
+    }
+
+}
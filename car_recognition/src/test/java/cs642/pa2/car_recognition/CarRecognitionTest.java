@@ -0,0 +1,415 @@
+package cs642.pa2.car_recognition;
+
+import cs642.pa2.pipeline_common.PipelineConfig;
+import cs642.pa2.pipeline_common.StopMarker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    CarRecognitionTest: runs car recognition over a small bucket whose detect labels requests finish out of order, and
+    checks that the car indexes queue still sees every car in listing order, with the stop signal last, in both the sync
+    and the async execution mode, that each message carries the labels and the ETag of its image, that the stop signal
+    of every message group is sent after the last car of the group, that a run limited to a chunk of the bucket ends
+    without the stop signal, and that the shards of a bucket each send their own cars and stop marker.
+
+    Every third image has no car. The latency of each request depends on its image, so with several requests in flight
+    the later images of the listing are often answered first, which is what the window of pending results has to hold
+    back.
+
+*/
+class CarRecognitionTest {
+
+    private static final String BUCKET_NAME = "test-bucket";
+    private static final String QUEUE_URL = "https://sqs.us-west-2.amazonaws.com/000000000000/car_indexes.fifo";
+    private static final int IMAGE_COUNT = 120;
+
+    private static int runs;
+
+    private Path directory;
+    private String prefix;
+
+    @BeforeEach
+    void create_directory() throws IOException {
+        directory = Files.createTempDirectory("car-recognition-test");
+        prefix = "car_recognition.test" + (runs++);
+    }
+
+    @AfterEach
+    void delete_directory() throws IOException {
+
+        for (String property : System.getProperties().stringPropertyNames()) {
+            if (property.startsWith(prefix + ".")) {
+                System.clearProperty(property);
+            }
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void cars_are_enqueued_in_listing_order() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        new CarRecognition(new ListingS3Client(), new DelayedRekognitionClient(), null, sqs_client, config(1, 0));
+
+        List<Message> messages = sqs_client.messages();
+        assertEquals(expected_cars(), image_names(messages, "car_indexes"));
+        assertEquals("-1", messages.get(messages.size() - 1).body);
+        assertEquals("car_indexes", messages.get(messages.size() - 1).groupId);
+    }
+
+    @Test
+    void cars_are_enqueued_in_listing_order_in_async_mode() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        new CarRecognition(new ListingS3Client(), null, new DelayedRekognitionAsyncClient(), sqs_client, config(1, 0));
+
+        List<Message> messages = sqs_client.messages();
+        assertEquals(expected_cars(), image_names(messages, "car_indexes"));
+        assertEquals("-1", messages.get(messages.size() - 1).body);
+    }
+
+    @Test
+    void message_body_carries_the_labels_and_etag() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        new CarRecognition(new ListingS3Client(), new DelayedRekognitionClient(), null, sqs_client, config(1, 0));
+
+        String[] fields = sqs_client.messages().get(0).body.split("\t");
+        assertEquals(3, fields.length);
+        assertEquals(key(0), fields[0]);
+        assertEquals("Car:97.0,Person:0.0", fields[1]);
+        assertEquals(e_tag(key(0)), fields[2]);
+    }
+
+    @Test
+    void stop_marker_of_every_group_follows_its_last_car() {
+
+        int message_groups = 3;
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        new CarRecognition(new ListingS3Client(), new DelayedRekognitionClient(), null, sqs_client, config(message_groups, 0));
+
+        List<Message> messages = sqs_client.messages();
+        List<String> cars = new ArrayList<String>();
+        boolean[] stopped = new boolean[message_groups];
+        for (Message message : messages) {
+            StopMarker stop_marker = StopMarker.parse(message.body);
+            if (stop_marker == null) {
+                int group_index = Integer.parseInt(message.groupId.substring("car_indexes-".length()));
+                assertTrue(!stopped[group_index], "image sent after the stop marker of its group: " + message.body);
+                cars.add(message.body.split("\t")[0]);
+                continue;
+            }
+
+            assertEquals(message_groups, stop_marker.groupCount());
+            assertEquals("car_indexes-" + stop_marker.groupIndex(), message.groupId);
+            stopped[stop_marker.groupIndex()] = true;
+        }
+
+        for (int group_index = 0; group_index < message_groups; group_index++) {
+            assertTrue(stopped[group_index], "no stop marker for group " + group_index);
+        }
+        // Note: the groups are interleaved in the queue, but the cars as a whole are still sent in listing order.
+        assertEquals(expected_cars(), cars);
+    }
+
+    @Test
+    void chunk_ends_without_the_stop_signal() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        new CarRecognition(new ListingS3Client(), new DelayedRekognitionClient(), null, sqs_client, config(1, 30));
+
+        List<Message> messages = sqs_client.messages();
+        assertEquals(expected_cars().subList(0, 20), image_names(messages, "car_indexes"));
+        for (Message message : messages) {
+            assertNull(StopMarker.parse(message.body));
+        }
+    }
+
+    @Test
+    void shards_split_the_bucket_and_each_send_their_own_stop_marker() {
+
+        int shard_count = 2;
+        List<String> cars = new ArrayList<String>();
+        for (int shard_index = 0; shard_index < shard_count; shard_index++) {
+            RecordingSqsClient sqs_client = new RecordingSqsClient();
+            new CarRecognition(new ListingS3Client(), new DelayedRekognitionClient(), null, sqs_client, config(1, 0, shard_index, shard_count));
+
+            List<Message> messages = sqs_client.messages();
+            List<String> shard_cars = image_names(messages, "car_indexes");
+            List<String> sorted_cars = new ArrayList<String>(shard_cars);
+            Collections.sort(sorted_cars);
+            assertEquals(sorted_cars, shard_cars);
+            assertEquals(StopMarker.of(shard_index, shard_count).body(), messages.get(messages.size() - 1).body);
+            cars.addAll(shard_cars);
+        }
+
+        // Note: every car is sent by exactly one of the shards.
+        Collections.sort(cars);
+        assertEquals(expected_cars(), cars);
+    }
+
+    private PipelineConfig config(int message_groups, int max_images) {
+        return config(message_groups, max_images, 0, 1);
+    }
+
+    private PipelineConfig config(int message_groups, int max_images, int shard_index, int shard_count) {
+
+        System.setProperty(prefix + ".bucket", BUCKET_NAME);
+        System.setProperty(prefix + ".queue_url", QUEUE_URL);
+        System.setProperty(prefix + ".label_cache", directory.resolve("label_cache.bin").toString());
+        System.setProperty(prefix + ".progress_log", "");
+        System.setProperty(prefix + ".concurrency", "8");
+        System.setProperty(prefix + ".async_concurrency", "16");
+        System.setProperty(prefix + ".message_groups", String.valueOf(message_groups));
+        System.setProperty(prefix + ".max_images", String.valueOf(max_images));
+        System.setProperty(prefix + ".shard_index", String.valueOf(shard_index));
+        System.setProperty(prefix + ".shard_count", String.valueOf(shard_count));
+        return PipelineConfig.load(prefix, "CAR_RECOGNITION_TEST_");
+    }
+
+    private static String key(int image_index) {
+        return String.format("image-%04d.jpg", image_index);
+    }
+
+    private static String e_tag(String key) {
+        return "\"" + Integer.toHexString(key.hashCode()) + "\"";
+    }
+
+    private static int image_index(String key) {
+        return Integer.parseInt(key.substring("image-".length(), key.length() - ".jpg".length()));
+    }
+
+    private static boolean has_car(int image_index) {
+        return image_index % 3 != 1;
+    }
+
+    private static List<String> expected_cars() {
+
+        List<String> cars = new ArrayList<String>();
+        for (int image_index = 0; image_index < IMAGE_COUNT; image_index++) {
+            if (has_car(image_index)) {
+                cars.add(key(image_index));
+            }
+        }
+        return cars;
+    }
+
+    // Note: the image names of the messages of a message group, with the stop signal left out.
+    private static List<String> image_names(List<Message> messages, String message_group_id) {
+
+        List<String> image_names = new ArrayList<String>();
+        for (Message message : messages) {
+            if (message.groupId.equals(message_group_id) && StopMarker.parse(message.body) == null) {
+                image_names.add(message.body.split("\t")[0]);
+            }
+        }
+        return image_names;
+    }
+
+    private static DetectLabelsResponse labels_response(DetectLabelsRequest labels_request) {
+
+        int image_index = image_index(labels_request.image().s3Object().name());
+        List<Label> labels = new ArrayList<Label>();
+        labels.add(label("Tree", 99.0F));
+        if (has_car(image_index)) {
+            labels.add(label("Car", 97.0F));
+        }
+        return DetectLabelsResponse.builder().labels(labels).build();
+    }
+
+    private static Label label(String name, float confidence) {
+        return Label.builder().name(name).confidence(confidence).parents(Collections.<Parent>emptyList()).instances(Collections.<Instance>emptyList()).build();
+    }
+
+    // Note: a latency of up to 5ms that falls over every six images of the listing, so the later images are answered
+    // first.
+    private static long latency_millis(DetectLabelsRequest labels_request) {
+        return (image_index(labels_request.image().s3Object().name()) * 5) % 6;
+    }
+
+    /*
+
+        ListingS3Client: a S3 client that lists the images of the test bucket, a page of 50 keys at a time.
+
+    */
+    private static final class ListingS3Client implements S3Client {
+
+        @Override
+        public ListObjectsV2Response listObjectsV2(ListObjectsV2Request list_request) {
+
+            int first = list_request.continuationToken() == null ? 0 : Integer.parseInt(list_request.continuationToken());
+            int last = Math.min(IMAGE_COUNT, first + 50);
+            List<S3Object> contents = new ArrayList<S3Object>();
+            for (int image_index = first; image_index < last; image_index++) {
+                contents.add(S3Object.builder().key(key(image_index)).eTag(e_tag(key(image_index))).build());
+            }
+
+            ListObjectsV2Response.Builder list_response = ListObjectsV2Response.builder().contents(contents).isTruncated(last < IMAGE_COUNT);
+            if (last < IMAGE_COUNT) {
+                list_response.nextContinuationToken(String.valueOf(last));
+            }
+            return list_response.build();
+        }
+
+        @Override
+        public ListObjectsV2Iterable listObjectsV2Paginator(ListObjectsV2Request list_request) {
+            return new ListObjectsV2Iterable(this, list_request);
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class DelayedRekognitionClient implements RekognitionClient {
+
+        @Override
+        public DetectLabelsResponse detectLabels(DetectLabelsRequest labels_request) {
+            try {
+                Thread.sleep(latency_millis(labels_request));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return labels_response(labels_request);
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class DelayedRekognitionAsyncClient implements RekognitionAsyncClient {
+
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "test-rekognition-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public CompletableFuture<DetectLabelsResponse> detectLabels(DetectLabelsRequest labels_request) {
+            CompletableFuture<DetectLabelsResponse> labels_future = new CompletableFuture<DetectLabelsResponse>();
+            timer.schedule(() -> labels_future.complete(labels_response(labels_request)), latency_millis(labels_request), TimeUnit.MILLISECONDS);
+            return labels_future;
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+            timer.shutdownNow();
+        }
+
+    }
+
+    /*
+
+        RecordingSqsClient: a SQS client that accepts every message and keeps them in the order they were queued.
+
+    */
+    private static final class RecordingSqsClient implements SqsClient {
+
+        private final List<Message> messages = new ArrayList<Message>();
+
+        synchronized List<Message> messages() {
+            return new ArrayList<Message>(messages);
+        }
+
+        @Override
+        public synchronized SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest batch_request) {
+
+            List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+            for (SendMessageBatchRequestEntry entry : batch_request.entries()) {
+                messages.add(new Message(entry.messageBody(), entry.messageGroupId()));
+                successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId("message-" + messages.size()).build());
+            }
+            return SendMessageBatchResponse.builder().successful(successful).failed(Collections.emptyList()).build();
+        }
+
+        @Override
+        public synchronized SendMessageResponse sendMessage(SendMessageRequest message_request) {
+            messages.add(new Message(message_request.messageBody(), message_request.messageGroupId()));
+            return SendMessageResponse.builder().messageId("message-" + messages.size()).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class Message {
+
+        private final String body;
+        private final String groupId;
+
+        private Message(String body, String groupId) {
+            this.body = body;
+            this.groupId = groupId;
+        }
+
+    }
+
+}
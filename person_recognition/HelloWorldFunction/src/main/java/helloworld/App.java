@@ -4,70 +4,224 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 
-import software.amazon.awssdk.regions.Region;
+import cs642.pa2.pipeline_common.AdaptiveLimiter;
+import cs642.pa2.pipeline_common.BatchingMessageSender;
+import cs642.pa2.pipeline_common.ImagePreprocessor;
+import cs642.pa2.pipeline_common.LabelCache;
+import cs642.pa2.pipeline_common.LabelRuleEngine;
+import cs642.pa2.pipeline_common.PipelineMetrics;
+import cs642.pa2.pipeline_common.RetryClassifier;
+import cs642.pa2.pipeline_common.StopMarker;
+
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.rekognition.model.*;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 
     App: The class runs a handle request handler that is used to process incoming SQS messages from the car indexes
     queue. The handler readies the necessary services to process incoming image names, process images, and then finally
-    execute code to add it to the people queue.
+    execute code to add it to the people queue. Records that could not be processed are reported back to Lambda as
+    batch item failures, so only those messages are delivered again.
 
 */
 
-public class App implements RequestHandler<SQSEvent, Void> {
+public class App implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    // Note: the rules a image needs to meet to be passed on to the people indexes queue, compiled once per container.
+    // They can be set with the LABEL_RULES environment variable, such as "Person>90" or "Person>90x2".
+    private static final LabelRuleEngine PERSON_RULES = new LabelRuleEngine(LabelRuleEngine.parse_rules(DependencyFactory.config().string("label_rules", "Person>90"), true));
+
+    // Metrics: these are the latencies and counts recorded by the container across its invocations. A snapshot is
+    // logged at the end of every invocation when the METRICS environment variable is "true". The per image lines of
+    // the log are only written when the LOG_LEVEL environment variable is "DEBUG".
+    private static final PipelineMetrics.Histogram DETECT_LABELS = PipelineMetrics.histogram("rekognition.detectLabels");
+    private static final PipelineMetrics.Histogram HEAD_OBJECT = PipelineMetrics.histogram("s3.headObject");
+    private static final PipelineMetrics.Histogram SEND_MESSAGE = PipelineMetrics.histogram("sqs.sendMessage");
+    private static final LongAdder DETECT_LABELS_ERRORS = PipelineMetrics.counter("rekognition.detectLabels.errors");
+    private static final LongAdder LABEL_CACHE_HITS = PipelineMetrics.counter("labelCache.hits");
+    private static final LongAdder LABEL_CACHE_MISSES = PipelineMetrics.counter("labelCache.misses");
+    private static final LongAdder PAYLOAD_DECISIONS = PipelineMetrics.counter("labelPayload.decisions");
+    private static final LongAdder IMAGES_ENQUEUED = PipelineMetrics.counter("images.enqueued");
+    private static final LongAdder FAILED_RECORDS = PipelineMetrics.counter("records.failed");
+    private static final boolean METRICS_LOGGING = DependencyFactory.config().flag("metrics", false);
+    private static final boolean DEBUG_LOGGING = "debug".equalsIgnoreCase(DependencyFactory.config().string("log_level", "INFO"));
+
     private LambdaLogger logger;
     private RekognitionClient rekognitionClient;
+    private AdaptiveLimiter rekognitionLimiter;
+    private S3Client s3Client;
+    private LabelCache labelCache;
+    private ImagePreprocessor imagePreprocessor;
     private SqsClient sqsClient;
+    private BatchingMessageSender messageSender;
     private String bucketName;
     private String queueURL;
 
+    // Note: the clients, bucket and queue passed in by a local run of the pipeline, which are used in place of the
+    // clients of the DependencyFactory and the bucket and queue of the deployed function. All are null when the
+    // handler is created by Lambda.
+    private final RekognitionClient localRekognitionClient;
+    private final S3Client localS3Client;
+    private final SqsClient localSqsClient;
+    private final String localBucketName;
+    private final String localQueueURL;
+
+    public App() {
+        this(null, null, null, null, null);
+    }
+
+    public App(RekognitionClient rekognitionClient, S3Client s3Client, SqsClient sqsClient, String bucketName, String queueURL) {
+        this.localRekognitionClient = rekognitionClient;
+        this.localS3Client = s3Client;
+        this.localSqsClient = sqsClient;
+        this.localBucketName = bucketName;
+        this.localQueueURL = queueURL;
+    }
+
     @Override
-    public Void handleRequest(SQSEvent event, Context context) {
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
 
         initialize_services(context);
         logger.log("Car Record Count: " + event.getRecords().size());
-        // Note: Iterate over all the records from a given SQS event and its attached records. Each message would be
-        // processed for each iteration.
-        for (SQSEvent.SQSMessage message : event.getRecords()) {
-
-            // Note: get the name of the image by accessing the message body.
-            String image = message.getBody();
-
-            // Note: if the stop signal is detected in the records, suspend processing as it means there will be no
-            // more items to process. Thus, pass along the stop signal by enqueuing the stop signal to the people indexes
-            // queue and then break the for-loop.
-            if (image.equals("-1")) {
-                System.out.println("Stop Detected - shutting down now");
-                enqueue_stop();
+
+        // Note: every image before the stop signal is checked for people at the same time on the detection pool, so
+        // the invocation waits on the slowest image rather than on the sum of all of them. The stop marker of a single
+        // shard is not the end of the queue, so it only holds a empty place among the detections.
+        List<SQSEvent.SQSMessage> records = event.getRecords();
+        List<Future<Boolean>> detections = new ArrayList<Future<Boolean>>();
+        for (SQSEvent.SQSMessage message : records) {
+
+            // Note: get the name of the image and the labels found by car recognition by accessing the message body.
+            final LabelPayload label_payload = LabelPayload.parse(message.getBody());
+            StopMarker stop_marker = StopMarker.parse(label_payload.image());
+            if (stop_marker != null && stop_marker.isFinal()) {
                 break;
             }
+            if (stop_marker != null) {
+                detections.add(null);
+                continue;
+            }
+
+            detections.add(DependencyFactory.detectionPool().submit(() -> {
+                if (DEBUG_LOGGING) {
+                    logger.log("Processing Image: " + label_payload.image());
+                }
+                return is_person_detected(label_payload);
+            }));
+
+        }
+
+        // Note: Iterate over all the records from a given SQS event in their original order. Each image is enqueued
+        // once its own result is in, which keeps the order of the people indexes queue the same as the car indexes
+        // queue. The record of each enqueued image is kept by the deduplication id of its message, so a message the
+        // sender fails to send later on is traced back to its record. The message sender of the invocation is closed
+        // however the invocation ends, as its linger timer thread would otherwise outlive the invocation, while the
+        // clients are kept by the DependencyFactory for the next invocation of this container.
+        int first_failed = records.size();
+        Map<String, Integer> enqueued_records = new HashMap<String, Integer>();
+        try {
+            for (int index = 0; index < first_failed; index++) {
+
+                SQSEvent.SQSMessage message = records.get(index);
+                String image = LabelPayload.parse(message.getBody()).image();
+
+                try {
+                    // Note: if the stop signal is detected in the records, suspend processing as it means there will be
+                    // no more items to process. The stop signal is only reached once every earlier record has been
+                    // evaluated and enqueued, so it is passed along by enqueuing the stop signal to the people indexes
+                    // queue and then the for-loop is stopped. The stop marker of a single shard or message group is
+                    // passed along in the same way, but the records after it still belong to the other shards or groups
+                    // and are processed.
+                    StopMarker stop_marker = StopMarker.parse(image);
+                    if (stop_marker != null) {
+                        enqueue_stop(stop_marker);
+                        if (stop_marker.isFinal()) {
+                            System.out.println("Stop Detected - shutting down now");
+                            break;
+                        }
+                        System.out.println("Shard Stop Detected: " + stop_marker.body());
+                        continue;
+                    }
+
+                    // Note: If a person is detected within a image, then the name of the current processing image name
+                    // is enqueued to the people indexes queue.
+                    if (detections.get(index).get()) {
+                        enqueued_records.put(enqueue_image(image, people_group(message)), index);
+                    }
+                } catch (ExecutionException e) {
+                    logger.log("Failed Image: " + image + " " + e.getCause());
+                    first_failed = index;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.log("Interrupted Image: " + image);
+                    first_failed = index;
+                } catch (BatchingMessageSender.SendFailure e) {
+                    logger.log("Failed Sending: " + image + " " + e.getMessage());
+                    first_failed = first_unsent(e, enqueued_records, index);
+                } catch (RuntimeException e) {
+                    // Note: any other failure of a record, such as the SQS client failing to send a stop signal, fails
+                    // the record and the records after it rather than the whole invocation.
+                    logger.log("Failed Record: " + image + " " + e);
+                    first_failed = index;
+                }
 
-            logger.log("Processing Image: " + image);
-            // Note: If a person is detected within a image, then the name of the current processing image name is
-            // enqueued to the people indexes queue.
-            if (is_person_detected(image)) {
-                enqueue_image(image);
             }
 
+            // Note: the images still batched are sent before the response is built, so a record is only reported as
+            // processed once its image is in the people indexes queue.
+            try {
+                this.messageSender.flush();
+            } catch (BatchingMessageSender.SendFailure e) {
+                logger.log("Failed Sending: " + e.getMessage());
+                first_failed = Math.min(first_failed, first_unsent(e, enqueued_records, records.size()));
+            }
+        } finally {
+            this.messageSender.close();
         }
 
-        this.rekognitionClient.close();
-        this.sqsClient.close();
+        // Note: the car indexes queue is a FIFO queue, so once a record has failed every record after it is also
+        // reported as a failure without being processed. This keeps the order of the queue when the failed record is
+        // delivered again, and keeps the stop signal behind it.
+        List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<SQSBatchResponse.BatchItemFailure>();
+        for (int index = first_failed; index < records.size(); index++) {
+            if (index < detections.size() && detections.get(index) != null) {
+                detections.get(index).cancel(true);
+            }
+            failures.add(new SQSBatchResponse.BatchItemFailure(records.get(index).getMessageId()));
+        }
 
-        return null;
+        if (labelCache != null) {
+            logger.log(labelCache.statistics());
+        }
+        FAILED_RECORDS.add(failures.size());
+        logger.log("Failed Record Count: " + failures.size());
+        if (METRICS_LOGGING) {
+            logger.log(rekognitionLimiter.statistics());
+            logger.log(PipelineMetrics.snapshot());
+        }
+        return new SQSBatchResponse(failures);
     }
 
     /*
 
         initialize_services: this function is used to initialize the necessary clients used to access AWS services.
+        The clients are shared by every invocation of the container, so only the first invocation pays to create them.
 
      */
     private void initialize_services(Context context) {
@@ -85,24 +239,55 @@ public class App implements RequestHandler<SQSEvent, Void> {
                 3. sqsClient: this service is used to communicate to the people indexes queue when a image has been
                 processed with the required parameters.
 
+                4. messageSender: this service is used to group the processed images into batches of up to 10
+                messages before they are sent to the people indexes queue. It is closed at the end of every invocation
+                so no batched message is left behind when the Lambda is frozen.
+
+                5. imagePreprocessor: this service is used when the IMAGE_MODE environment variable is "bytes" to send
+                images to Rekognition as scaled down bytes. It is null in the default "s3" image mode.
+
+                6. rekognitionLimiter: this service is used to bound the detect labels requests the container has in
+                flight by a limit that adapts to Rekognition throttling, and to retry throttled and transient failures
+                up to DETECTION_MAX_ATTEMPTS times before the record is left for SQS to deliver again.
+
+            A local run of the pipeline passes in its own clients, and then runs without the label cache and the image
+            preprocessor, as both are kept in the /tmp storage and buffers of a container. Each of its handlers stands
+            for a container, so each gets a Rekognition limiter of its own.
+
         */
         this.logger = context.getLogger();
-        this.rekognitionClient = RekognitionClient.builder().region(Region.US_EAST_1).build();
-        this.sqsClient = SqsClient.builder().build();
+        if (localSqsClient != null) {
+            this.rekognitionClient = localRekognitionClient;
+            this.s3Client = localS3Client;
+            this.labelCache = null;
+            this.imagePreprocessor = null;
+            this.sqsClient = localSqsClient;
+            if (this.rekognitionLimiter == null) {
+                this.rekognitionLimiter = DependencyFactory.newRekognitionLimiter();
+            }
+        } else {
+            this.rekognitionClient = DependencyFactory.rekognitionClient();
+            this.s3Client = DependencyFactory.s3Client();
+            this.labelCache = DependencyFactory.labelCache();
+            this.imagePreprocessor = DependencyFactory.imagePreprocessor();
+            this.sqsClient = DependencyFactory.sqsClient();
+            this.rekognitionLimiter = DependencyFactory.rekognitionLimiter();
+        }
 
         /*
 
             Setting Application Variables: necessary parameters to do two of the following operations.
 
                 1. bucketName: this variable is used to set the bucket for which images are pulled from for
-                additional processing.
+                additional processing. It can be set by the BUCKET environment variable.
 
                 2. queueURL: this variable is used to set the queue to send the processed images with people above the
-                90% threshold.
+                90% threshold. It can be set by the QUEUE_URL environment variable.
 
         */
-        this.bucketName = "cs442-unr";
-        this.queueURL = "https://sqs.us-west-2.amazonaws.com/608375520976/people_indexes.fifo";
+        this.bucketName = localBucketName != null ? localBucketName : DependencyFactory.config().string("bucket", "cs442-unr");
+        this.queueURL = localQueueURL != null ? localQueueURL : DependencyFactory.config().string("queue_url", "https://sqs.us-west-2.amazonaws.com/608375520976/people_indexes.fifo");
+        this.messageSender = new BatchingMessageSender(sqsClient, queueURL, 100, 5);
 
     }
 
@@ -110,32 +295,97 @@ public class App implements RequestHandler<SQSEvent, Void> {
 
         generate_image_labels: this function is responsible for grabbing the labels from a image given a image name.
 
-        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name.
-        From this, a Image object is created in which the returned S3Object is used to create the image object.
-        This image object is then used to create a request object for labels in which is executed by the detect labels
-        function of Rekognition. This action results in a list of Label objects which are then returned. If no labels
-        are detected, then the function returns null.
+        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name, or
+        when the IMAGE_MODE environment variable is "bytes" as the scaled down bytes of the image. From this, a Image
+        object is created in which the returned S3Object is used to create the image object. This image object is then
+        used to create a request object for labels in which is executed by the detect labels function of Rekognition.
+        This action results in a list of Label objects which are then returned. Before the request is made, the label
+        cache is checked for labels of the same version of the image, keyed by the ETag car recognition sent with the
+        image or, for a message without one, by the ETag read from S3, and labels returned by Rekognition are stored in
+        the cache. When the request fails, the failure is classified. Throttled and transient failures are retried with
+        a backoff by the Rekognition limiter, which also cuts the requests the container has in flight while Rekognition
+        throttles, and, once the attempts run out, thrown so the record is delivered again. Permanent failures of the
+        image would fail on every delivery, so the function returns null for them as no labels were detected. A rejected
+        request, such as access denied or expired credentials, is thrown at once, failing the record rather than passing
+        the image on as a image without a person.
 
     */
-    private List<Label> generate_image_labels(String image_name) {
+    private List<Label> generate_image_labels(String image_name, String payload_e_tag) {
+
+        String e_tag = payload_e_tag != null ? payload_e_tag : image_e_tag(image_name);
+        if (labelCache != null) {
+            List<Label> cached_labels = labelCache.get(bucketName, image_name, e_tag);
+            if (cached_labels != null) {
+                LABEL_CACHE_HITS.increment();
+                return cached_labels;
+            }
+            LABEL_CACHE_MISSES.increment();
+        }
 
-        try {
+        if (DEBUG_LOGGING) {
             System.out.println("Getting labels: " + image_name);
-            S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
-
-            Image unlabeled_image = Image.builder().s3Object(retrieved_image).build();
+        }
+        Image unlabeled_image = imagePreprocessor == null ? null : imagePreprocessor.image(bucketName, image_name);
 
-            DetectLabelsRequest labels_request = DetectLabelsRequest.builder().image(unlabeled_image).build();
+        if (unlabeled_image == null) {
+            S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+            unlabeled_image = Image.builder().s3Object(retrieved_image).build();
+        }
 
-            DetectLabelsResponse labels_response = rekognitionClient.detectLabels(labels_request);
+        DetectLabelsRequest labels_request = DetectLabelsRequest.builder().image(unlabeled_image).build();
 
+        try {
+            DetectLabelsResponse labels_response = rekognitionLimiter.call(() -> {
+                long requested = System.nanoTime();
+                try {
+                    return rekognitionClient.detectLabels(labels_request);
+                } finally {
+                    DETECT_LABELS.record_since(requested);
+                }
+            });
+
+            if (labelCache != null) {
+                labelCache.put(bucketName, image_name, e_tag, labels_response.labels());
+            }
             return labels_response.labels();
 
         } catch (RekognitionException e) {
+            DETECT_LABELS_ERRORS.increment();
+            if (RetryClassifier.classify(e) != RetryClassifier.Classification.PERMANENT) {
+                throw e;
+            }
             logger.log(String.valueOf(e));
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while detecting: " + image_name, e);
         }
 
-        return null;
+    }
+
+    /*
+
+        image_e_tag: this function reads the ETag of a image with a HeadObject request, which is far cheaper than a
+        detect labels request. It is only used for a message from a earlier version of car recognition, which did not
+        send the ETag with the image. When the ETag can not be read the function returns null, and the image is
+        labelled without the cache.
+
+    */
+    private String image_e_tag(String image_name) {
+
+        if (labelCache == null) {
+            return null;
+        }
+
+        long requested = System.nanoTime();
+        try {
+            return s3Client.headObject(HeadObjectRequest.builder().bucket(bucketName).key(image_name).build()).eTag();
+        } catch (S3Exception e) {
+            logger.log(String.valueOf(e));
+            return null;
+        } finally {
+            HEAD_OBJECT.record_since(requested);
+        }
 
     }
 
@@ -144,52 +394,121 @@ public class App implements RequestHandler<SQSEvent, Void> {
             is_person_detected: this function is responsible for ensuring the required confidence levels are met for image
             processing.
 
-            Summary: The function takes in a image name, in which labels are detected using the helper function
-            generate_image_labels(). The labels of the image are saved in a list of Label objects in which each label
-            object is iterated. During each iteration, the image label is checked for the label for "People"
-            and label confidence is greater than 90%. If that requirement is met, then the function stops and returns a
-            boolean to state a image is found with a car with high confidence. Otherwise, the function returns false.
+            Summary: The function takes in the label payload of a image. When car recognition already evaluated every
+            label of the person rules, and the rules only need a confidence, the rules are checked against the
+            confidences of the payload and no labels are detected again. Otherwise, labels are detected using the
+            helper function generate_image_labels() and passed once through the compiled person rules, which by default
+            check for the label for "Person" with a label confidence greater than 90%. If that requirement is met, then
+            the function returns a boolean to state a image is found with a person with high confidence. Otherwise, the
+            function returns false.
 
     */
-    private boolean is_person_detected(String image_name) {
-        List<Label> image_labels = generate_image_labels(image_name);
+    private boolean is_person_detected(LabelPayload label_payload) {
+        String image_name = label_payload.image();
+
+        Boolean payload_detected = is_person_in_payload(label_payload);
+        if (payload_detected != null) {
+            PAYLOAD_DECISIONS.increment();
+            return payload_detected;
+        }
+
+        List<Label> image_labels = generate_image_labels(image_name, label_payload.eTag());
 
         if (image_labels == null) {
+            if (DEBUG_LOGGING) {
+                logger.log("Person Not Detected: " + image_name);
+            }
             return false;
         }
 
-        for (Label label : image_labels) {
-            if (label.name().equals("Person") && (label.confidence() > 90.0F)) {
-                logger.log("Person Detected: " + image_name + " Confidence: " + label.confidence());
-                return true;
-            } else if (label.name().equals("Person") && (label.confidence() <= 90.0F)) {
-                logger.log("Person Not Detected: " + image_name + " Confidence: " + label.confidence());
+        LabelRuleEngine.Result label_result = PERSON_RULES.evaluate(image_labels);
+        if (label_result.accepted()) {
+            if (DEBUG_LOGGING) {
+                logger.log("Person Detected: " + image_name + " Labels: " + label_result.payload());
             }
+            return true;
         }
 
-        logger.log("Person Not Detected: " + image_name);
-
+        if (DEBUG_LOGGING) {
+            logger.log("Person Not Detected: " + image_name + " Labels: " + label_result.payload());
+        }
         return false;
     }
 
     /*
 
-        enqueue_image: this function is used to enqueue image names to the people indexes queue. Images are added into a FIFO
-        list within a message group called people_indexes.
+        is_person_in_payload: this function checks the person rules against the confidences car recognition sent with
+        the image. It returns null when the payload can not answer every rule, such as a rule label that car recognition
+        did not evaluate or a rule on parent categories or instances, which need the full labels.
+
+    */
+    private Boolean is_person_in_payload(LabelPayload label_payload) {
+
+        for (int index = 0; index < PERSON_RULES.ruleCount(); index++) {
+            LabelRuleEngine.LabelRule rule = PERSON_RULES.rule(index);
+            if (!label_payload.hasLabel(rule.label()) || rule.matchParents() || rule.minInstances() > 0) {
+                return null;
+            }
+        }
+
+        for (int index = 0; index < PERSON_RULES.ruleCount(); index++) {
+            LabelRuleEngine.LabelRule rule = PERSON_RULES.rule(index);
+            float confidence = label_payload.confidence(rule.label());
+            if (rule.required() && confidence <= rule.minConfidence()) {
+                if (DEBUG_LOGGING) {
+                    logger.log("Person Not Detected: " + label_payload.image() + " " + rule.label() + " Confidence: " + confidence);
+                }
+                return false;
+            }
+        }
+
+        if (DEBUG_LOGGING) {
+            logger.log("Person Detected: " + label_payload.image());
+        }
+        return true;
+    }
+
+    /*
+
+        enqueue_image: this function is used to enqueue image names to the people indexes queue. Images are added into a
+        FIFO list within a message group called people_indexes, or the people_indexes-<n> group that matches the car
+        indexes group the image arrived in when car recognition spreads its images over several groups.
 
         Summary: The function prepares several variables used to define the deduplication_id and message_group_id used
-        to operate the queue. The request to send the passed in image name is built using the previously created
-        variables. Once created, the message is sent to the SQS queue for people indexes.
+        to operate the queue. The passed in image name is then handed to the message sender with the previously created
+        variables, which sends it to the SQS queue for people indexes as part of a batch. The deduplication_id is
+        returned so a failure to send the batch can be traced back to the record of the image.
 
     */
-    private void enqueue_image(String image_name) {
+    private String enqueue_image(String image_name, String message_group_id) {
 
         String deduplication_id = "people_indexes:" + image_name;
-        String message_group_id = "people_indexes";
-        SendMessageRequest image_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody(image_name).messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
 
-        sqsClient.sendMessage(image_request);
-        System.out.println("Enqueuing Image: " + image_name);
+        messageSender.send(image_name, deduplication_id, message_group_id);
+        IMAGES_ENQUEUED.increment();
+        if (DEBUG_LOGGING) {
+            System.out.println("Enqueuing Image: " + image_name);
+        }
+        return deduplication_id;
+    }
+
+    /*
+
+        first_unsent: this function finds the first record whose image the message sender failed to send, or returns
+        the passed in record, the one being processed when the send failed, when that record comes first.
+
+    */
+    private static int first_unsent(BatchingMessageSender.SendFailure failure, Map<String, Integer> enqueued_records, int current_record) {
+
+        int first_record = current_record;
+        for (String deduplication_id : failure.unsentIds()) {
+            Integer record = enqueued_records.get(deduplication_id);
+            if (record != null) {
+                first_record = Math.min(first_record, record);
+            }
+        }
+        return first_record;
+
     }
 
     /*
@@ -197,21 +516,48 @@ public class App implements RequestHandler<SQSEvent, Void> {
         enqueue_stop: this function is used to enqueue the stop signal which reports that all images have been processed
         and sent to the queue.
 
-        Summary: The function prepares several variables used to define the deduplication_id and message_group_id used
-        to operate the queue. The request then attaches a "-1" to the deduplication_id to ensure the message does not
-        get lost and is sent last. The request to send the stop signal is built using the previously created
-        variables. Once created, the message is sent to the SQS queue for people indexes.
+        Summary: The function first flushes the message sender so that every batched image has been accepted by the
+        queue before the stop signal. It then prepares several variables used to define the deduplication_id and
+        message_group_id used to operate the queue. The request then attaches a "-1" to the deduplication_id to ensure
+        the message does not get lost and is sent last. The stop marker of a shard, such as "-1:0:4", is passed along as
+        it is with a deduplication_id of its own. The marker of a message group is sent at the end of the matching
+        people indexes group. The request to send the stop signal is built using the previously created variables. Once
+        created, the message is sent to the SQS queue for people indexes.
 
     */
-    private void enqueue_stop() {
+    private void enqueue_stop(StopMarker stop_marker) {
+
+        messageSender.flush();
 
-        String deduplication_id = "people_indexes:" + "-1";
         String message_group_id = "people_indexes";
-        SendMessageRequest stop_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody("-1").messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
+        if (stop_marker.groupCount() > 1) {
+            message_group_id = "people_indexes-" + stop_marker.groupIndex();
+        }
+
+        String stop_body = stop_marker.body();
+        String deduplication_id = "people_indexes:" + stop_body;
+        SendMessageRequest stop_request = SendMessageRequest.builder().queueUrl(queueURL).messageBody(stop_body).messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build();
 
+        long sent = System.nanoTime();
         sqsClient.sendMessage(stop_request);
-        System.out.println("Enqueuing Stop Message");
+        SEND_MESSAGE.record_since(sent);
+        System.out.println("Enqueuing Stop Message: " + stop_body);
 
     }
 
+    /*
+
+        people_group: this function picks the people indexes group of a record from the car indexes group it arrived
+        in, so each group keeps its order through both queues.
+
+    */
+    private static String people_group(SQSEvent.SQSMessage message) {
+
+        String car_group = message.getAttributes() == null ? null : message.getAttributes().get("MessageGroupId");
+        if (car_group == null || !car_group.startsWith("car_indexes-")) {
+            return "people_indexes";
+        }
+        return "people_indexes-" + car_group.substring("car_indexes-".length());
+    }
+
 }
@@ -0,0 +1,175 @@
+package helloworld;
+
+import cs642.pa2.pipeline_common.AdaptiveLimiter;
+import cs642.pa2.pipeline_common.ClientFactory;
+import cs642.pa2.pipeline_common.ImagePreprocessor;
+import cs642.pa2.pipeline_common.LabelCache;
+import cs642.pa2.pipeline_common.PipelineConfig;
+
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The module containing all dependencies required by the {@link App}.
+ *
+ * Clients are created once per Lambda container, the first time they are requested, and are then shared by every
+ * warm invocation. Each holder class is only loaded on first use, which makes the creation lazy and thread safe
+ * without locking. The clients use a pooled HTTP client that keeps its connections alive between invocations, so
+ * warm invocations skip client construction, credential resolution and TLS handshakes. The region, endpoint,
+ * connection pool, timeouts and retries of each client are read from the {@link PipelineConfig} of the function.
+ */
+public class DependencyFactory {
+
+    private DependencyFactory() {
+    }
+
+    private static class ConfigHolder {
+        private static final PipelineConfig INSTANCE = PipelineConfig.load("person_recognition", "");
+    }
+
+    private static class RekognitionClientHolder {
+        private static final PipelineConfig.ClientSettings SETTINGS = config().client("rekognition", Region.US_EAST_1, 50);
+        private static final RekognitionClient INSTANCE = ClientFactory.configureWithoutRetries(RekognitionClient.builder(), SETTINGS)
+                .httpClientBuilder(ClientFactory.pooledHttpClient(SETTINGS))
+                .build();
+    }
+
+    // Note: a endpoint such as a local stand in for S3 seldom resolves the bucket as a sub domain.
+    private static class S3ClientHolder {
+        private static final PipelineConfig.ClientSettings SETTINGS = config().client("s3", Region.US_EAST_1, 50);
+        private static final S3Client INSTANCE = ClientFactory.configure(S3Client.builder(), SETTINGS)
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(config().flag("s3.path_style", SETTINGS.endpoint() != null)).build())
+                .httpClientBuilder(ClientFactory.pooledHttpClient(SETTINGS))
+                .build();
+    }
+
+    // Note: the region of the queue is left to the AWS_REGION of the function unless it is configured.
+    private static class SqsClientHolder {
+        private static final PipelineConfig.ClientSettings SETTINGS = config().client("sqs", null, 50);
+        private static final SqsClient INSTANCE = ClientFactory.configure(SqsClient.builder(), SETTINGS)
+                .httpClientBuilder(ClientFactory.pooledHttpClient(SETTINGS))
+                .build();
+    }
+
+    private static class LabelCacheHolder {
+        private static final LabelCache INSTANCE = openLabelCache();
+    }
+
+    private static class ImagePreprocessorHolder {
+        private static final ImagePreprocessor INSTANCE = ImagePreprocessor.create(
+                s3Client(),
+                config().string("image_mode", "s3"),
+                config().integer("max_image_dimension", 1920),
+                config().string("image_resize", "scale"),
+                detectionConcurrency());
+    }
+
+    private static class RekognitionLimiterHolder {
+        private static final AdaptiveLimiter INSTANCE = newRekognitionLimiter();
+    }
+
+    private static class DetectionPoolHolder {
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(detectionConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "label-detection-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The settings of the function, read from the environment variables of the template, such as LABEL_RULES, the
+     * person_recognition.* system properties and the file set by CONFIG_FILE. They are read once per container.
+     */
+    public static PipelineConfig config() {
+        return ConfigHolder.INSTANCE;
+    }
+
+    public static RekognitionClient rekognitionClient() {
+        return RekognitionClientHolder.INSTANCE;
+    }
+
+    public static S3Client s3Client() {
+        return S3ClientHolder.INSTANCE;
+    }
+
+    public static SqsClient sqsClient() {
+        return SqsClientHolder.INSTANCE;
+    }
+
+    /**
+     * The label cache of the container, or null when it could not be opened. The file lives in the /tmp storage of
+     * the container, so it is shared by every invocation the container serves. It keeps up to 50000 images unless
+     * LABEL_CACHE_FILE_ENTRIES is set, so it stays well within the /tmp storage of the container.
+     */
+    public static LabelCache labelCache() {
+        return LabelCacheHolder.INSTANCE;
+    }
+
+    /**
+     * The image preprocessor of the container, or null in the default "s3" image mode. Its pooled buffers are kept
+     * between invocations like the clients.
+     */
+    public static ImagePreprocessor imagePreprocessor() {
+        return ImagePreprocessorHolder.INSTANCE;
+    }
+
+    /**
+     * The limiter shared by every detect labels request of the container. The limit starts low and grows while
+     * Rekognition answers quickly, up to the size of the detection pool, and is cut whenever Rekognition throttles, so
+     * the containers of the function together settle at the TPS limit of the account.
+     */
+    public static AdaptiveLimiter rekognitionLimiter() {
+        return RekognitionLimiterHolder.INSTANCE;
+    }
+
+    // Note: a invocation has a short time limit and the record is delivered again by SQS, so a request is only
+    // attempted 3 times with up to 2s between attempts unless DETECTION_MAX_ATTEMPTS and DETECTION_MAX_DELAY are set.
+    static AdaptiveLimiter newRekognitionLimiter() {
+        return AdaptiveLimiter.from_config(config(), "rekognition", detectionConcurrency(), 3, Duration.ofSeconds(2));
+    }
+
+    private static LabelCache openLabelCache() {
+        try {
+            return new LabelCache(config().string("label_cache", "/tmp/label_cache.bin"), config().integer("label_cache_entries", 10000), config().integer("label_cache_file_entries", 50000));
+        } catch (IOException e) {
+            System.err.println("Label Cache Disabled: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * The pool used to detect labels for the records of a batch at the same time. The threads spend nearly all their
+     * time waiting on Rekognition, so the pool is sized above the number of CPUs, scaling with the memory configured
+     * for the function (which is what Lambda scales CPU with) and capped to stay within the HTTP connection pool,
+     * unless it is set by DETECTION_CONCURRENCY.
+     */
+    public static ExecutorService detectionPool() {
+        return DetectionPoolHolder.INSTANCE;
+    }
+
+    static int detectionConcurrency() {
+        int configured_concurrency = config().integer("detection_concurrency", 0);
+        if (configured_concurrency > 0) {
+            return configured_concurrency;
+        }
+
+        int memory_mb = 512;
+        String configured_memory = System.getenv("AWS_LAMBDA_FUNCTION_MEMORY_SIZE");
+        if (configured_memory != null) {
+            memory_mb = Integer.parseInt(configured_memory.trim());
+        }
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.min(32, Math.max(2, Math.max(cpus * 4, memory_mb / 64)));
+    }
+}
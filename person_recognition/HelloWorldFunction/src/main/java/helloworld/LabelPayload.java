@@ -0,0 +1,78 @@
+package helloworld;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+
+    LabelPayload: reads the body of a car indexes message. Car recognition sends the image name followed by a tab and
+    every rule label it evaluated with the confidence found in the image, such as "Car:97.31,Person:0.0", and then by
+    a second tab and the ETag of the image from the bucket listing. When a label is in the payload it was already
+    detected by car recognition and does not need to be detected again, and the ETag keys the label cache without a
+    HeadObject request. A body without a tab is a plain image name, and a body without the ETag a payload, from a
+    earlier version of car recognition.
+
+*/
+public class LabelPayload {
+
+    private final String image;
+    private final Map<String, Float> confidences;
+    private final String eTag;
+
+    private LabelPayload(String image, Map<String, Float> confidences, String eTag) {
+        this.image = image;
+        this.confidences = confidences;
+        this.eTag = eTag;
+    }
+
+    public static LabelPayload parse(String body) {
+
+        int separator = body.indexOf('\t');
+        if (separator < 0) {
+            return new LabelPayload(body, null, null);
+        }
+
+        int e_tag_separator = body.indexOf('\t', separator + 1);
+        String label_payload = e_tag_separator < 0 ? body.substring(separator + 1) : body.substring(separator + 1, e_tag_separator);
+        String e_tag = e_tag_separator < 0 || e_tag_separator == body.length() - 1 ? null : body.substring(e_tag_separator + 1);
+
+        Map<String, Float> confidences = new HashMap<String, Float>();
+        for (String entry : label_payload.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon > 0) {
+                confidences.put(entry.substring(0, colon), Float.parseFloat(entry.substring(colon + 1)));
+            }
+        }
+
+        return new LabelPayload(body.substring(0, separator), confidences, e_tag);
+    }
+
+    public String image() {
+        return image;
+    }
+
+    // Note: returns null when car recognition did not send the ETag of the image.
+    public String eTag() {
+        return eTag;
+    }
+
+    /*
+
+        hasLabel: this function checks if car recognition evaluated a label for the image.
+
+    */
+    public boolean hasLabel(String label) {
+        return confidences != null && confidences.containsKey(label);
+    }
+
+    /*
+
+        confidence: this function returns the confidence car recognition found for a evaluated label, which is zero
+        when the label was not found in the image.
+
+    */
+    public float confidence(String label) {
+        return confidences.get(label);
+    }
+
+}
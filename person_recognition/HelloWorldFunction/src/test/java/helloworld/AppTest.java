@@ -1,9 +1,313 @@
 package helloworld;
 
-import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import software.amazon.awssdk.services.rekognition.RekognitionClient;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsRequest;
+import software.amazon.awssdk.services.rekognition.model.DetectLabelsResponse;
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
+/*
+
+    AppTest: checks that the handler reads the label payload and the ETag car recognition sends, only detects the labels
+    of a image again when the payload has no person label, passes the images with people on to the people indexes queue
+    in the order of the car indexes queue with the stop signal last, while the labels of the images are detected at
+    once, passes on the records after the stop marker of a shard, and reports a failed record together with every record
+    after it.
+
+*/
+public class AppTest {
+
+    private static final String BUCKET_NAME = "test-bucket";
+    private static final String QUEUE_URL = "https://sqs.us-west-2.amazonaws.com/000000000000/people_indexes.fifo";
+
+    @Test
+    public void label_payload_is_read() {
+
+        LabelPayload plain = LabelPayload.parse("image-0001.jpg");
+        assertEquals("image-0001.jpg", plain.image());
+        assertFalse(plain.hasLabel("Person"));
+
+        LabelPayload labels = LabelPayload.parse("image-0002.jpg\tCar:97.31,Person:0.0");
+        assertEquals("image-0002.jpg", labels.image());
+        assertTrue(labels.hasLabel("Car"));
+        assertEquals(97.31F, labels.confidence("Car"), 0.0);
+        assertEquals(0.0F, labels.confidence("Person"), 0.0);
+        assertFalse(labels.hasLabel("Tree"));
+    }
+
+    @Test
+    public void label_payload_carries_the_etag() {
+
+        assertNull(LabelPayload.parse("image-0001.jpg").eTag());
+        assertNull(LabelPayload.parse("image-0002.jpg\tCar:97.31,Person:0.0").eTag());
+
+        LabelPayload tagged = LabelPayload.parse("image-0003.jpg\tCar:97.31,Person:95.5\t\"9b2cf535f27731c974343645a3985328\"");
+        assertEquals("image-0003.jpg", tagged.image());
+        assertEquals(95.5F, tagged.confidence("Person"), 0.0);
+        assertEquals("\"9b2cf535f27731c974343645a3985328\"", tagged.eTag());
+
+        assertNull(LabelPayload.parse("image-0004.jpg\tCar:97.31\t").eTag());
+    }
+
+    @Test
+    public void labelled_images_are_passed_on_without_detecting_them_again() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        LabelledRekognitionClient rekognition_client = new LabelledRekognitionClient();
+        App handler = new App(rekognition_client, null, sqs_client, BUCKET_NAME, QUEUE_URL);
+
+        SQSBatchResponse batch_response = handler.handleRequest(event("a.jpg\tCar:97.0,Person:95.0", "b.jpg\tCar:97.0,Person:10.0", "c.jpg\tCar:97.0,Person:99.0", "-1"), new TestContext());
+
+        assertTrue(batch_response.getBatchItemFailures().isEmpty());
+        assertEquals(Arrays.asList("a.jpg", "c.jpg", "-1"), sqs_client.bodies);
+        assertEquals(0, rekognition_client.calls);
+    }
+
+    @Test
+    public void images_without_the_person_label_are_detected_again() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        LabelledRekognitionClient rekognition_client = new LabelledRekognitionClient();
+        App handler = new App(rekognition_client, null, sqs_client, BUCKET_NAME, QUEUE_URL);
+
+        SQSBatchResponse batch_response = handler.handleRequest(event("person.jpg\tCar:97.0", "street.jpg\tCar:97.0", "-1"), new TestContext());
+
+        assertTrue(batch_response.getBatchItemFailures().isEmpty());
+        assertEquals(Arrays.asList("person.jpg", "-1"), sqs_client.bodies);
+        assertEquals(2, rekognition_client.calls);
+    }
+
+    @Test
+    public void detected_images_with_people_are_passed_on_in_order() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        LabelledRekognitionClient rekognition_client = new LabelledRekognitionClient();
+        App handler = new App(rekognition_client, null, sqs_client, BUCKET_NAME, QUEUE_URL);
+
+        SQSBatchResponse batch_response = handler.handleRequest(event("person-a.jpg", "street-b.jpg", "person-c.jpg", "street-d.jpg", "person-e.jpg", "-1"), new TestContext());
+
+        assertTrue(batch_response.getBatchItemFailures().isEmpty());
+        assertEquals(Arrays.asList("person-a.jpg", "person-c.jpg", "person-e.jpg", "-1"), sqs_client.bodies);
+        assertEquals(5, rekognition_client.calls);
+    }
+
+    @Test
+    public void records_after_a_shard_stop_are_processed() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        App handler = new App(new LabelledRekognitionClient(), null, sqs_client, BUCKET_NAME, QUEUE_URL);
+
+        SQSBatchResponse batch_response = handler.handleRequest(event("a.jpg\tCar:97.0,Person:95.0", "-1:0:2", "b.jpg\tCar:97.0,Person:95.0"), new TestContext());
+
+        assertTrue(batch_response.getBatchItemFailures().isEmpty());
+        assertEquals(Arrays.asList("a.jpg", "-1:0:2", "b.jpg"), sqs_client.bodies);
+    }
+
+    @Test
+    public void failed_stop_signal_fails_its_record_and_the_records_after_it() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.failStopSignal = true;
+        App handler = new App(new LabelledRekognitionClient(), null, sqs_client, BUCKET_NAME, QUEUE_URL);
+
+        SQSBatchResponse batch_response = handler.handleRequest(event("a.jpg\tCar:97.0,Person:95.0", "-1:0:2", "b.jpg\tCar:97.0,Person:95.0"), new TestContext());
+
+        List<String> failed_ids = new ArrayList<String>();
+        for (SQSBatchResponse.BatchItemFailure failure : batch_response.getBatchItemFailures()) {
+            failed_ids.add(failure.getItemIdentifier());
+        }
+        assertEquals(Arrays.asList("m1", "m2"), failed_ids);
+        assertEquals(Collections.singletonList("a.jpg"), sqs_client.bodies);
+    }
+
+    private static SQSEvent event(String... bodies) {
+
+        List<SQSEvent.SQSMessage> records = new ArrayList<SQSEvent.SQSMessage>();
+        for (String body : bodies) {
+            SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+            message.setMessageId("m" + records.size());
+            message.setBody(body);
+            records.add(message);
+        }
+
+        SQSEvent event = new SQSEvent();
+        event.setRecords(records);
+        return event;
+    }
+
+    /*
+
+        LabelledRekognitionClient: a Rekognition client that finds a person in the images named "person" and only a
+        car in the others.
+
+    */
+    private static final class LabelledRekognitionClient implements RekognitionClient {
+
+        private int calls;
+
+        @Override
+        public synchronized DetectLabelsResponse detectLabels(DetectLabelsRequest labels_request) {
+
+            calls++;
+            List<Label> labels = new ArrayList<Label>();
+            labels.add(label("Car", 97.0F));
+            if (labels_request.image().s3Object().name().startsWith("person")) {
+                labels.add(label("Person", 98.0F));
+            }
+            return DetectLabelsResponse.builder().labels(labels).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static Label label(String name, float confidence) {
+            return Label.builder().name(name).confidence(confidence).parents(Collections.<Parent>emptyList()).instances(Collections.<Instance>emptyList()).build();
+        }
+
+    }
+
+    /*
+
+        RecordingSqsClient: a SQS client that keeps the body of every message it queued in order, and can fail every
+        stop signal it is sent.
+
+    */
+    private static final class RecordingSqsClient implements SqsClient {
+
+        private final List<String> bodies = new ArrayList<String>();
+        private volatile boolean failStopSignal;
+
+        @Override
+        public synchronized SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest batch_request) {
+
+            List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+            for (SendMessageBatchRequestEntry entry : batch_request.entries()) {
+                bodies.add(entry.messageBody());
+                successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId("message-" + bodies.size()).build());
+            }
+            return SendMessageBatchResponse.builder().successful(successful).failed(Collections.emptyList()).build();
+        }
+
+        @Override
+        public synchronized SendMessageResponse sendMessage(SendMessageRequest message_request) {
+
+            if (failStopSignal) {
+                throw new IllegalStateException("Unable to send: " + message_request.messageBody());
+            }
+            bodies.add(message_request.messageBody());
+            return SendMessageResponse.builder().messageId("message-" + bodies.size()).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class TestContext implements Context {
+
+        @Override
+        public String getAwsRequestId() {
+            return "test-request";
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return "/aws/lambda/person_recognition";
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return "test";
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "person_recognition";
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return "$LATEST";
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return "arn:aws:lambda:us-west-2:000000000000:function:person_recognition";
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return 60000;
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return 512;
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return new LambdaLogger() {
+                @Override
+                public void log(String message) {
+                    System.out.println(message);
+                }
+
+                @Override
+                public void log(byte[] message) {
+                    log(new String(message, StandardCharsets.UTF_8));
+                }
+            };
+        }
+
+    }
 
+}
@@ -0,0 +1,417 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.rekognition.model.RekognitionException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+
+    AdaptiveLimiter: bounds the number of Rekognition requests in flight by a limit that adapts to the service, so the
+    pipeline settles at the rate the account can sustain without the rate being configured. The limit follows the
+    additive increase, multiplicative decrease (AIMD) rule:
+
+        1. Increase: every request that succeeds while the limit is in use raises the limit. Until the first decrease
+        the limit grows by one per request, so it doubles with every round of requests (slow start), and from then on
+        by one per round of requests, so it probes slowly around the ceiling it found.
+
+        2. Decrease: a throttled request cuts the limit by the throttle ratio, half unless configured, and a smoothed
+        latency above the latency tolerance times the baseline latency cuts it by the backoff ratio, as requests that
+        queue in the service are the first sign of its ceiling. The limit is cut at most once per smoothed latency,
+        so the requests already in flight when the limit was cut do not cut it again.
+
+    When a TPS limit is set, every attempt, the first and every retry alike, also takes a token from a rate limiter
+    before it asks the limit for a place, so the requests per second stay under the TPS limit however many of them are
+    retries. A throttled or transient failure, including a request that failed in the client such as on a connection
+    reset or a timeout, is retried with a full jitter backoff, after the request has given its place back to the limit,
+    up to the configured number of attempts. Permanent and rejected failures are not retried. The baseline latency is
+    the lowest latency seen, drifting slowly up towards the latencies seen since, so a lasting change of the latency of
+    the service becomes the new baseline. Latencies under 10 ms are far below any round trip to Rekognition, such as
+    those of a local stand in for it, and are always taken as healthy.
+
+*/
+public class AdaptiveLimiter {
+
+    private static final double SMOOTHING = 0.1;
+    private static final int BASELINE_DRIFT_SHIFT = 10;
+    private static final long LATENCY_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final double throttleRatio;
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final RateLimiter rateLimiter;
+
+    // Note: the counters of the limiter are its own, for its statistics, as well as added to the shared counters of
+    // the metrics, which add up every limiter of the same name in the process.
+    private final PipelineMetrics.Histogram permitWait;
+    private final PipelineMetrics.Histogram rateLimitWait;
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+    private final LongAdder throttleCount;
+    private final LongAdder retryCount;
+    private final LongAdder decreaseCount;
+
+    // Note: the state of the limit, guarded by the limiter, with the callers waiting for a place in the order they
+    // asked for one.
+    private final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<CompletableFuture<Permit>>();
+    private double limit;
+    private int inFlight;
+    private boolean slowStart = true;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long smoothedNanos;
+    private long lastDecrease;
+    private int peakLimit;
+
+    private volatile ScheduledExecutorService retryScheduler;
+
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, double latencyTolerance, double backoffRatio, double throttleRatio, int maxAttempts, long baseDelayMs, long maxDelayMs, double maxRate) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.throttleRatio = throttleRatio;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.rateLimiter = new RateLimiter(maxRate, maxRate);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.peakLimit = (int) limit;
+        this.permitWait = PipelineMetrics.histogram(name + ".permitWait");
+        this.rateLimitWait = PipelineMetrics.histogram(name + ".rateLimitWait");
+        this.throttleCount = PipelineMetrics.counter(name + ".throttles");
+        this.retryCount = PipelineMetrics.counter(name + ".retries");
+        this.decreaseCount = PipelineMetrics.counter(name + ".limitDecreases");
+    }
+
+    /*
+
+        from_config: this function creates a limiter from the limiter.* and detection.* settings, with at most the
+        passed in number of requests in flight unless limiter.max_limit is set. The TPS limit is set by the setting
+        named after the limiter, such as rekognition_tps, and is off unless it is set. The stages that run as long jobs
+        retry up to 8 attempts with up to 5s between them, while a stage with a short time limit, such as a Lambda
+        function, passes in fewer attempts and a shorter delay.
+
+    */
+    public static AdaptiveLimiter from_config(PipelineConfig config, String name, int max_limit) {
+        return from_config(config, name, max_limit, 8, Duration.ofSeconds(5));
+    }
+
+    public static AdaptiveLimiter from_config(PipelineConfig config, String name, int max_limit, int default_max_attempts, Duration default_max_delay) {
+        int configured_max_limit = Math.max(1, config.integer("limiter.max_limit", max_limit));
+        return new AdaptiveLimiter(
+                name,
+                config.integer("limiter.initial_limit", Math.min(configured_max_limit, 8)),
+                config.integer("limiter.min_limit", 1),
+                configured_max_limit,
+                config.decimal("limiter.latency_tolerance", 2.0),
+                config.decimal("limiter.backoff_ratio", 0.9),
+                config.decimal("limiter.throttle_ratio", 0.5),
+                config.integer("detection.max_attempts", default_max_attempts),
+                config.duration("detection.base_delay", Duration.ofMillis(100)).toMillis(),
+                config.duration("detection.max_delay", default_max_delay).toMillis(),
+                config.decimal(name + "_tps", 0));
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized String statistics() {
+        return "Rekognition Limit: " + (int) limit + " Peak Limit: " + peakLimit + " Throttles: " + throttles.sum() + " Retries: " + retries.sum() + " Limit Decreases: " + decreases.sum();
+    }
+
+    /*
+
+        call: this function sends a request on the calling thread once the limit has a place for it, retrying it as
+        described above. The failure of the last attempt, or a permanent or rejected failure, is thrown to the caller.
+
+    */
+    public <T> T call(Supplier<T> request) throws InterruptedException {
+
+        for (int attempt = 1; ; attempt++) {
+
+            if (rateLimiter.enabled()) {
+                long reserved = System.nanoTime();
+                rateLimiter.acquire();
+                rateLimitWait.record_since(reserved);
+            }
+
+            long waited = System.nanoTime();
+            Permit permit = acquire();
+            permitWait.record_since(waited);
+
+            try {
+                T response = request.get();
+                permit.succeeded();
+                return response;
+            } catch (RekognitionException e) {
+                if (!permit.failed(RetryClassifier.classify(e), attempt)) {
+                    throw e;
+                }
+            } catch (SdkClientException e) {
+                if (!permit.failed(RetryClassifier.classify(e), attempt)) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                permit.release();
+                throw e;
+            }
+
+            Thread.sleep(RetryClassifier.backoff_delay(attempt, baseDelayMs, maxDelayMs));
+        }
+
+    }
+
+    /*
+
+        call_async: this function sends a request through a non blocking client once the limit has a place for it,
+        without blocking the calling thread. A attempt that has to wait for its token is sent from a scheduler thread
+        once the token is available, a throttled request is sent again from it once its backoff has passed, and the
+        returned future completes with the response or the failure of the last attempt.
+
+    */
+    public <T> CompletableFuture<T> call_async(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> response = new CompletableFuture<T>();
+        attempt_async(request, 1, response);
+        return response;
+    }
+
+    private <T> void attempt_async(Supplier<CompletableFuture<T>> request, int attempt, CompletableFuture<T> response) {
+
+        long token_wait = rateLimiter.reserve();
+        if (token_wait > 0) {
+            long reserved = System.nanoTime();
+            retry_scheduler().schedule(() -> {
+                rateLimitWait.record_since(reserved);
+                send_async(request, attempt, response);
+            }, token_wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        send_async(request, attempt, response);
+
+    }
+
+    private <T> void send_async(Supplier<CompletableFuture<T>> request, int attempt, CompletableFuture<T> response) {
+
+        long waited = System.nanoTime();
+        acquire_async().thenAccept(permit -> {
+
+            permitWait.record_since(waited);
+            CompletableFuture<T> attempt_response;
+            try {
+                attempt_response = request.get();
+            } catch (RuntimeException e) {
+                permit.release();
+                response.completeExceptionally(e);
+                return;
+            }
+
+            attempt_response.whenComplete((value, failure) -> {
+                if (failure == null) {
+                    permit.succeeded();
+                    response.complete(value);
+                    return;
+                }
+
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                RetryClassifier.Classification classification;
+                if (cause instanceof RekognitionException) {
+                    classification = RetryClassifier.classify((RekognitionException) cause);
+                } else if (cause instanceof SdkClientException) {
+                    classification = RetryClassifier.classify((SdkClientException) cause);
+                } else {
+                    permit.release();
+                    response.completeExceptionally(cause);
+                    return;
+                }
+                if (!permit.failed(classification, attempt)) {
+                    response.completeExceptionally(cause);
+                    return;
+                }
+                retry_scheduler().schedule(() -> attempt_async(request, attempt + 1, response), RetryClassifier.backoff_delay(attempt, baseDelayMs, maxDelayMs), TimeUnit.MILLISECONDS);
+            });
+
+        });
+
+    }
+
+    // Note: a caller interrupted while it waits gives up its place, or gives back the permit granted to it meanwhile.
+    private Permit acquire() throws InterruptedException {
+
+        CompletableFuture<Permit> waiter = acquire_async();
+        try {
+            return waiter.get();
+        } catch (InterruptedException e) {
+            if (!waiter.cancel(false)) {
+                waiter.join().release();
+            }
+            throw e;
+        } catch (ExecutionException | CancellationException e) {
+            throw new IllegalStateException("Unable to acquire a Rekognition permit", e);
+        }
+
+    }
+
+    private CompletableFuture<Permit> acquire_async() {
+
+        CompletableFuture<Permit> waiter = new CompletableFuture<Permit>();
+        synchronized (this) {
+            if (waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                waiter.complete(new Permit());
+                return waiter;
+            }
+            waiters.add(waiter);
+        }
+        return waiter;
+
+    }
+
+    // Note: the waiters are granted their permits outside of the lock, as granting a permit runs the request of the
+    // waiter on this thread, and a waiter that gave up its place gives the permit straight back.
+    private void grant_waiters() {
+
+        List<CompletableFuture<Permit>> granted = new ArrayList<CompletableFuture<Permit>>();
+        synchronized (this) {
+            while (!waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                granted.add(waiters.poll());
+            }
+        }
+
+        for (CompletableFuture<Permit> waiter : granted) {
+            Permit permit = new Permit();
+            if (!waiter.complete(permit)) {
+                permit.release();
+            }
+        }
+
+    }
+
+    private synchronized void on_success(long latency_nanos, int in_flight) {
+
+        baselineNanos = latency_nanos < baselineNanos ? latency_nanos : baselineNanos + ((latency_nanos - baselineNanos) >> BASELINE_DRIFT_SHIFT);
+        smoothedNanos = smoothedNanos == 0 ? latency_nanos : (long) (smoothedNanos + SMOOTHING * (latency_nanos - smoothedNanos));
+
+        if (smoothedNanos > latencyTolerance * Math.max(baselineNanos, LATENCY_FLOOR_NANOS)) {
+            decrease(backoffRatio);
+            return;
+        }
+
+        // Note: the limit only grows while it is in use, so a idle pipeline does not raise it without bound.
+        if (in_flight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + (slowStart ? 1.0 : 1.0 / limit));
+            peakLimit = Math.max(peakLimit, (int) limit);
+        }
+
+    }
+
+    private synchronized void on_throttle() {
+        throttles.increment();
+        throttleCount.increment();
+        decrease(throttleRatio);
+    }
+
+    private void decrease(double ratio) {
+
+        long now = System.nanoTime();
+        if (!slowStart && now - lastDecrease < smoothedNanos) {
+            return;
+        }
+        slowStart = false;
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * ratio);
+        decreases.increment();
+        decreaseCount.increment();
+
+    }
+
+    /*
+
+        Permit: the place of a request in the limit, given back exactly once when the request completes.
+
+    */
+    private final class Permit {
+
+        private final long started = System.nanoTime();
+        private boolean released;
+
+        private void succeeded() {
+            long latency = System.nanoTime() - started;
+            int in_flight;
+            synchronized (AdaptiveLimiter.this) {
+                in_flight = inFlight;
+            }
+            on_success(latency, in_flight);
+            release();
+        }
+
+        // Note: returns true when the request is worth another attempt.
+        private boolean failed(RetryClassifier.Classification classification, int attempt) {
+
+            if (classification == RetryClassifier.Classification.THROTTLED) {
+                on_throttle();
+            }
+            release();
+
+            if (classification == RetryClassifier.Classification.PERMANENT || classification == RetryClassifier.Classification.REJECTED || attempt >= maxAttempts) {
+                return false;
+            }
+            retries.increment();
+            retryCount.increment();
+            return true;
+
+        }
+
+        private void release() {
+            synchronized (AdaptiveLimiter.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                inFlight--;
+            }
+            grant_waiters();
+        }
+
+    }
+
+    private ScheduledExecutorService retry_scheduler() {
+
+        ScheduledExecutorService scheduler = retryScheduler;
+        if (scheduler == null) {
+            synchronized (this) {
+                if (retryScheduler == null) {
+                    retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "rekognition-retry");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                scheduler = retryScheduler;
+            }
+        }
+        return scheduler;
+
+    }
+
+}
@@ -0,0 +1,320 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+
+    BatchingMessageSender: groups messages for a SQS queue into SendMessageBatch requests of up to 10 entries so that
+    positive images no longer cost one round trip each. A batch is sent once it is full, once its oldest entry has
+    waited for the linger time, or when flush() is called. Entries are always sent in the order they were added and a
+    batch is finished, including retries, before the next one starts, which keeps the FIFO order of each message group.
+
+    Adding a message only holds the monitor of the sender, while a batch is sent, retries and backoff included, under
+    the send lock alone. A full batch is moved to the queue of ready batches under the monitor and sent after it has
+    been released, so a batch that is being retried never blocks the callers that add messages or the linger timer.
+
+*/
+public class BatchingMessageSender implements AutoCloseable {
+
+    private static final PipelineMetrics.Histogram SEND_MESSAGE_BATCH = PipelineMetrics.histogram("sqs.sendMessageBatch");
+    private static final LongAdder FAILED_ENTRIES = PipelineMetrics.counter("sqs.sendMessageBatch.failedEntries");
+
+    // Note: limits of a single SendMessageBatch request as documented by SQS.
+    public static final int MAX_BATCH_ENTRIES = 10;
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final SqsClient sqsClient;
+    private final String queueURL;
+    private final long lingerMillis;
+    private final int maxAttempts;
+    private final ScheduledExecutorService lingerTimer;
+
+    // Note: held while a batch is sent, so the ready batches leave in the order they were queued.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Deque<List<SendMessageBatchRequestEntry>> readyBatches = new ArrayDeque<List<SendMessageBatchRequestEntry>>();
+
+    private List<SendMessageBatchRequestEntry> batch = new ArrayList<SendMessageBatchRequestEntry>();
+    private int batch_bytes;
+    private long batch_started;
+    private RuntimeException linger_failure;
+
+    public BatchingMessageSender(SqsClient sqsClient, String queueURL, long lingerMillis, int maxAttempts) {
+        this.sqsClient = sqsClient;
+        this.queueURL = queueURL;
+        this.lingerMillis = lingerMillis;
+        this.maxAttempts = Math.max(1, maxAttempts);
+
+        this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sqs-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lingerTimer.scheduleWithFixedDelay(this::flush_lingering, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+
+        send: this function adds a message to the current batch. When the message would not fit in the current batch,
+        the batch is sent first, and a batch that reaches 10 entries is sent right away.
+
+    */
+    public void send(String message_body, String deduplication_id, String message_group_id) {
+
+        int message_bytes = message_body.getBytes(StandardCharsets.UTF_8).length;
+        boolean batch_ready;
+        synchronized (this) {
+            check_linger_failure();
+
+            if (!batch.isEmpty() && batch_bytes + message_bytes > MAX_BATCH_BYTES) {
+                close_batch();
+            }
+
+            if (batch.isEmpty()) {
+                batch_started = System.currentTimeMillis();
+            }
+
+            batch.add(SendMessageBatchRequestEntry.builder().id(String.valueOf(batch.size())).messageBody(message_body).messageDeduplicationId(deduplication_id).messageGroupId(message_group_id).build());
+            batch_bytes += message_bytes;
+
+            if (batch.size() >= MAX_BATCH_ENTRIES) {
+                close_batch();
+            }
+            batch_ready = !readyBatches.isEmpty();
+        }
+
+        if (batch_ready) {
+            send_ready_batches();
+        }
+
+    }
+
+    /*
+
+        flush: this function sends every message that has been added so far and returns only after SQS has accepted
+        all of them.
+
+        Summary: The function closes the current batch and sends the ready batches one at a time, collecting the
+        entries that SQS reports as failed. Failed entries that were not caused by the request itself are retried with
+        a growing delay between attempts, each together with every later entry of its message group, in their original
+        order, so no entry of a group is sent again on its own after the entries that followed it. The later entries
+        keep their deduplication ids, so a copy of one SQS already accepted is dropped. Entries that still fail once the
+        attempts run out, or that SQS rejects as a sender fault, cause a SendFailure that also carries the batches that
+        were waiting behind them, so that no message is lost silently. Once the function returns, any message sent after
+        it, such as the stop signal, is guaranteed to be queued after the flushed messages.
+
+    */
+    public void flush() {
+
+        synchronized (this) {
+            check_linger_failure();
+            if (!batch.isEmpty()) {
+                close_batch();
+            }
+        }
+        send_ready_batches();
+
+    }
+
+    // Note: called with the monitor held.
+    private void close_batch() {
+        readyBatches.addLast(batch);
+        batch = new ArrayList<SendMessageBatchRequestEntry>();
+        batch_bytes = 0;
+    }
+
+    private void send_ready_batches() {
+
+        sendLock.lock();
+        try {
+            send_ready_batches_locked();
+        } finally {
+            sendLock.unlock();
+        }
+
+    }
+
+    private void send_ready_batches_locked() {
+
+        while (true) {
+            List<SendMessageBatchRequestEntry> ready_batch;
+            synchronized (this) {
+                ready_batch = readyBatches.pollFirst();
+            }
+            if (ready_batch == null) {
+                return;
+            }
+
+            try {
+                send_batch(ready_batch);
+            } catch (SendFailure e) {
+                // Note: the batches behind a failed one are not sent after it, as that would break the order of their
+                // groups, so they are reported as unsent together with it.
+                synchronized (this) {
+                    for (List<SendMessageBatchRequestEntry> unsent_batch : readyBatches) {
+                        e.add_unsent(unsent_batch);
+                    }
+                    readyBatches.clear();
+                }
+                throw e;
+            }
+        }
+
+    }
+
+    private void send_batch(List<SendMessageBatchRequestEntry> remaining) {
+
+        for (int attempt = 1; ; attempt++) {
+
+            SendMessageBatchRequest batch_request = SendMessageBatchRequest.builder().queueUrl(queueURL).entries(remaining).build();
+            long sent = System.nanoTime();
+            SendMessageBatchResponse batch_response;
+            try {
+                batch_response = sqsClient.sendMessageBatch(batch_request);
+            } catch (RuntimeException e) {
+                throw new SendFailure("Unable to send message batch: " + e, remaining, e);
+            } finally {
+                SEND_MESSAGE_BATCH.record_since(sent);
+            }
+
+            if (batch_response.failed().isEmpty()) {
+                return;
+            }
+
+            Map<String, BatchResultErrorEntry> failures = new HashMap<String, BatchResultErrorEntry>();
+            for (BatchResultErrorEntry failure : batch_response.failed()) {
+                failures.put(failure.id(), failure);
+            }
+
+            // Note: once a entry of a group has failed, it and every later entry of the group are sent again.
+            Set<String> failed_groups = new HashSet<String>();
+            List<SendMessageBatchRequestEntry> retry_entries = new ArrayList<SendMessageBatchRequestEntry>();
+            String unsendable = null;
+            for (SendMessageBatchRequestEntry entry : remaining) {
+                BatchResultErrorEntry failure = failures.get(entry.id());
+                if (failure == null) {
+                    if (failed_groups.contains(entry.messageGroupId())) {
+                        retry_entries.add(entry);
+                    }
+                    continue;
+                }
+
+                FAILED_ENTRIES.increment();
+                System.err.println("Batch Entry Failed: " + entry.messageBody() + " " + failure.code() + " " + failure.message());
+                if (unsendable == null && (Boolean.TRUE.equals(failure.senderFault()) || attempt >= maxAttempts)) {
+                    unsendable = "Unable to send message: " + entry.messageBody() + " (" + failure.code() + ")";
+                }
+                failed_groups.add(entry.messageGroupId());
+                retry_entries.add(entry);
+            }
+
+            if (unsendable != null) {
+                throw new SendFailure(unsendable, retry_entries, null);
+            }
+
+            remaining = retry_entries;
+            backoff(attempt, remaining);
+
+        }
+
+    }
+
+    private void flush_lingering() {
+
+        // Note: the timer never waits behind a batch that is being sent, it tries again on its next run.
+        if (!sendLock.tryLock()) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (linger_failure != null || batch.isEmpty() || System.currentTimeMillis() - batch_started < lingerMillis) {
+                    return;
+                }
+                close_batch();
+            }
+            send_ready_batches_locked();
+        } catch (RuntimeException e) {
+            // Note: the failure is kept and thrown on the next send() or flush() so the caller never sends the stop
+            // signal after messages have been lost on the timer thread.
+            synchronized (this) {
+                linger_failure = e;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+
+    }
+
+    // Note: called with the monitor held. A failure of the timer is reported once, then the sender can be used again.
+    private void check_linger_failure() {
+        if (linger_failure != null) {
+            RuntimeException failure = linger_failure;
+            linger_failure = null;
+            throw failure;
+        }
+    }
+
+    private void backoff(int attempt, List<SendMessageBatchRequestEntry> remaining) {
+
+        try {
+            Thread.sleep(Math.min(1000L, 50L << attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SendFailure("Interrupted while retrying batch send", remaining, e);
+        }
+
+    }
+
+    /*
+
+        SendFailure: thrown once messages could not be sent, with the deduplication ids of every message that may not
+        have been queued, so the caller can report the records they came from as failed. The messages are no longer
+        held by the sender.
+
+    */
+    public static class SendFailure extends IllegalStateException {
+
+        private final List<String> unsentIds = new ArrayList<String>();
+
+        private SendFailure(String message, List<SendMessageBatchRequestEntry> unsent_entries, Throwable cause) {
+            super(message, cause);
+            add_unsent(unsent_entries);
+        }
+
+        private void add_unsent(List<SendMessageBatchRequestEntry> unsent_entries) {
+            for (SendMessageBatchRequestEntry entry : unsent_entries) {
+                unsentIds.add(entry.messageDeduplicationId());
+            }
+        }
+
+        public List<String> unsentIds() {
+            return unsentIds;
+        }
+
+    }
+
+    @Override
+    public void close() {
+        lingerTimer.shutdownNow();
+        flush();
+    }
+
+}
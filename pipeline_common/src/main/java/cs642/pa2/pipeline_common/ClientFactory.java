@@ -0,0 +1,82 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+
+/*
+
+    ClientFactory: applies the {@link PipelineConfig.ClientSettings} of a service to the builders of its clients, so
+    the DependencyFactory of every stage builds its clients the same way. The Netty client is only needed by the
+    stages that have a async execution mode, so the person recognition function does not package it.
+
+*/
+public final class ClientFactory {
+
+    private ClientFactory() {
+    }
+
+    /*
+
+        configure: this function sets the region, endpoint and retries of the settings on a client builder. The
+        region and endpoint are left to the defaults of the SDK when they are not set.
+
+    */
+    public static <B extends AwsClientBuilder<B, C>, C> B configure(B builder, PipelineConfig.ClientSettings settings) {
+
+        if (settings.region() != null) {
+            builder.region(settings.region());
+        }
+        if (settings.endpoint() != null) {
+            builder.endpointOverride(settings.endpoint());
+        }
+        if (settings.maxAttempts() > 0) {
+            RetryPolicy retry_policy = RetryPolicy.builder()
+                    .numRetries(settings.maxAttempts() - 1)
+                    .backoffStrategy(FullJitterBackoffStrategy.builder().baseDelay(settings.baseDelay()).maxBackoffTime(settings.maxBackoff()).build())
+                    .build();
+            builder.overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(retry_policy).build());
+        }
+        return builder;
+
+    }
+
+    /*
+
+        configureWithoutRetries: this function configures a client builder like configure, but with the retries of
+        the SDK turned off. It is used for the clients whose requests are retried by a AdaptiveLimiter, as retries
+        inside the SDK would hold the place of the request in the limit, hide the throttling the limiter adapts to,
+        and multiply with the attempts of the limiter.
+
+    */
+    public static <B extends AwsClientBuilder<B, C>, C> B configureWithoutRetries(B builder, PipelineConfig.ClientSettings settings) {
+        return configure(builder, settings).overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(RetryPolicy.none()).build());
+    }
+
+    public static ApacheHttpClient.Builder pooledHttpClient(PipelineConfig.ClientSettings settings) {
+        return ApacheHttpClient.builder()
+                .maxConnections(settings.maxConnections())
+                .connectionTimeout(settings.connectionTimeout())
+                .socketTimeout(settings.socketTimeout())
+                .connectionAcquisitionTimeout(settings.connectionAcquisitionTimeout())
+                .connectionMaxIdleTime(settings.connectionMaxIdleTime())
+                .tcpKeepAlive(settings.tcpKeepAlive());
+    }
+
+    // Note: requests beyond the connection limit wait for a connection in the client rather than failing, and the
+    // callers bound how many they start, so the wait for a connection is only ever short.
+    public static NettyNioAsyncHttpClient.Builder asyncHttpClient(PipelineConfig.ClientSettings settings) {
+        return NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(settings.maxConnections())
+                .connectionTimeout(settings.connectionTimeout())
+                .readTimeout(settings.socketTimeout())
+                .writeTimeout(settings.socketTimeout())
+                .connectionAcquisitionTimeout(settings.connectionAcquisitionTimeout())
+                .connectionMaxIdleTime(settings.connectionMaxIdleTime())
+                .tcpKeepAlive(settings.tcpKeepAlive());
+    }
+
+}
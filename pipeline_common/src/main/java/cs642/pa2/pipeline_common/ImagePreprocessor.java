@@ -0,0 +1,267 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.rekognition.model.Image;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    ImagePreprocessor: prepares a image to be sent to Rekognition as bytes rather than as a reference to the S3
+    object. The image is fetched from S3, decoded, made no larger than a set dimension by scaling it down or cropping
+    its centre, and encoded again as a JPEG. Rekognition then receives a image a fraction of the size of a full
+    resolution camera original and does not have to fetch it itself.
+
+    Large images are decoded with subsampling, so only about the pixels needed for the smaller image are ever held in
+    memory. The buffers the object is read into and the JPEG is written into are reused through a pool, so they are
+    not grown again for every image, but the bytes that are sent are still copied out of them once, as SdkBytes only
+    wraps a whole array without copying it. Images that are already small enough are sent as they are, and images that
+    can not be fetched or decoded here, or that are still above the Rekognition limit for bytes, return null so the
+    caller can fall back to the S3 reference.
+
+*/
+public class ImagePreprocessor {
+
+    // Note: the largest image Rekognition accepts as bytes, and the largest buffer kept in the pool.
+    private static final int MAX_IMAGE_BYTES = 5 * 1024 * 1024;
+    private static final int MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    // Note: the time taken to fetch and prepare each image, and the images sent as a S3 reference instead.
+    private static final PipelineMetrics.Histogram PREPARE_IMAGE = PipelineMetrics.histogram("image.prepare");
+    private static final LongAdder S3_REFERENCE_FALLBACKS = PipelineMetrics.counter("image.s3ReferenceFallbacks");
+
+    public enum Resize {
+        SCALE, CROP
+    }
+
+    private final S3Client s3Client;
+    private final int maxDimension;
+    private final Resize resize;
+    private final float jpegQuality;
+    private final BlockingQueue<ImageBuffer> buffers;
+
+    public ImagePreprocessor(S3Client s3Client, int maxDimension, Resize resize, float jpegQuality, int poolSize) {
+        this.s3Client = s3Client;
+        this.maxDimension = Math.max(1, maxDimension);
+        this.resize = resize;
+        this.jpegQuality = jpegQuality;
+        this.buffers = new ArrayBlockingQueue<ImageBuffer>(Math.max(1, poolSize * 2));
+    }
+
+    /*
+
+        create: this function returns a preprocessor for the "bytes" image mode, or null for the "s3" image mode in
+        which images are passed to Rekognition as a S3 reference.
+
+    */
+    public static ImagePreprocessor create(S3Client s3Client, String image_mode, int max_dimension, String resize, int pool_size) {
+
+        String mode = image_mode.trim().toLowerCase(Locale.ROOT);
+        if (mode.equals("s3")) {
+            return null;
+        }
+        if (!mode.equals("bytes")) {
+            throw new IllegalArgumentException("Unknown image mode: " + image_mode);
+        }
+
+        return new ImagePreprocessor(s3Client, max_dimension, Resize.valueOf(resize.trim().toUpperCase(Locale.ROOT)), 0.9F, pool_size);
+    }
+
+    /*
+
+        image: this function fetches a image from S3 and returns it as a Rekognition image of bytes, or null when the
+        image has to be sent as a S3 reference instead.
+
+    */
+    public Image image(String bucket_name, String image_name) {
+
+        long started = System.nanoTime();
+        ImageBuffer source = acquire();
+        ImageBuffer encoded = acquire();
+
+        try {
+            GetObjectRequest object_request = GetObjectRequest.builder().bucket(bucket_name).key(image_name).build();
+            try (ResponseInputStream<GetObjectResponse> image_object = s3Client.getObject(object_request)) {
+                Long content_length = image_object.response().contentLength();
+                source.read_from(image_object, content_length == null ? 0 : content_length);
+            }
+
+            byte[] image_bytes = prepare(source, encoded);
+            if (image_bytes == null) {
+                S3_REFERENCE_FALLBACKS.increment();
+                return null;
+            }
+
+            return Image.builder().bytes(SdkBytes.fromByteArrayUnsafe(image_bytes)).build();
+
+        } catch (IOException | SdkException e) {
+            S3_REFERENCE_FALLBACKS.increment();
+            System.err.println("Sending as S3 reference: " + image_name + " " + e);
+            return null;
+        } finally {
+            release(source);
+            release(encoded);
+            PREPARE_IMAGE.record_since(started);
+        }
+
+    }
+
+    /*
+
+        prepare: this function decodes the image in the source buffer and returns the bytes to send.
+
+        Summary: The function reads the dimensions of the image from its header. When the image is already within the
+        set dimension, and is a JPEG or PNG under the Rekognition limit, the source bytes are returned as they are.
+        Otherwise, the image is decoded, subsampled by the largest whole factor that keeps it above the set dimension
+        when scaling, or only its centre region when cropping, and the decoded image is drawn at its final size and
+        encoded as a JPEG into the encoded buffer. Null is returned when the image can not be decoded or is still too
+        large.
+
+    */
+    private byte[] prepare(ImageBuffer source, ImageBuffer encoded) throws IOException {
+
+        ImageInputStream image_input = new MemoryCacheImageInputStream(new ByteArrayInputStream(source.array(), 0, source.size()));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(image_input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+
+        ImageReader reader = readers.next();
+        BufferedImage decoded_image;
+        int target_width;
+        int target_height;
+
+        try {
+            reader.setInput(image_input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+
+            if (Math.max(width, height) <= maxDimension) {
+                boolean accepted_format = format.equals("jpeg") || format.equals("jpg") || format.equals("png");
+                if (accepted_format && source.size() <= MAX_IMAGE_BYTES) {
+                    return Arrays.copyOf(source.array(), source.size());
+                }
+            }
+
+            ImageReadParam read_param = reader.getDefaultReadParam();
+            if (resize == Resize.CROP) {
+                target_width = Math.min(width, maxDimension);
+                target_height = Math.min(height, maxDimension);
+                read_param.setSourceRegion(new Rectangle((width - target_width) / 2, (height - target_height) / 2, target_width, target_height));
+            } else {
+                double scale = Math.max(1.0, Math.max(width, height) / (double) maxDimension);
+                target_width = Math.max(1, (int) Math.round(width / scale));
+                target_height = Math.max(1, (int) Math.round(height / scale));
+                int subsampling = (int) Math.floor(scale);
+                read_param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+
+            decoded_image = reader.read(0, read_param);
+        } finally {
+            reader.dispose();
+            image_input.close();
+        }
+
+        // Note: the image is always drawn into a RGB image, which both scales it and drops any alpha channel that a
+        // JPEG can not hold.
+        BufferedImage target_image = new BufferedImage(target_width, target_height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target_image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(decoded_image, 0, 0, target_width, target_height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (MemoryCacheImageOutputStream image_output = new MemoryCacheImageOutputStream(encoded)) {
+            ImageWriteParam write_param = writer.getDefaultWriteParam();
+            write_param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            write_param.setCompressionQuality(jpegQuality);
+
+            writer.setOutput(image_output);
+            writer.write(null, new IIOImage(target_image, null, null), write_param);
+        } finally {
+            writer.dispose();
+        }
+
+        if (encoded.size() > MAX_IMAGE_BYTES) {
+            return null;
+        }
+
+        return Arrays.copyOf(encoded.array(), encoded.size());
+    }
+
+    private ImageBuffer acquire() {
+        ImageBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : new ImageBuffer(1024 * 1024);
+    }
+
+    private void release(ImageBuffer buffer) {
+        // Note: a buffer grown for a unusually large image is left for the garbage collector rather than pooled.
+        if (buffer.array().length <= MAX_POOLED_BYTES) {
+            buffer.reset();
+            buffers.offer(buffer);
+        }
+    }
+
+    // Note: a byte array output stream that exposes its array, so the bytes can be read without a copy, and that can
+    // read a whole stream straight into its array.
+    private static class ImageBuffer extends ByteArrayOutputStream {
+
+        ImageBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void read_from(InputStream input, long length) throws IOException {
+
+            // Note: a buffer one byte longer than the object reaches the end of the stream without growing again.
+            reset();
+            if (length >= buf.length && length < Integer.MAX_VALUE - 8) {
+                buf = new byte[(int) length + 1];
+            }
+
+            int read;
+            while ((read = input.read(buf, count, buf.length - count)) != -1) {
+                count += read;
+                if (count == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,361 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+
+    LabelCache: keeps the labels Rekognition detected for a image so that a image is never sent to detectLabels twice
+    while it is unchanged. Entries are keyed by the bucket, key, and S3 ETag of the image, so a image that is replaced
+    gets a new entry. Recently used entries are held in memory, up to a fixed number of entries, and every entry is
+    also appended to a compact local file that is read back on the next run. Only the offset of each entry is kept in
+    memory for the file, and the labels are read from the file when the entry is needed again.
+
+    The file holds up to a fixed number of entries as well. Once it holds more, it is compacted: the least recently
+    used entries are dropped, along with the records of images that were replaced since, and the rest are written to a
+    new file that takes the place of the old one, so neither the file nor the offsets kept for it grow without bound.
+
+*/
+public class LabelCache implements AutoCloseable {
+
+    private static final int FILE_MAGIC = 0x4C424C31;
+
+    private final Map<String, List<Label>> memoryEntries;
+    private final Map<String, Long> fileOffsets = new LinkedHashMap<String, Long>(16, 0.75F, true);
+    private final Path cachePath;
+    private final int maxFileEntries;
+    private RandomAccessFile file;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong fileHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    public LabelCache(String cacheFile, final int maxMemoryEntries, int maxFileEntries) throws IOException {
+
+        this.memoryEntries = new LinkedHashMap<String, List<Label>>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Label>> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+
+        this.cachePath = Paths.get(cacheFile);
+        this.maxFileEntries = Math.max(1, maxFileEntries);
+        this.file = new RandomAccessFile(cacheFile, "rw");
+        load_offsets(cacheFile);
+        if (fileOffsets.size() > this.maxFileEntries) {
+            compact();
+        }
+
+    }
+
+    /*
+
+        get: this function returns the cached labels of a image, or null when the image has not been labelled yet or
+        has changed since. The memory entries are checked first and then the file.
+
+    */
+    public synchronized List<Label> get(String bucket, String key, String eTag) {
+
+        if (eTag == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        String cache_key = cache_key(bucket, key, eTag);
+
+        List<Label> labels = memoryEntries.get(cache_key);
+        if (labels != null) {
+            memoryHits.incrementAndGet();
+            return labels;
+        }
+
+        Long offset = fileOffsets.get(cache_key);
+        if (offset != null) {
+            try {
+                file.seek(offset);
+                file.readUTF();
+                labels = read_labels(file);
+                memoryEntries.put(cache_key, labels);
+                fileHits.incrementAndGet();
+                return labels;
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+
+    }
+
+    /*
+
+        put: this function stores the labels of a image in memory and appends them to the end of the cache file.
+        Images without a ETag are not stored, as there would be no way to tell when they change.
+
+    */
+    public synchronized void put(String bucket, String key, String eTag, List<Label> labels) {
+
+        if (eTag == null || labels == null) {
+            return;
+        }
+
+        String cache_key = cache_key(bucket, key, eTag);
+        memoryEntries.put(cache_key, labels);
+
+        try {
+            ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(record_bytes);
+            record.writeUTF(cache_key);
+            write_labels(record, labels);
+
+            long offset = file.length();
+            file.seek(offset);
+            file.write(record_bytes.toByteArray());
+            fileOffsets.put(cache_key, offset);
+            if (fileOffsets.size() > maxFileEntries) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+
+    }
+
+    public String statistics() {
+        return "Label Cache - Memory Hits: " + memoryHits.get() + " File Hits: " + fileHits.get() + " Misses: " + misses.get() + " Compactions: " + compactions.get();
+    }
+
+    public long hits() {
+        return memoryHits.get() + fileHits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private static String cache_key(String bucket, String key, String eTag) {
+        return bucket + "/" + key + "@" + eTag;
+    }
+
+    /*
+
+        load_offsets: this function reads every record of the cache file and keeps the offset of each one. A new file
+        gets its header written. A record cut short by a crash is dropped by truncating the file to the end of the last
+        complete record.
+
+    */
+    private void load_offsets(String cacheFile) throws IOException {
+
+        if (file.length() == 0) {
+            file.writeInt(FILE_MAGIC);
+            return;
+        }
+
+        long offset;
+        try (PositionInputStream position = new PositionInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 64 * 1024))) {
+            DataInputStream records = new DataInputStream(position);
+
+            if (records.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a label cache file: " + cacheFile);
+            }
+
+            offset = position.position;
+            try {
+                while (true) {
+                    String cache_key = records.readUTF();
+                    read_labels(records);
+                    fileOffsets.put(cache_key, offset);
+                    offset = position.position;
+                }
+            } catch (EOFException e) {
+                // Note: the end of the file, or the start of a record that was not written in full.
+            }
+        }
+
+        file.setLength(offset);
+
+    }
+
+    /*
+
+        compact: this function writes the most recently used entries of the file, three quarters of the most it may
+        hold so the next compaction is some time away, to a new file and renames it over the cache file. The records
+        are copied in the order of the old file, which is read through once, and only the latest record of each kept
+        entry is copied. A crash before the rename leaves the old file in place.
+
+    */
+    private void compact() throws IOException {
+
+        int keep_entries = Math.max(1, maxFileEntries / 4 * 3);
+        Map<String, Long> kept_offsets = new HashMap<String, Long>();
+        int skip_entries = fileOffsets.size() - keep_entries;
+        for (Map.Entry<String, Long> entry : fileOffsets.entrySet()) {
+            if (skip_entries-- <= 0) {
+                kept_offsets.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        Path compacted_path = Paths.get(cachePath + ".compact");
+        Map<String, Long> compacted_offsets = new HashMap<String, Long>();
+        try (PositionInputStream position = new PositionInputStream(new BufferedInputStream(new FileInputStream(cachePath.toFile()), 64 * 1024));
+             DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted_path.toFile()), 64 * 1024))) {
+
+            DataInputStream records = new DataInputStream(position);
+            records.readInt();
+            compacted.writeInt(FILE_MAGIC);
+
+            long file_end = file.length();
+            while (position.position < file_end) {
+                long offset = position.position;
+                String cache_key = records.readUTF();
+                List<Label> labels = read_labels(records);
+                if (Long.valueOf(offset).equals(kept_offsets.get(cache_key))) {
+                    compacted_offsets.put(cache_key, (long) compacted.size());
+                    compacted.writeUTF(cache_key);
+                    write_labels(compacted, labels);
+                }
+            }
+        }
+
+        // Note: the offsets are put back in the order the entries were last used, so the next compaction keeps the
+        // entries that are in use rather than those that happen to be early in the file.
+        file.close();
+        Files.move(compacted_path, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = new RandomAccessFile(cachePath.toFile(), "rw");
+
+        List<String> kept_keys = new ArrayList<String>(fileOffsets.keySet());
+        fileOffsets.clear();
+        for (String cache_key : kept_keys.subList(kept_keys.size() - kept_offsets.size(), kept_keys.size())) {
+            fileOffsets.put(cache_key, compacted_offsets.get(cache_key));
+        }
+        compactions.incrementAndGet();
+
+    }
+
+    private static void write_labels(DataOutputStream record, List<Label> labels) throws IOException {
+
+        record.writeShort(labels.size());
+        for (Label label : labels) {
+            record.writeUTF(label.name());
+            record.writeFloat(label.confidence());
+
+            record.writeShort(label.parents().size());
+            for (Parent parent : label.parents()) {
+                record.writeUTF(parent.name());
+            }
+
+            record.writeShort(label.instances().size());
+            for (Instance instance : label.instances()) {
+                BoundingBox box = instance.boundingBox() != null ? instance.boundingBox() : BoundingBox.builder().left(0F).top(0F).width(0F).height(0F).build();
+                record.writeFloat(instance.confidence());
+                record.writeFloat(box.left());
+                record.writeFloat(box.top());
+                record.writeFloat(box.width());
+                record.writeFloat(box.height());
+            }
+        }
+
+    }
+
+    private static List<Label> read_labels(DataInput file) throws IOException {
+
+        int label_count = file.readUnsignedShort();
+        List<Label> labels = new ArrayList<Label>(label_count);
+
+        for (int label_index = 0; label_index < label_count; label_index++) {
+            String name = file.readUTF();
+            float confidence = file.readFloat();
+
+            int parent_count = file.readUnsignedShort();
+            List<Parent> parents = new ArrayList<Parent>(parent_count);
+            for (int parent_index = 0; parent_index < parent_count; parent_index++) {
+                parents.add(Parent.builder().name(file.readUTF()).build());
+            }
+
+            int instance_count = file.readUnsignedShort();
+            List<Instance> instances = new ArrayList<Instance>(instance_count);
+            for (int instance_index = 0; instance_index < instance_count; instance_index++) {
+                float instance_confidence = file.readFloat();
+                BoundingBox box = BoundingBox.builder().left(file.readFloat()).top(file.readFloat()).width(file.readFloat()).height(file.readFloat()).build();
+                instances.add(Instance.builder().confidence(instance_confidence).boundingBox(box).build());
+            }
+
+            labels.add(Label.builder().name(name).confidence(confidence).parents(parents).instances(instances).build());
+        }
+
+        return labels;
+
+    }
+
+    // Note: a input stream that counts the bytes read so far, used to find the offset of each record while the file is
+    // read through a buffer.
+    private static class PositionInputStream extends FilterInputStream {
+
+        private long position;
+
+        PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                position++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            position += skipped;
+            return skipped;
+        }
+
+    }
+
+}
@@ -0,0 +1,373 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+
+    LabelRuleEngine: evaluates several label rules, such as "Car > 90" and "Person > 90", in a single pass over the
+    labels Rekognition returned for a image. The best confidence of every rule is kept in the result, so one detect
+    labels response answers every rule, and the result can be carried forward to later stages of the pipeline as a
+    compact payload instead of asking Rekognition again.
+
+    The rules are compiled once into open addressing hash tables of interned label names, one for the labels a rule
+    names directly and one for the parent categories a rule matches through. Evaluating a label is then a single hash
+    probe per name with no allocation, which matters as every image returns dozens of labels.
+
+    Rules are written as "<label>[^]><confidence>[x<instances>]", for example:
+
+        Car>90          a label named Car with a confidence above 90%.
+        Vehicle^>90     a label named Vehicle, or any label with Vehicle as a parent, above 90%.
+        Person>90x2     a label named Person above 90% with at least 2 instances above 90%.
+
+*/
+public class LabelRuleEngine {
+
+    private final LabelRule[] rules;
+
+    // Note: open addressing tables from a interned name to the first rule for it, with the rules for the same name
+    // chained through the next arrays.
+    private final int mask;
+    private final String[] labelNames;
+    private final int[] labelRules;
+    private final String[] parentNames;
+    private final int[] parentRules;
+    private final int[] nextLabelRule;
+    private final int[] nextParentRule;
+
+    public LabelRuleEngine(List<LabelRule> rules) {
+
+        this.rules = rules.toArray(new LabelRule[0]);
+
+        int capacity = Integer.highestOneBit(Math.max(4, this.rules.length * 4) - 1) << 1;
+        this.mask = capacity - 1;
+        this.labelNames = new String[capacity];
+        this.labelRules = new int[capacity];
+        this.parentNames = new String[capacity];
+        this.parentRules = new int[capacity];
+        this.nextLabelRule = new int[this.rules.length];
+        this.nextParentRule = new int[this.rules.length];
+        Arrays.fill(nextParentRule, -1);
+
+        // Note: rules are added last to first so each chain lists its rules in the configured order.
+        for (int index = this.rules.length - 1; index >= 0; index--) {
+            String label = this.rules[index].label();
+
+            int slot = slot(labelNames, label);
+            nextLabelRule[index] = labelNames[slot] == null ? -1 : labelRules[slot];
+            labelNames[slot] = label;
+            labelRules[slot] = index;
+
+            if (this.rules[index].matchParents()) {
+                slot = slot(parentNames, label);
+                nextParentRule[index] = parentNames[slot] == null ? -1 : parentRules[slot];
+                parentNames[slot] = label;
+                parentRules[slot] = index;
+            }
+        }
+
+    }
+
+    /*
+
+        parse_rules: this function reads a comma or line separated list of rules. Blank entries and lines starting
+        with "#" are skipped. Every parsed rule is marked as required or not by the passed in flag. A rule that cannot
+        be read, such as a threshold that is not a number, throws a IllegalArgumentException naming the rule.
+
+    */
+    public static List<LabelRule> parse_rules(String rule_list, boolean required) {
+
+        List<LabelRule> rules = new ArrayList<LabelRule>();
+        for (String entry : rule_list.split("[,\\n]")) {
+            String rule = entry.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+
+            int comparison = rule.indexOf('>');
+            if (comparison <= 0) {
+                throw new IllegalArgumentException("Invalid label rule: " + rule);
+            }
+
+            String label = rule.substring(0, comparison).trim();
+            boolean match_parents = label.endsWith("^");
+            if (match_parents) {
+                label = label.substring(0, label.length() - 1).trim();
+            }
+
+            String threshold = rule.substring(comparison + 1).trim();
+            int min_instances = 0;
+            float min_confidence;
+            try {
+                int instances = threshold.indexOf('x');
+                if (instances >= 0) {
+                    min_instances = Integer.parseInt(threshold.substring(instances + 1).trim());
+                    threshold = threshold.substring(0, instances).trim();
+                }
+                min_confidence = Float.parseFloat(threshold);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid label rule: " + rule, e);
+            }
+
+            rules.add(new LabelRule(label, min_confidence, match_parents, min_instances, required));
+        }
+
+        return rules;
+    }
+
+    /*
+
+        load_rules: this function reads the rules from a file when a file is given and from the passed in list
+        otherwise.
+
+    */
+    public static List<LabelRule> load_rules(String rule_file, String rule_list, boolean required) {
+
+        if (rule_file == null || rule_file.isEmpty()) {
+            return parse_rules(rule_list, required);
+        }
+
+        try {
+            return parse_rules(new String(Files.readAllBytes(Paths.get(rule_file)), StandardCharsets.UTF_8), required);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read label rules: " + rule_file, e);
+        }
+
+    }
+
+    /*
+
+        evaluate: this function looks up each label of a image, and each of its parents, once and keeps the highest
+        confidence and instance count seen for every rule. Labels that no rule asks for cost a single hash probe.
+
+    */
+    public Result evaluate(List<Label> labels) {
+        Result result = new Result();
+        evaluate(labels, result);
+        return result;
+    }
+
+    // Note: evaluates into a result made by newResult(), so a caller that evaluates many images allocates nothing.
+    public void evaluate(List<Label> labels, Result result) {
+
+        Arrays.fill(result.confidences, 0.0F);
+        Arrays.fill(result.instances, 0);
+
+        for (int label_index = 0; label_index < labels.size(); label_index++) {
+            Label label = labels.get(label_index);
+
+            int slot = slot(labelNames, label.name());
+            if (labelNames[slot] != null) {
+                for (int rule = labelRules[slot]; rule >= 0; rule = nextLabelRule[rule]) {
+                    apply(rule, label, result);
+                }
+            }
+
+            List<Parent> parents = label.parents();
+            for (int parent_index = 0; parent_index < parents.size(); parent_index++) {
+                slot = slot(parentNames, parents.get(parent_index).name());
+                if (parentNames[slot] != null) {
+                    for (int rule = parentRules[slot]; rule >= 0; rule = nextParentRule[rule]) {
+                        apply(rule, label, result);
+                    }
+                }
+            }
+        }
+
+    }
+
+    public Result newResult() {
+        return new Result();
+    }
+
+    public int ruleIndex(String label) {
+        int slot = slot(labelNames, label);
+        if (labelNames[slot] == null) {
+            throw new IllegalArgumentException("No rule for label: " + label);
+        }
+        return labelRules[slot];
+    }
+
+    public int ruleCount() {
+        return rules.length;
+    }
+
+    public LabelRule rule(int rule_index) {
+        return rules[rule_index];
+    }
+
+    /*
+
+        describe: this function writes every rule back out in the rule syntax, with a "!" after the required rules,
+        so two rule sets can be compared, such as the rules the progress log of car recognition decided its verdicts
+        with and the rules of the current run.
+
+    */
+    public String describe() {
+
+        StringBuilder description = new StringBuilder();
+        for (LabelRule rule : rules) {
+            if (description.length() > 0) {
+                description.append(',');
+            }
+            description.append(rule.label()).append(rule.matchParents() ? "^" : "").append('>').append(rule.minConfidence());
+            if (rule.minInstances() > 0) {
+                description.append('x').append(rule.minInstances());
+            }
+            if (rule.required()) {
+                description.append('!');
+            }
+        }
+        return description.toString();
+    }
+
+    private void apply(int rule, Label label, Result result) {
+
+        float confidence = label.confidence();
+        if (confidence > result.confidences[rule]) {
+            result.confidences[rule] = confidence;
+        }
+
+        if (rules[rule].minInstances() > 0) {
+            List<Instance> instances = label.instances();
+            int instance_count = 0;
+            for (int instance_index = 0; instance_index < instances.size(); instance_index++) {
+                if (instances.get(instance_index).confidence() > rules[rule].minConfidence()) {
+                    instance_count++;
+                }
+            }
+            if (instance_count > result.instances[rule]) {
+                result.instances[rule] = instance_count;
+            }
+        }
+
+    }
+
+    /*
+
+        slot: this function finds the slot of a name in a table, which is either the slot holding the name or the
+        empty slot where it would go. Names in the table are interned, so most probes end on a reference comparison.
+
+    */
+    private int slot(String[] names, String name) {
+
+        int slot = (name.hashCode() * 0x9E3779B9) >>> 16 & mask;
+        while (names[slot] != null && names[slot] != name && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+
+    }
+
+    /*
+
+        LabelRule: a label name and the confidence a image needs, strictly above, for the label to count as detected.
+        A rule can also match labels that have the name as a parent category, and can ask for a least number of
+        instances of the label. Required rules decide if a image is accepted, while the others are only evaluated so
+        their result can be passed on.
+
+    */
+    public static class LabelRule {
+
+        private final String label;
+        private final float minConfidence;
+        private final boolean matchParents;
+        private final int minInstances;
+        private final boolean required;
+
+        public LabelRule(String label, float minConfidence, boolean matchParents, int minInstances, boolean required) {
+            this.label = label.intern();
+            this.minConfidence = minConfidence;
+            this.matchParents = matchParents;
+            this.minInstances = minInstances;
+            this.required = required;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public float minConfidence() {
+            return minConfidence;
+        }
+
+        public boolean matchParents() {
+            return matchParents;
+        }
+
+        public int minInstances() {
+            return minInstances;
+        }
+
+        public boolean required() {
+            return required;
+        }
+
+    }
+
+    /*
+
+        Result: the best confidence and instance count of every rule for a single image, zero when no label matched
+        the rule. A result can be passed to evaluate() again to be reused for another image.
+
+    */
+    public class Result {
+
+        private final float[] confidences = new float[rules.length];
+        private final int[] instances = new int[rules.length];
+
+        public boolean matched(int rule_index) {
+            LabelRule rule = rules[rule_index];
+            return confidences[rule_index] > rule.minConfidence() && instances[rule_index] >= rule.minInstances();
+        }
+
+        /*
+
+            accepted: this function checks that every required rule matched.
+
+        */
+        public boolean accepted() {
+            for (int index = 0; index < rules.length; index++) {
+                if (rules[index].required() && !matched(index)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public float confidence(int rule_index) {
+            return confidences[rule_index];
+        }
+
+        /*
+
+            payload: this function writes every rule label with its confidence, such as "Car:97.31,Person:0.0".
+            Labels below the threshold of their rule, or not found at all, are kept too, so a later stage can apply a
+            threshold of its own and can tell a label that was not found from a label that was never evaluated.
+
+        */
+        public String payload() {
+
+            StringBuilder payload = new StringBuilder();
+            for (int index = 0; index < confidences.length; index++) {
+                if (index > 0) {
+                    payload.append(',');
+                }
+                payload.append(rules[index].label()).append(':').append(confidences[index]);
+            }
+
+            return payload.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,301 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.regions.Region;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+
+    PipelineConfig: the settings of a stage, read by name from the first of these places that sets them:
+
+        1. The system property of the name under the prefix of the stage, such as car_recognition.concurrency.
+
+        2. The environment variable of the name under the environment prefix of the stage, in upper case and with
+        underscores for dots, such as CAR_RECOGNITION_CONCURRENCY. The person recognition function has no
+        environment prefix, so its settings are the environment variables of the template, such as LABEL_RULES.
+
+        3. The properties file set by the config_file setting, such as car_recognition.config_file or the CONFIG_FILE
+        environment variable of the function, where the names are written without a prefix, such as concurrency=32.
+
+    A setting that is not set anywhere takes the default passed in by the caller, while a setting that cannot be
+    parsed fails with a IllegalArgumentException naming the setting, so a typo fails the run before any work is done.
+    Durations are written with a unit, such as 500ms, 2s, 5m or 1h, or in the ISO 8601 form, such as PT2S.
+
+*/
+public final class PipelineConfig {
+
+    private final String propertyPrefix;
+    private final String environmentPrefix;
+    private final Map<String, String> environment;
+    private final Properties file;
+
+    private PipelineConfig(String propertyPrefix, String environmentPrefix, Map<String, String> environment, Properties file) {
+        this.propertyPrefix = propertyPrefix;
+        this.environmentPrefix = environmentPrefix;
+        this.environment = environment;
+        this.file = file;
+    }
+
+    /*
+
+        load: this function reads the settings under the passed in prefixes, along with the properties file set by
+        their config_file setting.
+
+    */
+    public static PipelineConfig load(String property_prefix, String environment_prefix) {
+
+        PipelineConfig config = new PipelineConfig(property_prefix, environment_prefix, System.getenv(), new Properties());
+        String config_file = config.string("config_file", "");
+        if (config_file.isEmpty()) {
+            return config;
+        }
+
+        Properties file = new Properties();
+        try (Reader reader = Files.newBufferedReader(Paths.get(config_file), StandardCharsets.UTF_8)) {
+            file.load(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read config file: " + config_file, e);
+        }
+        return new PipelineConfig(property_prefix, environment_prefix, config.environment, file);
+
+    }
+
+    // Note: returns null when the setting is not set anywhere.
+    public String string(String name) {
+
+        String value = System.getProperty(propertyPrefix + "." + name);
+        if (value == null) {
+            value = environment.get(environmentPrefix + name.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        if (value == null) {
+            value = file.getProperty(name);
+        }
+        return value == null ? null : value.trim();
+
+    }
+
+    public String string(String name, String default_value) {
+        String value = string(name);
+        return value == null ? default_value : value;
+    }
+
+    public int integer(String name, int default_value) {
+        String value = string(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw invalid(name, value, "a whole number");
+        }
+    }
+
+    public double decimal(String name, double default_value) {
+        String value = string(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw invalid(name, value, "a number");
+        }
+    }
+
+    public boolean flag(String name, boolean default_value) {
+        String value = string(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw invalid(name, value, "true or false");
+    }
+
+    public Duration duration(String name, Duration default_value) {
+
+        String value = string(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+
+        String lower_value = value.toLowerCase(Locale.ROOT);
+        try {
+            if (lower_value.startsWith("pt")) {
+                return Duration.parse(value);
+            }
+            if (lower_value.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(lower_value.substring(0, lower_value.length() - 2).trim()));
+            }
+            long amount = Long.parseLong(lower_value.substring(0, lower_value.length() - 1).trim());
+            switch (lower_value.charAt(lower_value.length() - 1)) {
+                case 's':
+                    return Duration.ofSeconds(amount);
+                case 'm':
+                    return Duration.ofMinutes(amount);
+                case 'h':
+                    return Duration.ofHours(amount);
+                default:
+                    throw invalid(name, value, "a duration such as 500ms, 2s, 5m or 1h");
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw invalid(name, value, "a duration such as 500ms, 2s, 5m or 1h");
+        }
+
+    }
+
+    public <E extends Enum<E>> E choice(String name, Class<E> type, E default_value) {
+        String value = string(name);
+        if (value == null || value.isEmpty()) {
+            return default_value;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw invalid(name, value, "one of " + Arrays.toString(type.getEnumConstants()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /*
+
+        client: this function returns the settings of the client of the passed in service, such as "rekognition". Each
+        setting is read under the name of the service first, such as rekognition.http.max_connections, and then
+        without it, such as http.max_connections, so the settings shared by every client are only written once.
+
+    */
+    public ClientSettings client(String service, Region default_region, int default_max_connections) {
+        return new ClientSettings(this, service, default_region, default_max_connections);
+    }
+
+    private IllegalArgumentException invalid(String name, String value, String expected) {
+        return new IllegalArgumentException("Invalid setting " + propertyPrefix + "." + name + "=" + value + ", expected " + expected);
+    }
+
+    /*
+
+        ClientSettings: the settings of a AWS client.
+
+            1. region and endpoint: the region of the service, and the endpoint to send requests to in place of the
+            endpoint of the region, such as a local stand in for the service. The endpoint is null unless it is set.
+
+            2. http.max_connections, http.connection_timeout, http.socket_timeout, http.connection_max_idle,
+            http.connection_acquisition_timeout and http.tcp_keep_alive: the connection pool of the HTTP client.
+            Connections are kept alive and reused between requests, and a request waits for a pooled connection for
+            up to the acquisition timeout when every connection is in use.
+
+            3. retry.max_attempts, retry.base_delay and retry.max_backoff: the attempts the client makes at a request
+            that failed in a way that may succeed on retry, and the full jitter backoff between them. The retry
+            policy of the SDK is kept unless retry.max_attempts is set. The Rekognition clients never retry, as the
+            adaptive limiter retries their requests under its detection.* settings.
+
+    */
+    public static final class ClientSettings {
+
+        private final Region region;
+        private final URI endpoint;
+        private final int maxConnections;
+        private final Duration connectionTimeout;
+        private final Duration socketTimeout;
+        private final Duration connectionMaxIdleTime;
+        private final Duration connectionAcquisitionTimeout;
+        private final boolean tcpKeepAlive;
+        private final int maxAttempts;
+        private final Duration baseDelay;
+        private final Duration maxBackoff;
+
+        private ClientSettings(PipelineConfig config, String service, Region default_region, int default_max_connections) {
+
+            String region_name = config.string(setting_name(config, service, "region"), "");
+            region = region_name.isEmpty() ? default_region : Region.of(region_name);
+
+            String endpoint_name = setting_name(config, service, "endpoint");
+            String endpoint_uri = config.string(endpoint_name, "");
+            try {
+                endpoint = endpoint_uri.isEmpty() ? null : new URI(endpoint_uri);
+            } catch (URISyntaxException e) {
+                throw config.invalid(endpoint_name, endpoint_uri, "a URI");
+            }
+
+            maxConnections = Math.max(1, config.integer(setting_name(config, service, "http.max_connections"), default_max_connections));
+            connectionTimeout = config.duration(setting_name(config, service, "http.connection_timeout"), Duration.ofSeconds(2));
+            socketTimeout = config.duration(setting_name(config, service, "http.socket_timeout"), Duration.ofSeconds(30));
+            connectionMaxIdleTime = config.duration(setting_name(config, service, "http.connection_max_idle"), Duration.ofMinutes(5));
+            connectionAcquisitionTimeout = config.duration(setting_name(config, service, "http.connection_acquisition_timeout"), Duration.ofSeconds(60));
+            tcpKeepAlive = config.flag(setting_name(config, service, "http.tcp_keep_alive"), true);
+            maxAttempts = config.integer(setting_name(config, service, "retry.max_attempts"), 0);
+            baseDelay = config.duration(setting_name(config, service, "retry.base_delay"), Duration.ofMillis(100));
+            maxBackoff = config.duration(setting_name(config, service, "retry.max_backoff"), Duration.ofSeconds(20));
+
+        }
+
+        // Note: the name the setting is read by, so a invalid value is reported under the name it was set by.
+        private static String setting_name(PipelineConfig config, String service, String name) {
+            return config.string(service + "." + name) != null ? service + "." + name : name;
+        }
+
+        // Note: null when the region is left to the default region provider chain of the SDK.
+        public Region region() {
+            return region;
+        }
+
+        public URI endpoint() {
+            return endpoint;
+        }
+
+        public int maxConnections() {
+            return maxConnections;
+        }
+
+        public Duration connectionTimeout() {
+            return connectionTimeout;
+        }
+
+        public Duration socketTimeout() {
+            return socketTimeout;
+        }
+
+        public Duration connectionMaxIdleTime() {
+            return connectionMaxIdleTime;
+        }
+
+        public Duration connectionAcquisitionTimeout() {
+            return connectionAcquisitionTimeout;
+        }
+
+        public boolean tcpKeepAlive() {
+            return tcpKeepAlive;
+        }
+
+        // Note: zero when the retry policy of the SDK is kept.
+        public int maxAttempts() {
+            return maxAttempts;
+        }
+
+        public Duration baseDelay() {
+            return baseDelay;
+        }
+
+        public Duration maxBackoff() {
+            return maxBackoff;
+        }
+
+    }
+
+}
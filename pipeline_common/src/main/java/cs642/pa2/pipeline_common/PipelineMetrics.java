@@ -0,0 +1,235 @@
+package cs642.pa2.pipeline_common;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    PipelineMetrics: latency histograms and counters for the requests and writes of the pipeline, kept in memory and
+    written as periodic snapshots so the stage that bounds the throughput of the pipeline can be found.
+
+    Histograms and counters are created once by name, held in static fields by the code that records them, and then
+    recorded without allocating or locking. A histogram keeps its values in buckets of log linear width, 32 buckets to
+    every power of two, so a recorded latency is counted within about 3% of its value from a nanosecond up to the
+    longest latency a long can hold, in a fixed array of counts. A snapshot reads the counts as they are, so a value
+    recorded during the snapshot may be in its count but not yet in its percentiles.
+
+    Each snapshot lists, for every histogram and counter, the count since the start and the rate per second since the
+    last snapshot, along with the 50th, 90th, 99th percentile and largest latency of each histogram.
+
+*/
+public final class PipelineMetrics {
+
+    private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+
+    // Note: the counts and time of the last snapshot, which the rates of the next snapshot are taken against.
+    private static final Map<String, Long> last_counts = new HashMap<String, Long>();
+    private static long last_snapshot = System.nanoTime();
+
+    private static ScheduledExecutorService reporter;
+
+    private PipelineMetrics() {
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, histogram_name -> new Histogram());
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, counter_name -> new LongAdder());
+    }
+
+    /*
+
+        start_reporting: this function appends a snapshot to the passed in file every interval, on a daemon thread. No
+        snapshots are written when the file is empty.
+
+    */
+    public static synchronized void start_reporting(String metrics_file, long interval_seconds) {
+
+        if (metrics_file.isEmpty() || reporter != null) {
+            return;
+        }
+
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long interval = Math.max(1, interval_seconds);
+        reporter.scheduleWithFixedDelay(() -> write_snapshot(metrics_file), interval, interval, TimeUnit.SECONDS);
+        System.out.println("Writing Metrics: " + metrics_file + " Every " + interval + " Seconds");
+
+    }
+
+    /*
+
+        stop_reporting: this function stops the periodic snapshots and appends a last snapshot, so the end of a run is
+        always in the file.
+
+    */
+    public static synchronized void stop_reporting(String metrics_file) {
+
+        if (reporter == null) {
+            return;
+        }
+
+        reporter.shutdownNow();
+        reporter = null;
+        write_snapshot(metrics_file);
+
+    }
+
+    /*
+
+        snapshot: this function returns a snapshot of every histogram and counter, one per line.
+
+    */
+    public static synchronized String snapshot() {
+
+        long now = System.nanoTime();
+        double elapsed_seconds = Math.max(1e-9, (now - last_snapshot) / 1e9);
+        last_snapshot = now;
+
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append("Metrics ").append(Instant.now()).append('\n');
+
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            Histogram value = histogram.getValue();
+            long count = value.count();
+            snapshot.append(String.format("  %-28s count=%d rate=%.1f/s p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms%n",
+                    histogram.getKey(), count, rate(histogram.getKey(), count, elapsed_seconds),
+                    millis(value.percentile(50)), millis(value.percentile(90)), millis(value.percentile(99)), millis(value.max())));
+        }
+
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            long count = counter.getValue().sum();
+            snapshot.append(String.format("  %-28s count=%d rate=%.1f/s%n", counter.getKey(), count, rate(counter.getKey(), count, elapsed_seconds)));
+        }
+
+        return snapshot.toString();
+    }
+
+    private static double rate(String name, long count, double elapsed_seconds) {
+        Long last_count = last_counts.put(name, count);
+        return (count - (last_count == null ? 0 : last_count)) / elapsed_seconds;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void write_snapshot(String metrics_file) {
+
+        try (Writer metrics = new FileWriter(metrics_file, true)) {
+            metrics.write(snapshot());
+        } catch (IOException e) {
+            System.err.println("Metrics Not Written: " + e);
+        }
+
+    }
+
+    /*
+
+        Histogram: the latencies of one kind of request in nanoseconds. Values below 64 have a bucket each, and every
+        power of two above that is split into 32 buckets of equal width.
+
+    */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator largest = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+        }
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            total.increment();
+            largest.accumulate(value);
+        }
+
+        /*
+
+            record_since: this function records the time from the passed in System.nanoTime() until now.
+
+        */
+        public void record_since(long started) {
+            record(System.nanoTime() - started);
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        public long max() {
+            return largest.get();
+        }
+
+        /*
+
+            percentile: this function returns the least latency at or above the passed in percentile of the recorded
+            latencies, as the upper bound of its bucket.
+
+        */
+        public long percentile(double percentile) {
+
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(upper_bound(bucket), max());
+                }
+            }
+            return max();
+        }
+
+        static int bucket(long value) {
+
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        static long upper_bound(int bucket) {
+
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+    }
+
+}
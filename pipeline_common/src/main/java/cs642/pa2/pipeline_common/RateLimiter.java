@@ -0,0 +1,78 @@
+package cs642.pa2.pipeline_common;
+
+/*
+
+    RateLimiter: a token bucket used to keep the number of Rekognition requests per second below the account TPS
+    limit. Tokens are refilled continuously at the configured rate up to a burst capacity, and every request takes a
+    single token before it is sent. A rate of zero or less disables limiting entirely.
+
+    A request reserves its token up front, which may take the bucket below zero, and waits until the bucket has
+    refilled to where its token was taken. Reserving lets a request that must not block a thread, such as a retry
+    scheduled by the AdaptiveLimiter, be scheduled for the time its token becomes available instead.
+
+*/
+public class RateLimiter {
+
+    private final double permits_per_nano;
+    private final double capacity;
+    private double tokens;
+    private long last_refill;
+
+    public RateLimiter(double permits_per_second, double burst) {
+        this.permits_per_nano = permits_per_second / 1_000_000_000.0;
+        this.capacity = Math.max(1.0, burst);
+        this.tokens = this.capacity;
+        this.last_refill = System.nanoTime();
+    }
+
+    public boolean enabled() {
+        return permits_per_nano > 0;
+    }
+
+    /*
+
+        acquire: this function blocks the calling thread until its token is available.
+
+    */
+    public void acquire() throws InterruptedException {
+
+        long wait_nanos = reserve();
+        if (wait_nanos > 0) {
+            Thread.sleep(wait_nanos / 1_000_000, (int) (wait_nanos % 1_000_000));
+        }
+
+    }
+
+    /*
+
+        reserve: this function takes a token and returns the nanoseconds until the token is available, zero when it
+        is available now.
+
+        Summary: The function refills the bucket based on the time elapsed since the last refill and takes a token. If
+        the bucket held a whole token the request may go at once. Otherwise, the bucket is left below zero by the
+        tokens reserved ahead of the refill, and the time until it refills to zero is the wait of the request, so the
+        requests waiting are let through in the order they reserved at the configured rate.
+
+    */
+    public synchronized long reserve() {
+
+        if (permits_per_nano <= 0) {
+            return 0;
+        }
+
+        refill();
+        tokens -= 1.0;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / permits_per_nano);
+
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last_refill) * permits_per_nano);
+        last_refill = now;
+    }
+
+}
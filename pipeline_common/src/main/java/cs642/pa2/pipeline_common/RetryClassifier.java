@@ -0,0 +1,86 @@
+package cs642.pa2.pipeline_common;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.rekognition.model.ImageTooLargeException;
+import software.amazon.awssdk.services.rekognition.model.InvalidImageFormatException;
+import software.amazon.awssdk.services.rekognition.model.InvalidS3ObjectException;
+import software.amazon.awssdk.services.rekognition.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.rekognition.model.ThrottlingException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/*
+
+    RetryClassifier: decides what to do with a failed Rekognition request. Throttled and transient failures are worth
+    retrying with a backoff, and in the person recognition function then by letting SQS deliver the message again.
+    Permanent failures are those of the image itself, a image that does not exist, is not a supported format or is
+    too large, which will fail again on every attempt, so they are not retried and the image is taken as having no
+    labels or text. Every other failure is rejected, such as access denied, expired credentials or a invalid request,
+    which is not retried either, but fails the image rather than passing it on as a image without labels or text, as
+    it says nothing about the image and would fail every image alike.
+
+    A request that failed in the client before Rekognition answered, such as a connection reset, a socket timeout or
+    a attempt that ran out of time, is transient as well, as the SDK itself does not retry the requests a limiter
+    sends. Any other client failure, such as missing credentials, is rejected.
+
+*/
+public final class RetryClassifier {
+
+    public enum Classification {
+        THROTTLED,
+        TRANSIENT,
+        PERMANENT,
+        REJECTED
+    }
+
+    private RetryClassifier() {
+    }
+
+    public static Classification classify(AwsServiceException e) {
+
+        if (e instanceof ProvisionedThroughputExceededException || e instanceof ThrottlingException || e.isThrottlingException()) {
+            return Classification.THROTTLED;
+        }
+
+        if (e instanceof InvalidS3ObjectException || e instanceof InvalidImageFormatException || e instanceof ImageTooLargeException) {
+            return Classification.PERMANENT;
+        }
+
+        return e.statusCode() >= 500 ? Classification.TRANSIENT : Classification.REJECTED;
+    }
+
+    public static Classification classify(SdkClientException e) {
+
+        if (e.retryable() || e instanceof ApiCallAttemptTimeoutException || e instanceof ApiCallTimeoutException) {
+            return Classification.TRANSIENT;
+        }
+
+        // Note: the SDK wraps the failure of the connection, so the causes are searched for a failed read or write.
+        for (Throwable cause = e.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof UncheckedIOException || cause instanceof TimeoutException) {
+                return Classification.TRANSIENT;
+            }
+        }
+
+        return Classification.REJECTED;
+    }
+
+    /*
+
+        backoff_delay: this function returns the delay in milliseconds before the next attempt of a request. The delay
+        starts at the passed in base delay and doubles with every attempt up to the passed in cap, and a random part
+        of it is used (full jitter), so requests throttled together do not retry together.
+
+    */
+    public static long backoff_delay(int attempt, long base_delay_ms, long max_delay_ms) {
+        long max_delay = Math.min(max_delay_ms, base_delay_ms << Math.min(attempt, 10));
+        return ThreadLocalRandom.current().nextLong(max_delay + 1);
+    }
+
+}
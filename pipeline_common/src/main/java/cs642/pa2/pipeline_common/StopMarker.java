@@ -0,0 +1,121 @@
+package cs642.pa2.pipeline_common;
+
+/*
+
+    StopMarker: the end of stream marker sent through the queues once every image has been sent. A single producer
+    that sends every message in one message group sends the plain "-1" stop signal.
+
+    When the bucket is split across several car recognition producers, or the messages are spread over several
+    message groups so that more than one consumer can work at once, a marker is sent at the end of every message group
+    by every producer, of the form "-1:<shard index>:<shard count>:<group index>:<group count>". As a FIFO queue keeps
+    the order within a group, the marker of a group arrives after every message the producer sent in that group.
+    Consumers stop once they have seen the marker of every shard in every group. The "-1:<shard index>:<shard count>"
+    form of a sharded producer with a single message group is still read.
+
+*/
+public class StopMarker {
+
+    private static final String STOP_BODY = "-1";
+
+    private final int shardIndex;
+    private final int shardCount;
+    private final int groupIndex;
+    private final int groupCount;
+
+    private StopMarker(int shardIndex, int shardCount, int groupIndex, int groupCount) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.groupIndex = groupIndex;
+        this.groupCount = groupCount;
+    }
+
+    public static StopMarker of(int shard_index, int shard_count) {
+        return of(shard_index, shard_count, 0, 1);
+    }
+
+    public static StopMarker of(int shard_index, int shard_count, int group_index, int group_count) {
+
+        if (shard_count < 1 || shard_index < 0 || shard_index >= shard_count) {
+            throw new IllegalArgumentException("Invalid shard " + shard_index + " of " + shard_count);
+        }
+        if (group_count < 1 || group_index < 0 || group_index >= group_count) {
+            throw new IllegalArgumentException("Invalid message group " + group_index + " of " + group_count);
+        }
+        return new StopMarker(shard_index, shard_count, group_index, group_count);
+    }
+
+    /*
+
+        parse: this function reads a message body as a stop marker, or returns null when the body is a image.
+
+    */
+    public static StopMarker parse(String body) {
+
+        if (body.equals(STOP_BODY)) {
+            return of(0, 1);
+        }
+        if (!body.startsWith(STOP_BODY + ":")) {
+            return null;
+        }
+
+        String[] parts = body.split(":");
+        if (parts.length == 3) {
+            return of(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+        if (parts.length == 5) {
+            return of(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+        }
+        throw new IllegalArgumentException("Invalid stop marker: " + body);
+    }
+
+    /*
+
+        isFinal: this function checks if this marker alone ends the stream, which is only the plain "-1" stop signal.
+
+    */
+    public boolean isFinal() {
+        return shardCount == 1 && groupCount == 1;
+    }
+
+    public boolean sharded() {
+        return shardCount > 1;
+    }
+
+    public int shardIndex() {
+        return shardIndex;
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int groupIndex() {
+        return groupIndex;
+    }
+
+    public int groupCount() {
+        return groupCount;
+    }
+
+    /*
+
+        markerIndex: this function numbers the markers a consumer waits for, one for every shard in every group.
+
+    */
+    public int markerIndex() {
+        return shardIndex * groupCount + groupIndex;
+    }
+
+    public int markerCount() {
+        return shardCount * groupCount;
+    }
+
+    public String body() {
+
+        if (groupCount == 1) {
+            return sharded() ? STOP_BODY + ":" + shardIndex + ":" + shardCount : STOP_BODY;
+        }
+        return STOP_BODY + ":" + shardIndex + ":" + shardCount + ":" + groupIndex + ":" + groupCount;
+    }
+
+}
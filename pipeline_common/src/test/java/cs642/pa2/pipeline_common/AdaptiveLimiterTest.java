@@ -0,0 +1,99 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.RetryableException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+
+    AdaptiveLimiterTest: checks that a request that failed in the client, such as on a connection reset or a timeout,
+    is taken as transient and sent again by the blocking and the non blocking calls of the limiter, while a client
+    failure that would fail again, such as missing credentials, is passed on after its first attempt.
+
+*/
+class AdaptiveLimiterTest {
+
+    @Test
+    void client_failures_of_the_connection_are_transient() {
+
+        assertEquals(RetryClassifier.Classification.TRANSIENT, RetryClassifier.classify(connection_reset()));
+        assertEquals(RetryClassifier.Classification.TRANSIENT, RetryClassifier.classify(SdkClientException.create("Unable to execute HTTP request", new SocketTimeoutException("Read timed out"))));
+        assertEquals(RetryClassifier.Classification.TRANSIENT, RetryClassifier.classify(ApiCallAttemptTimeoutException.create(1000)));
+        assertEquals(RetryClassifier.Classification.TRANSIENT, RetryClassifier.classify(RetryableException.create("Retry")));
+        assertEquals(RetryClassifier.Classification.REJECTED, RetryClassifier.classify(credentials_missing()));
+    }
+
+    @Test
+    void connection_reset_is_retried() throws InterruptedException {
+
+        AtomicInteger attempts = new AtomicInteger();
+        String labels = limiter().call(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw connection_reset();
+            }
+            return "labels";
+        });
+
+        assertEquals("labels", labels);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void connection_reset_is_retried_without_blocking() throws InterruptedException, ExecutionException, TimeoutException {
+
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> labels = limiter().call_async(() -> {
+            CompletableFuture<String> attempt_response = new CompletableFuture<String>();
+            if (attempts.incrementAndGet() < 3) {
+                attempt_response.completeExceptionally(connection_reset());
+            } else {
+                attempt_response.complete("labels");
+            }
+            return attempt_response;
+        });
+
+        assertEquals("labels", labels.get(10, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void rejected_client_failure_is_not_retried() {
+
+        AtomicInteger attempts = new AtomicInteger();
+        SdkClientException failure = credentials_missing();
+        SdkClientException thrown = assertThrows(SdkClientException.class, () -> limiter().call(() -> {
+            attempts.incrementAndGet();
+            throw failure;
+        }));
+
+        assertSame(failure, thrown);
+        assertEquals(1, attempts.get());
+    }
+
+    // Note: a limiter with a short backoff, so the retries of a test do not wait long.
+    private static AdaptiveLimiter limiter() {
+        return new AdaptiveLimiter("test", 4, 1, 4, 2.0, 0.9, 0.5, 8, 1, 5, 0);
+    }
+
+    private static SdkClientException connection_reset() {
+        return SdkClientException.create("Unable to execute HTTP request: Connection reset", new SocketException("Connection reset"));
+    }
+
+    private static SdkClientException credentials_missing() {
+        return SdkClientException.create("Unable to load credentials from any of the providers in the chain");
+    }
+
+}
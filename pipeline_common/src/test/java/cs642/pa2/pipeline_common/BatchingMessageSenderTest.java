@@ -0,0 +1,277 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    BatchingMessageSenderTest: checks that messages are sent in full batches in the order they were added, that a
+    batch SQS only partly accepted is retried without breaking the order of a message group or losing a message, and
+    that a batch waiting to be retried does not hold up the callers that add messages.
+
+*/
+class BatchingMessageSenderTest {
+
+    private static final String QUEUE_URL = "https://sqs.us-west-2.amazonaws.com/000000000000/car_indexes.fifo";
+
+    // Note: a linger time longer than any test, so batches are only sent when full or flushed unless a test asks.
+    private static final long NO_LINGER = 60_000;
+
+    @Test
+    void full_batch_is_sent_at_once() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 5)) {
+            for (int message = 0; message < 25; message++) {
+                message_sender.send("image-" + message, "id-" + message, "car_indexes");
+            }
+
+            assertEquals(2, sqs_client.batches.size());
+            assertEquals(BatchingMessageSender.MAX_BATCH_ENTRIES, sqs_client.batches.get(0).size());
+
+            message_sender.flush();
+            assertEquals(3, sqs_client.batches.size());
+            assertEquals(5, sqs_client.batches.get(2).size());
+        }
+
+        List<String> accepted = sqs_client.accepted;
+        assertEquals(25, accepted.size());
+        for (int message = 0; message < 25; message++) {
+            assertEquals("image-" + message, accepted.get(message));
+        }
+    }
+
+    @Test
+    void lingering_batch_is_sent_by_the_timer() throws InterruptedException {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, 20, 5)) {
+            message_sender.send("image-0", "id-0", "car_indexes");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sqs_client.batchCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, sqs_client.batchCount());
+        }
+    }
+
+    @Test
+    void failed_entry_is_retried_with_the_rest_of_its_group() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.fail("a2", 1, false);
+
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 5)) {
+            message_sender.send("a1", "id-a1", "group-a");
+            message_sender.send("b1", "id-b1", "group-b");
+            message_sender.send("a2", "id-a2", "group-a");
+            message_sender.send("b2", "id-b2", "group-b");
+            message_sender.send("a3", "id-a3", "group-a");
+            message_sender.flush();
+        }
+
+        assertEquals(2, sqs_client.batches.size());
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3"), sqs_client.batches.get(0));
+        assertEquals(Arrays.asList("a2", "a3"), sqs_client.batches.get(1));
+        assertEquals(Arrays.asList("a1", "b1", "b2", "a2", "a3"), sqs_client.accepted);
+    }
+
+    @Test
+    void sender_fault_fails_with_the_unsent_messages() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.fail("a2", Integer.MAX_VALUE, true);
+
+        BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 5);
+        message_sender.send("a1", "id-a1", "group-a");
+        message_sender.send("a2", "id-a2", "group-a");
+        message_sender.send("b1", "id-b1", "group-b");
+        message_sender.send("a3", "id-a3", "group-a");
+
+        BatchingMessageSender.SendFailure failure = assertThrows(BatchingMessageSender.SendFailure.class, message_sender::flush);
+
+        assertEquals(Arrays.asList("id-a2", "id-a3"), failure.unsentIds());
+        assertEquals(1, sqs_client.batches.size());
+        assertEquals(Arrays.asList("a1", "b1"), sqs_client.accepted);
+    }
+
+    @Test
+    void entries_that_keep_failing_run_out_of_attempts() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.fail("a1", Integer.MAX_VALUE, false);
+
+        BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 3);
+        message_sender.send("a1", "id-a1", "group-a");
+        message_sender.send("b1", "id-b1", "group-b");
+
+        BatchingMessageSender.SendFailure failure = assertThrows(BatchingMessageSender.SendFailure.class, message_sender::flush);
+
+        assertEquals(Collections.singletonList("id-a1"), failure.unsentIds());
+        assertEquals(3, sqs_client.batches.size());
+        assertEquals(Collections.singletonList("b1"), sqs_client.accepted);
+    }
+
+    @Test
+    void failed_request_fails_with_every_message() {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.unavailable = true;
+
+        BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 5);
+        message_sender.send("a1", "id-a1", "group-a");
+        message_sender.send("b1", "id-b1", "group-b");
+
+        BatchingMessageSender.SendFailure failure = assertThrows(BatchingMessageSender.SendFailure.class, message_sender::flush);
+
+        assertEquals(Arrays.asList("id-a1", "id-b1"), failure.unsentIds());
+        assertTrue(failure.getCause() instanceof SqsException);
+    }
+
+    @Test
+    void send_is_not_blocked_while_a_batch_backs_off() throws InterruptedException {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.fail("a1", 2, false);
+
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, NO_LINGER, 5)) {
+            message_sender.send("a1", "id-a1", "group-a");
+            Thread flushing_thread = new Thread(message_sender::flush, "test-flush");
+            flushing_thread.start();
+            assertTrue(sqs_client.firstFailure.await(5, TimeUnit.SECONDS));
+
+            // Note: the flush backs off for 100ms and then 200ms, so a send that waited for it would find it finished.
+            message_sender.send("b1", "id-b1", "group-b");
+            assertTrue(flushing_thread.isAlive());
+
+            flushing_thread.join();
+            message_sender.flush();
+        }
+
+        assertEquals(Arrays.asList("a1", "b1"), sqs_client.accepted);
+    }
+
+    @Test
+    void failure_of_the_timer_is_reported_once() throws InterruptedException {
+
+        RecordingSqsClient sqs_client = new RecordingSqsClient();
+        sqs_client.unavailable = true;
+
+        try (BatchingMessageSender message_sender = new BatchingMessageSender(sqs_client, QUEUE_URL, 20, 5)) {
+            message_sender.send("a1", "id-a1", "group-a");
+
+            BatchingMessageSender.SendFailure failure = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (failure == null && System.currentTimeMillis() < deadline) {
+                try {
+                    message_sender.flush();
+                    Thread.sleep(5);
+                } catch (BatchingMessageSender.SendFailure e) {
+                    failure = e;
+                }
+            }
+            assertEquals(Collections.singletonList("id-a1"), failure.unsentIds());
+
+            sqs_client.unavailable = false;
+            message_sender.send("b1", "id-b1", "group-b");
+            message_sender.flush();
+        }
+
+        assertEquals(Collections.singletonList("b1"), sqs_client.accepted);
+    }
+
+    /*
+
+        RecordingSqsClient: a SQS client that keeps the message bodies of every batch it was sent and of every entry
+        it accepted, and reports the entries of the bodies it was told to fail as failed for a number of attempts. As
+        a FIFO queue keeps the order of a message group, the entries of a group after a failed entry fail too. The
+        first failure it reports opens the firstFailure latch.
+
+    */
+    private static final class RecordingSqsClient implements SqsClient {
+
+        private final List<List<String>> batches = new ArrayList<List<String>>();
+        private final List<String> accepted = new ArrayList<String>();
+        private final Map<String, Integer> failuresLeft = new HashMap<String, Integer>();
+        private final Map<String, Boolean> senderFaults = new HashMap<String, Boolean>();
+        private final CountDownLatch firstFailure = new CountDownLatch(1);
+        private volatile boolean unavailable;
+
+        void fail(String message_body, int attempts, boolean sender_fault) {
+            failuresLeft.put(message_body, attempts);
+            senderFaults.put(message_body, sender_fault);
+        }
+
+        synchronized int batchCount() {
+            return batches.size();
+        }
+
+        @Override
+        public synchronized SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest batch_request) {
+
+            if (unavailable) {
+                firstFailure.countDown();
+                throw (SqsException) SqsException.builder().statusCode(503).message("Service Unavailable").build();
+            }
+
+            List<String> batch = new ArrayList<String>();
+            List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+            List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+            Set<String> failed_groups = new HashSet<String>();
+            for (SendMessageBatchRequestEntry entry : batch_request.entries()) {
+                batch.add(entry.messageBody());
+
+                Integer failures_left = failuresLeft.get(entry.messageBody());
+                if (failures_left != null && failures_left > 0) {
+                    failuresLeft.put(entry.messageBody(), failures_left - 1);
+                    failed_groups.add(entry.messageGroupId());
+                    failed.add(BatchResultErrorEntry.builder().id(entry.id()).code("InternalError").message("failed").senderFault(senderFaults.get(entry.messageBody())).build());
+                } else if (failed_groups.contains(entry.messageGroupId())) {
+                    failed.add(BatchResultErrorEntry.builder().id(entry.id()).code("InternalError").message("earlier entry of the group failed").senderFault(false).build());
+                } else {
+                    accepted.add(entry.messageBody());
+                    successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId("message-" + accepted.size()).build());
+                }
+            }
+            batches.add(batch);
+            if (!failed.isEmpty()) {
+                firstFailure.countDown();
+            }
+
+            return SendMessageBatchResponse.builder().successful(successful).failed(failed).build();
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
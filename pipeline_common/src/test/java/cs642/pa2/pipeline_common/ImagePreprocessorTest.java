@@ -0,0 +1,55 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+
+    ImagePreprocessorTest: checks that a image that can not be fetched, whether S3 answered with a error or the request
+    never reached it, is left to be sent as a S3 reference rather than failing the caller.
+
+*/
+class ImagePreprocessorTest {
+
+    @Test
+    void image_that_can_not_be_fetched_falls_back_to_the_s3_reference() {
+
+        ImagePreprocessor service_error = new ImagePreprocessor(new FailingS3Client(S3Exception.builder().statusCode(500).message("Internal Error").build()), 1920, ImagePreprocessor.Resize.SCALE, 0.9F, 1);
+        assertNull(service_error.image("test-bucket", "image-0000.jpg"));
+
+        ImagePreprocessor client_error = new ImagePreprocessor(new FailingS3Client(SdkClientException.create("Connection reset")), 1920, ImagePreprocessor.Resize.SCALE, 0.9F, 1);
+        assertNull(client_error.image("test-bucket", "image-0000.jpg"));
+    }
+
+    private static final class FailingS3Client implements S3Client {
+
+        private final RuntimeException failure;
+
+        private FailingS3Client(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest object_request) {
+            throw failure;
+        }
+
+        @Override
+        public String serviceName() {
+            return SERVICE_NAME;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.rekognition.model.Instance;
+import software.amazon.awssdk.services.rekognition.model.Label;
+import software.amazon.awssdk.services.rekognition.model.Parent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    LabelRuleEngineTest: checks the rule syntax, and that a single pass over the labels of a image gives every rule
+    the same answer as checking the rule on its own would, including the rules matched through parent categories, the
+    rules that ask for a number of instances, and several rules for the same label.
+
+*/
+class LabelRuleEngineTest {
+
+    @Test
+    void rules_are_parsed() {
+
+        List<LabelRuleEngine.LabelRule> rules = LabelRuleEngine.parse_rules("Car>90, Vehicle^>80\n# people\n\nPerson > 75.5 x 2", true);
+
+        assertEquals(3, rules.size());
+        assert_rule(rules.get(0), "Car", 90.0F, false, 0);
+        assert_rule(rules.get(1), "Vehicle", 80.0F, true, 0);
+        assert_rule(rules.get(2), "Person", 75.5F, false, 2);
+        assertTrue(rules.get(0).required());
+        assertFalse(LabelRuleEngine.parse_rules("Car>90", false).get(0).required());
+    }
+
+    @Test
+    void invalid_rules_are_rejected() {
+
+        assertThrows(IllegalArgumentException.class, () -> LabelRuleEngine.parse_rules("Car", true));
+        assertThrows(IllegalArgumentException.class, () -> LabelRuleEngine.parse_rules(">90", true));
+        assertThrows(IllegalArgumentException.class, () -> LabelRuleEngine.parse_rules("Car>ninety", true));
+
+        IllegalArgumentException threshold = assertThrows(IllegalArgumentException.class, () -> LabelRuleEngine.parse_rules("Car>9o", true));
+        assertEquals("Invalid label rule: Car>9o", threshold.getMessage());
+        assertTrue(threshold.getCause() instanceof NumberFormatException);
+
+        IllegalArgumentException instances = assertThrows(IllegalArgumentException.class, () -> LabelRuleEngine.parse_rules("Truck>80, Person>90xz", true));
+        assertEquals("Invalid label rule: Person>90xz", instances.getMessage());
+    }
+
+    @Test
+    void rules_are_loaded_from_a_file() throws IOException {
+
+        Path rule_file = Files.createTempFile("label-rules", ".txt");
+        try {
+            Files.write(rule_file, "# vehicles\nCar>95\nTruck>85\n".getBytes(StandardCharsets.UTF_8));
+
+            List<LabelRuleEngine.LabelRule> rules = LabelRuleEngine.load_rules(rule_file.toString(), "Car>90", true);
+
+            assertEquals(2, rules.size());
+            assert_rule(rules.get(0), "Car", 95.0F, false, 0);
+            assert_rule(rules.get(1), "Truck", 85.0F, false, 0);
+            assertEquals(1, LabelRuleEngine.load_rules("", "Car>90", true).size());
+        } finally {
+            Files.delete(rule_file);
+        }
+    }
+
+    @Test
+    void best_confidence_of_every_rule_is_kept() {
+
+        LabelRuleEngine label_rules = engine("Car>90", "Person>90");
+
+        LabelRuleEngine.Result result = label_rules.evaluate(Arrays.asList(label("Car", 85.0F), label("Tree", 99.0F), label("Car", 97.5F)));
+
+        assertEquals(97.5F, result.confidence(0));
+        assertEquals(0.0F, result.confidence(1));
+        assertTrue(result.matched(0));
+        assertFalse(result.matched(1));
+        assertFalse(result.accepted());
+        assertEquals("Car:97.5,Person:0.0", result.payload());
+    }
+
+    @Test
+    void threshold_is_strictly_above() {
+
+        LabelRuleEngine label_rules = engine("Car>90");
+
+        assertFalse(label_rules.evaluate(Collections.singletonList(label("Car", 90.0F))).accepted());
+        assertTrue(label_rules.evaluate(Collections.singletonList(label("Car", 90.01F))).accepted());
+    }
+
+    @Test
+    void only_required_rules_decide_acceptance() {
+
+        List<LabelRuleEngine.LabelRule> rules = new ArrayList<LabelRuleEngine.LabelRule>();
+        rules.addAll(LabelRuleEngine.parse_rules("Car>90", true));
+        rules.addAll(LabelRuleEngine.parse_rules("Person>90", false));
+        LabelRuleEngine label_rules = new LabelRuleEngine(rules);
+
+        assertTrue(label_rules.evaluate(Collections.singletonList(label("Car", 95.0F))).accepted());
+        assertFalse(label_rules.evaluate(Collections.singletonList(label("Person", 95.0F))).accepted());
+    }
+
+    @Test
+    void parent_rules_match_through_parents() {
+
+        LabelRuleEngine label_rules = engine("Vehicle^>90", "Vehicle>90");
+
+        LabelRuleEngine.Result result = label_rules.evaluate(Collections.singletonList(label("Car", 96.0F, "Transportation", "Vehicle")));
+
+        assertEquals(96.0F, result.confidence(0));
+        assertTrue(result.matched(0));
+        assertEquals(0.0F, result.confidence(1));
+        assertFalse(result.matched(1));
+    }
+
+    @Test
+    void instance_rules_count_confident_instances() {
+
+        LabelRuleEngine label_rules = engine("Person>90x2");
+
+        assertTrue(label_rules.evaluate(Collections.singletonList(label("Person", 99.0F, instances(95.0F, 80.0F, 92.0F)))).accepted());
+        assertFalse(label_rules.evaluate(Collections.singletonList(label("Person", 99.0F, instances(95.0F, 80.0F)))).accepted());
+    }
+
+    @Test
+    void rules_for_the_same_label_are_all_evaluated() {
+
+        LabelRuleEngine label_rules = engine("Car>90", "Car>50", "Car^>60");
+
+        LabelRuleEngine.Result result = label_rules.evaluate(Collections.singletonList(label("Car", 70.0F)));
+
+        assertFalse(result.matched(0));
+        assertTrue(result.matched(1));
+        assertTrue(result.matched(2));
+        assertEquals(0, label_rules.ruleIndex("Car"));
+        assertEquals(3, label_rules.ruleCount());
+    }
+
+    @Test
+    void many_rules_are_evaluated_in_one_pass() {
+
+        // Note: enough rules to fill several slots of the tables, so the probing past a taken slot is exercised.
+        String[] rule_list = new String[40];
+        List<Label> labels = new ArrayList<Label>();
+        for (int index = 0; index < rule_list.length; index++) {
+            rule_list[index] = "Label" + index + ">50";
+            if (index % 2 == 0) {
+                labels.add(label("Label" + index, 60.0F + index / 10.0F));
+            }
+        }
+        LabelRuleEngine label_rules = engine(rule_list);
+
+        LabelRuleEngine.Result result = label_rules.evaluate(labels);
+
+        for (int index = 0; index < rule_list.length; index++) {
+            assertEquals(index % 2 == 0, result.matched(index), rule_list[index]);
+            assertEquals(index, label_rules.ruleIndex("Label" + index));
+        }
+    }
+
+    @Test
+    void reused_result_is_reset() {
+
+        LabelRuleEngine label_rules = engine("Car>90", "Person>90x1");
+        LabelRuleEngine.Result result = label_rules.evaluate(Arrays.asList(label("Car", 95.0F), label("Person", 95.0F, instances(95.0F))));
+        assertTrue(result.matched(0));
+        assertTrue(result.matched(1));
+
+        label_rules.evaluate(Collections.singletonList(label("Tree", 95.0F)), result);
+
+        assertEquals(0.0F, result.confidence(0));
+        assertFalse(result.matched(0));
+        assertFalse(result.matched(1));
+        assertEquals("Car:0.0,Person:0.0", result.payload());
+    }
+
+    @Test
+    void rules_are_described_in_the_rule_syntax() {
+
+        List<LabelRuleEngine.LabelRule> rules = new ArrayList<LabelRuleEngine.LabelRule>();
+        rules.addAll(LabelRuleEngine.parse_rules("Car>90,Vehicle^>80", true));
+        rules.addAll(LabelRuleEngine.parse_rules("Person>90x2", false));
+
+        String description = new LabelRuleEngine(rules).describe();
+
+        assertEquals("Car>90.0!,Vehicle^>80.0!,Person>90.0x2", description);
+        assertEquals(description, new LabelRuleEngine(rules).describe());
+    }
+
+    private static LabelRuleEngine engine(String... rule_list) {
+        return new LabelRuleEngine(LabelRuleEngine.parse_rules(String.join(",", rule_list), true));
+    }
+
+    private static Label label(String name, float confidence, String... parents) {
+
+        List<Parent> label_parents = new ArrayList<Parent>();
+        for (String parent : parents) {
+            label_parents.add(Parent.builder().name(parent).build());
+        }
+        return Label.builder().name(name).confidence(confidence).parents(label_parents).instances(Collections.<Instance>emptyList()).build();
+    }
+
+    private static Label label(String name, float confidence, List<Instance> instances) {
+        return Label.builder().name(name).confidence(confidence).parents(Collections.<Parent>emptyList()).instances(instances).build();
+    }
+
+    private static List<Instance> instances(float... confidences) {
+
+        List<Instance> instances = new ArrayList<Instance>();
+        for (float confidence : confidences) {
+            instances.add(Instance.builder().confidence(confidence).build());
+        }
+        return instances;
+    }
+
+    private static void assert_rule(LabelRuleEngine.LabelRule rule, String label, float min_confidence, boolean match_parents, int min_instances) {
+        assertEquals(label, rule.label());
+        assertEquals(min_confidence, rule.minConfidence());
+        assertEquals(match_parents, rule.matchParents());
+        assertEquals(min_instances, rule.minInstances());
+    }
+
+}
@@ -0,0 +1,83 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    RateLimiterTest: checks that the token bucket lets a burst through at once, and that the requests reserved past
+    the burst are spaced out at the configured rate in the order they reserved.
+
+*/
+class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void disabled_limiter_never_waits() {
+
+        RateLimiter rate_limiter = new RateLimiter(0, 10);
+
+        assertFalse(rate_limiter.enabled());
+        for (int request = 0; request < 1000; request++) {
+            assertEquals(0, rate_limiter.reserve());
+        }
+    }
+
+    @Test
+    void burst_is_available_at_once() {
+
+        RateLimiter rate_limiter = new RateLimiter(10, 5);
+
+        assertTrue(rate_limiter.enabled());
+        for (int request = 0; request < 5; request++) {
+            assertEquals(0, rate_limiter.reserve(), "request " + request + " of the burst");
+        }
+    }
+
+    @Test
+    void reservations_past_the_burst_are_spaced_at_the_rate() {
+
+        RateLimiter rate_limiter = new RateLimiter(10, 1);
+        assertEquals(0, rate_limiter.reserve());
+
+        // Note: a little of the bucket refills between the calls, so each wait is at most a full interval.
+        long first_wait = rate_limiter.reserve();
+        long second_wait = rate_limiter.reserve();
+        long third_wait = rate_limiter.reserve();
+
+        assertTrue(first_wait > 0 && first_wait <= SECOND / 10, "first wait " + first_wait);
+        assertTrue(second_wait - first_wait > SECOND / 20, "second wait " + second_wait);
+        assertTrue(third_wait - second_wait > SECOND / 20, "third wait " + third_wait);
+        assertTrue(third_wait <= 3 * SECOND / 10, "third wait " + third_wait);
+    }
+
+    @Test
+    void burst_below_one_still_lets_a_request_through() {
+
+        RateLimiter rate_limiter = new RateLimiter(10, 0);
+
+        assertEquals(0, rate_limiter.reserve());
+        assertTrue(rate_limiter.reserve() > 0);
+    }
+
+    @Test
+    void acquire_blocks_for_the_reserved_wait() throws InterruptedException {
+
+        RateLimiter rate_limiter = new RateLimiter(50, 1);
+
+        long started = System.nanoTime();
+        rate_limiter.acquire();
+        rate_limiter.acquire();
+        rate_limiter.acquire();
+        long elapsed = System.nanoTime() - started;
+
+        assertTrue(elapsed >= 2 * SECOND / 50 - TimeUnit.MILLISECONDS.toNanos(2), "elapsed " + elapsed);
+    }
+
+}
@@ -0,0 +1,110 @@
+package cs642.pa2.pipeline_common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    StopMarkerTest: checks that every form of the stop marker is read back as it was written, that image names are
+    never read as markers, and that the markers of every shard and group are numbered without gaps.
+
+*/
+class StopMarkerTest {
+
+    @Test
+    void plain_stop_signal_is_final() {
+
+        StopMarker stop_marker = StopMarker.parse("-1");
+
+        assertTrue(stop_marker.isFinal());
+        assertFalse(stop_marker.sharded());
+        assertEquals(0, stop_marker.markerIndex());
+        assertEquals(1, stop_marker.markerCount());
+        assertEquals("-1", stop_marker.body());
+        assertEquals("-1", StopMarker.of(0, 1).body());
+    }
+
+    @Test
+    void image_names_are_not_markers() {
+
+        assertNull(StopMarker.parse("image-0001.jpg"));
+        assertNull(StopMarker.parse("-10.jpg"));
+        assertNull(StopMarker.parse("-1.jpg"));
+        assertNull(StopMarker.parse(""));
+    }
+
+    @Test
+    void sharded_marker_round_trips() {
+
+        StopMarker stop_marker = StopMarker.parse(StopMarker.of(1, 3).body());
+
+        assertEquals("-1:1:3", stop_marker.body());
+        assertFalse(stop_marker.isFinal());
+        assertTrue(stop_marker.sharded());
+        assertEquals(1, stop_marker.shardIndex());
+        assertEquals(3, stop_marker.shardCount());
+        assertEquals(0, stop_marker.groupIndex());
+        assertEquals(1, stop_marker.groupCount());
+        assertEquals(1, stop_marker.markerIndex());
+        assertEquals(3, stop_marker.markerCount());
+    }
+
+    @Test
+    void group_marker_round_trips() {
+
+        StopMarker stop_marker = StopMarker.parse(StopMarker.of(1, 2, 3, 4).body());
+
+        assertEquals("-1:1:2:3:4", stop_marker.body());
+        assertFalse(stop_marker.isFinal());
+        assertEquals(1, stop_marker.shardIndex());
+        assertEquals(2, stop_marker.shardCount());
+        assertEquals(3, stop_marker.groupIndex());
+        assertEquals(4, stop_marker.groupCount());
+        assertEquals(7, stop_marker.markerIndex());
+        assertEquals(8, stop_marker.markerCount());
+    }
+
+    @Test
+    void single_producer_with_groups_is_not_final() {
+
+        StopMarker stop_marker = StopMarker.parse(StopMarker.of(0, 1, 1, 2).body());
+
+        assertEquals("-1:0:1:1:2", stop_marker.body());
+        assertFalse(stop_marker.isFinal());
+        assertFalse(stop_marker.sharded());
+        assertEquals(1, stop_marker.markerIndex());
+        assertEquals(2, stop_marker.markerCount());
+    }
+
+    @Test
+    void markers_of_every_shard_and_group_are_numbered_once() {
+
+        boolean[] seen = new boolean[3 * 4];
+        for (int shard_index = 0; shard_index < 3; shard_index++) {
+            for (int group_index = 0; group_index < 4; group_index++) {
+                StopMarker stop_marker = StopMarker.parse(StopMarker.of(shard_index, 3, group_index, 4).body());
+                assertEquals(seen.length, stop_marker.markerCount());
+                assertFalse(seen[stop_marker.markerIndex()], "marker " + stop_marker.body() + " numbered twice");
+                seen[stop_marker.markerIndex()] = true;
+            }
+        }
+    }
+
+    @Test
+    void invalid_markers_are_rejected() {
+
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.parse("-1:2:2"));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.parse("-1:0:1:0"));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.parse("-1:0:1:2:2"));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.parse("-1:0:2:1:4:57"));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.parse("-1:a:2"));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.of(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> StopMarker.of(0, 1, 0, 0));
+    }
+
+}
@@ -0,0 +1,318 @@
+package cs642.pa2.text_extraction;
+
+import software.amazon.awssdk.services.rekognition.model.BoundingBox;
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+
+    BinaryOutputSink: a compact binary form of the output file that keeps everything Rekognition returned for the
+    text of a image, the detection type, confidence, bounding box and text of every detection, instead of only the
+    joined text. The file is read back with BinaryResultReader, which maps it into memory and finds the text of a
+    image without reading the rest of the file.
+
+    Every string, image keys and detected text alike, is stored once in a dictionary and referred to by its id, as the
+    same words come up across many images. The file is laid out as follows, with every number big endian:
+
+        header      int magic, int version
+        records     per image: int image id, int detection count, then one column per field for the detections of
+                    the image: byte types, float confidences, float left, top, width and height, int text ids
+        dictionary  int string count, int offset of each string, then each string as a int length and UTF-8 bytes
+        index       int slot count, then per slot a int image id (-1 when empty) and a long record offset, placed
+                    by the hash of the image key with linear probing
+        trailer     long dictionary offset, long index offset, int magic
+
+    Records are kept in the segment log of the sink until it is closed, each one with its own strings, as the
+    dictionary is only known once every record has been written. A commit writes the records since the last commit to
+    the open segment and forces it to disk, so the records of the messages removed from the queue survive a crash, and
+    the next run keeps them. When the sink is closed, the segments are read back into the layout above in a in progress
+    file, which is renamed into place once complete. A image written twice, such as a message that was delivered
+    again, is indexed at its last record.
+
+*/
+public class BinaryOutputSink implements AutoCloseable {
+
+    static final int FILE_MAGIC = 0x54585231;
+    static final int FILE_VERSION = 1;
+    static final int TRAILER_BYTES = 8 + 8 + 4;
+    static final int SLOT_BYTES = 4 + 8;
+
+    static final byte TYPE_LINE = 0;
+    static final byte TYPE_WORD = 1;
+    static final byte TYPE_UNKNOWN = 2;
+
+    // Note: the size of the buffer that is written to the open segment without waiting for the commit.
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path outputPath;
+    private final Path inProgressPath;
+    private final SegmentLog segmentLog;
+    private final CommitBuffer buffer = new CommitBuffer();
+    private final DataOutputStream records = new DataOutputStream(buffer);
+
+    // Note: the dictionary of strings written so far with their ids, and the last record offset of each image id,
+    // filled in as the segments are read back when the sink is closed.
+    private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+    private final List<byte[]> strings = new ArrayList<byte[]>();
+    private final Map<Integer, Long> recordOffsets = new HashMap<Integer, Long>();
+
+    public BinaryOutputSink(String outputFile) throws IOException {
+        this.outputPath = Paths.get(outputFile);
+        this.inProgressPath = Paths.get(outputFile + ".inprogress");
+        this.segmentLog = new SegmentLog(outputFile);
+    }
+
+    /*
+
+        append: this function buffers the record of a image with every detection Rekognition returned for it.
+
+    */
+    public void append(String image_name, List<TextDetection> image_text) throws IOException {
+
+        int count = image_text == null ? 0 : image_text.size();
+
+        write_string(records, image_name);
+        records.writeInt(count);
+        for (int index = 0; index < count; index++) {
+            TextDetection detection = image_text.get(index);
+            BoundingBox box = detection.geometry() == null ? null : detection.geometry().boundingBox();
+            records.writeByte(type_code(detection.type()));
+            records.writeFloat(detection.confidence() == null ? 0.0F : detection.confidence());
+            records.writeFloat(box == null || box.left() == null ? 0.0F : box.left());
+            records.writeFloat(box == null || box.top() == null ? 0.0F : box.top());
+            records.writeFloat(box == null || box.width() == null ? 0.0F : box.width());
+            records.writeFloat(box == null || box.height() == null ? 0.0F : box.height());
+            write_string(records, detection.detectedText());
+        }
+
+        if (buffer.size() >= BUFFER_BYTES) {
+            records.flush();
+            segmentLog.write(buffer.bytes(), buffer.size());
+            buffer.reset();
+        }
+
+    }
+
+    /*
+
+        commit: this function writes every buffered record to the open segment and forces it to disk, matching the
+        commit of the output sink so both files are on disk before the messages of their entries are removed from the
+        queue.
+
+    */
+    public void commit() throws IOException {
+        records.flush();
+        segmentLog.write(buffer.bytes(), buffer.size());
+        buffer.reset();
+        segmentLog.checkpoint();
+    }
+
+    /*
+
+        close: this function commits the last records, reads every segment back into the records of the binary
+        output file, writes the dictionary, index and trailer, forces the file to disk and renames the in progress
+        file over the binary output file in a single step. The segments are kept until delete_segments is called.
+
+    */
+    @Override
+    public void close() throws IOException {
+
+        commit();
+        segmentLog.close();
+
+        FileChannel channel = FileChannel.open(inProgressPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024))) {
+
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            long position = 8;
+
+            for (Path segment : segmentLog.segments()) {
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+                    while (input.available() > 0) {
+                        position = copy_record(input, output, position);
+                    }
+                }
+            }
+
+            long dictionary_offset = position;
+            output.writeInt(strings.size());
+            int string_offset = 0;
+            for (byte[] string : strings) {
+                output.writeInt(string_offset);
+                string_offset += 4 + string.length;
+            }
+            for (byte[] string : strings) {
+                output.writeInt(string.length);
+                output.write(string);
+            }
+            position += 4 + 4L * strings.size() + string_offset;
+
+            long index_offset = position;
+            int slot_count = Integer.highestOneBit(Math.max(2, recordOffsets.size() * 2) - 1) << 1;
+            int[] slot_images = new int[slot_count];
+            long[] slot_offsets = new long[slot_count];
+            Arrays.fill(slot_images, -1);
+
+            for (Map.Entry<Integer, Long> record : recordOffsets.entrySet()) {
+                int slot = slot(strings.get(record.getKey()), slot_count);
+                while (slot_images[slot] != -1) {
+                    slot = (slot + 1) & (slot_count - 1);
+                }
+                slot_images[slot] = record.getKey();
+                slot_offsets[slot] = record.getValue();
+            }
+
+            output.writeInt(slot_count);
+            for (int slot = 0; slot < slot_count; slot++) {
+                output.writeInt(slot_images[slot]);
+                output.writeLong(slot_offsets[slot]);
+            }
+
+            output.writeLong(dictionary_offset);
+            output.writeLong(index_offset);
+            output.writeInt(FILE_MAGIC);
+
+            output.flush();
+            channel.force(false);
+        }
+        Files.move(inProgressPath, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    /*
+
+        delete_segments: this function removes the segments of the run once the binary output file holds them and the
+        last message of the run has been removed from the queue.
+
+    */
+    public void delete_segments() throws IOException {
+        segmentLog.delete();
+    }
+
+    // Note: reads a record as buffered by append and writes it in the layout of the file, one column per field.
+    private long copy_record(DataInputStream input, DataOutputStream output, long position) throws IOException {
+
+        int image_id = string_id(read_string(input));
+        int count = input.readInt();
+
+        byte[] types = new byte[count];
+        float[] geometry = new float[count * 5];
+        int[] text_ids = new int[count];
+        for (int index = 0; index < count; index++) {
+            types[index] = input.readByte();
+            for (int field = 0; field < 5; field++) {
+                geometry[index * 5 + field] = input.readFloat();
+            }
+            text_ids[index] = string_id(read_string(input));
+        }
+
+        recordOffsets.put(image_id, position);
+        output.writeInt(image_id);
+        output.writeInt(count);
+
+        for (int index = 0; index < count; index++) {
+            output.writeByte(types[index]);
+        }
+        for (int index = 0; index < count; index++) {
+            output.writeFloat(geometry[index * 5]);
+        }
+        for (int index = 0; index < count; index++) {
+            for (int field = 1; field < 5; field++) {
+                output.writeFloat(geometry[index * 5 + field]);
+            }
+        }
+        for (int index = 0; index < count; index++) {
+            output.writeInt(text_ids[index]);
+        }
+
+        return position + 8 + count * (1 + 4 + 16 + 4);
+
+    }
+
+    private static void write_string(DataOutputStream output, String string) throws IOException {
+        byte[] bytes = (string == null ? "" : string).getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String read_string(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int string_id(String string) {
+
+        String value = string == null ? "" : string;
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(value, id);
+            strings.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+
+    }
+
+    private static byte type_code(TextTypes type) {
+        if (type == TextTypes.LINE) {
+            return TYPE_LINE;
+        }
+        if (type == TextTypes.WORD) {
+            return TYPE_WORD;
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    /*
+
+        slot: this function finds the first slot to probe for a image key from the hash of its UTF-8 bytes. The
+        reader uses the same function, so the hash must never change for a given file version.
+
+    */
+    static int slot(byte[] key, int slot_count) {
+
+        int hash = 0;
+        for (byte value : key) {
+            hash = 31 * hash + value;
+        }
+        // Note: the top bits of the mixed hash are used, as many as the power of two slot count needs.
+        return (hash * 0x9E3779B9) >>> (Integer.numberOfLeadingZeros(slot_count) + 1);
+
+    }
+
+    // Note: the buffer of the records, handed to the segment log as is rather than copied.
+    private static final class CommitBuffer extends ByteArrayOutputStream {
+
+        private CommitBuffer() {
+            super(64 * 1024);
+        }
+
+        private byte[] bytes() {
+            return buf;
+        }
+
+    }
+
+}
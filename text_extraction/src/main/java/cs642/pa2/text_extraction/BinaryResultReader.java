@@ -0,0 +1,254 @@
+package cs642.pa2.text_extraction;
+
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+
+    BinaryResultReader: reads a file written by BinaryOutputSink. The file is mapped into memory rather than read, and
+    the text of a image is found by hashing its key into the index at the end of the file, so a lookup touches only
+    the index slots, the dictionary strings and the single record it needs, however large the file is. Only absolute
+    reads are made on the mapped file, so a reader can be shared by many threads.
+
+    Files are mapped in a single region, which limits them to 2 GB.
+
+*/
+public class BinaryResultReader implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+
+    private final int stringCount;
+    private final int stringOffsets;
+    private final int stringData;
+    private final int slotCount;
+    private final int slots;
+
+    public BinaryResultReader(String binaryFile) throws IOException {
+
+        this.channel = FileChannel.open(Paths.get(binaryFile), StandardOpenOption.READ);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE || size < 8 + BinaryOutputSink.TRAILER_BYTES) {
+            channel.close();
+            throw new IOException("Unsupported binary output size: " + binaryFile + " (" + size + " bytes)");
+        }
+
+        this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        int trailer = (int) size - BinaryOutputSink.TRAILER_BYTES;
+        if (file.getInt(0) != BinaryOutputSink.FILE_MAGIC || file.getInt(trailer + 16) != BinaryOutputSink.FILE_MAGIC) {
+            channel.close();
+            throw new IOException("Not a complete binary output file: " + binaryFile);
+        }
+        if (file.getInt(4) != BinaryOutputSink.FILE_VERSION) {
+            channel.close();
+            throw new IOException("Unsupported binary output version: " + file.getInt(4));
+        }
+
+        int dictionary = (int) file.getLong(trailer);
+        this.stringCount = file.getInt(dictionary);
+        this.stringOffsets = dictionary + 4;
+        this.stringData = stringOffsets + 4 * stringCount;
+
+        int index = (int) file.getLong(trailer + 8);
+        this.slotCount = file.getInt(index);
+        this.slots = index + 4;
+
+    }
+
+    /*
+
+        detections: this function returns every detection written for a image, or null when the image is not in the
+        file.
+
+        Summary: The function hashes the UTF-8 bytes of the image key to its first index slot and probes the slots in
+        order until it reaches a empty slot or a slot whose image key has the same bytes. The record at the offset of
+        that slot is then read column by column into detections.
+
+    */
+    public List<Detection> detections(String image_name) {
+
+        int record = find_record(image_name.getBytes(StandardCharsets.UTF_8));
+        if (record < 0) {
+            return null;
+        }
+
+        int count = file.getInt(record + 4);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+
+        int types = record + 8;
+        int confidences = types + count;
+        int boxes = confidences + 4 * count;
+        int texts = boxes + 16 * count;
+
+        List<Detection> detections = new ArrayList<Detection>(count);
+        for (int index = 0; index < count; index++) {
+            int box = boxes + 16 * index;
+            detections.add(new Detection(
+                    type(file.get(types + index)),
+                    file.getFloat(confidences + 4 * index),
+                    file.getFloat(box), file.getFloat(box + 4), file.getFloat(box + 8), file.getFloat(box + 12),
+                    string(file.getInt(texts + 4 * index))));
+        }
+
+        return detections;
+    }
+
+    /*
+
+        text: this function returns the text of a image joined the same way as in the output file, with each
+        detection after a single space, or null when the image is not in the file.
+
+    */
+    public String text(String image_name) {
+
+        List<Detection> detections = detections(image_name);
+        if (detections == null) {
+            return null;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (Detection detection : detections) {
+            text.append(' ').append(detection.text());
+        }
+        return text.toString();
+    }
+
+    public int imageCount() {
+        int count = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (file.getInt(slots + BinaryOutputSink.SLOT_BYTES * slot) != -1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int find_record(byte[] key) {
+
+        int slot = BinaryOutputSink.slot(key, slotCount);
+        for (int probes = 0; probes < slotCount; probes++) {
+            int entry = slots + BinaryOutputSink.SLOT_BYTES * slot;
+            int image_id = file.getInt(entry);
+            if (image_id == -1) {
+                return -1;
+            }
+            if (string_equals(image_id, key)) {
+                return (int) file.getLong(entry + 4);
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+
+        return -1;
+    }
+
+    private boolean string_equals(int string_id, byte[] key) {
+
+        int string = stringData + file.getInt(stringOffsets + 4 * string_id);
+        if (file.getInt(string) != key.length) {
+            return false;
+        }
+        for (int index = 0; index < key.length; index++) {
+            if (file.get(string + 4 + index) != key[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int string_id) {
+
+        int string = stringData + file.getInt(stringOffsets + 4 * string_id);
+        byte[] bytes = new byte[file.getInt(string)];
+
+        // Note: a duplicate of the buffer is positioned for the bulk read, so the shared buffer is never moved.
+        ByteBuffer view = file.duplicate();
+        view.position(string + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static TextTypes type(byte code) {
+        if (code == BinaryOutputSink.TYPE_LINE) {
+            return TextTypes.LINE;
+        }
+        if (code == BinaryOutputSink.TYPE_WORD) {
+            return TextTypes.WORD;
+        }
+        return TextTypes.UNKNOWN_TO_SDK_VERSION;
+    }
+
+    /*
+
+        Detection: a single piece of text read from the file, with its type, confidence and bounding box as returned
+        by Rekognition.
+
+    */
+    public static class Detection {
+
+        private final TextTypes type;
+        private final float confidence;
+        private final float left;
+        private final float top;
+        private final float width;
+        private final float height;
+        private final String text;
+
+        Detection(TextTypes type, float confidence, float left, float top, float width, float height, String text) {
+            this.type = type;
+            this.confidence = confidence;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.text = text;
+        }
+
+        public TextTypes type() {
+            return type;
+        }
+
+        public float confidence() {
+            return confidence;
+        }
+
+        public float left() {
+            return left;
+        }
+
+        public float top() {
+            return top;
+        }
+
+        public float width() {
+            return width;
+        }
+
+        public float height() {
+            return height;
+        }
+
+        public String text() {
+            return text;
+        }
+
+    }
+
+}
@@ -1,36 +1,125 @@
-
 package cs642.pa2.text_extraction;
 
-import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import cs642.pa2.pipeline_common.ClientFactory;
+import cs642.pa2.pipeline_common.PipelineConfig;
+
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.SqsClient;
 
+
+/**
+ * The module containing all dependencies required by the {@link TextExtraction}.
+ *
+ * Every client is built from the settings of the {@link PipelineConfig} passed in, so the region, endpoint,
+ * connection pool, timeouts and retries of each service can be tuned for a deployment without a rebuild. Each
+ * client keeps a pool of connections alive between requests, so the workers skip the TLS handshake on all but their
+ * first requests.
+ */
 public class DependencyFactory {
 
-    private DependencyFactory() {}
+    private DependencyFactory() {
+    }
+
+    // Note: the settings of the stage, read from the text_extraction.* properties, the TEXT_EXTRACTION_* environment
+    // variables and the file set by text_extraction.config_file.
+    public static PipelineConfig config() {
+        return PipelineConfig.load("text_extraction", "TEXT_EXTRACTION_");
+    }
+
+    /*
+
+        ExecutionMode: the "sync" mode, the default, blocks a worker thread on every request, while the "async" mode
+        sends the requests of the pipeline through the non blocking clients below, so a few Netty event loop threads
+        keep hundreds of requests in flight. The mode is set by the text_extraction.execution_mode property.
+
+    */
+    public enum ExecutionMode {
+        SYNC, ASYNC
+    }
+
+    public static ExecutionMode executionMode(PipelineConfig config) {
+        return config.choice("execution_mode", ExecutionMode.class, ExecutionMode.SYNC);
+    }
+
+    // Note: the most requests the worker threads keep in flight, set by text_extraction.concurrency.
+    public static int concurrency(PipelineConfig config) {
+        return Math.max(1, config.integer("concurrency", 16));
+    }
+
+    // Note: the most requests each non blocking client keeps in flight, set by text_extraction.async_concurrency.
+    public static int asyncConcurrency(PipelineConfig config) {
+        return Math.max(1, config.integer("async_concurrency", 256));
+    }
+
+
+    public static S3Client s3Client(PipelineConfig config) {
+        PipelineConfig.ClientSettings settings = config.client("s3", Region.US_EAST_1, pooledConnections(config));
+        // Note: a endpoint such as a local stand in for S3 seldom resolves the bucket as a sub domain.
+        return ClientFactory.configure(S3Client.builder(), settings)
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(config.flag("s3.path_style", settings.endpoint() != null)).build())
+                .httpClientBuilder(ClientFactory.pooledHttpClient(settings))
+                .build();
+    }
+
+    public static RekognitionClient rekognitionClient(PipelineConfig config) {
+        PipelineConfig.ClientSettings settings = config.client("rekognition", Region.US_EAST_1, pooledConnections(config));
+        return ClientFactory.configureWithoutRetries(RekognitionClient.builder(), settings)
+                .httpClientBuilder(ClientFactory.pooledHttpClient(settings))
+                .build();
+    }
 
-    public static S3Client s3Client() {
-        return S3Client.builder()
-                .region(Region.US_EAST_1)
-                .httpClientBuilder(UrlConnectionHttpClient.builder())
+    public static SqsClient sqsClient(PipelineConfig config) {
+        PipelineConfig.ClientSettings settings = config.client("sqs", Region.US_WEST_2, pooledConnections(config));
+        return ClientFactory.configure(SqsClient.builder(), settings)
+                .httpClientBuilder(ClientFactory.pooledHttpClient(settings))
                 .build();
     }
 
-    public static RekognitionClient rekognitionClient() {
-        return RekognitionClient.builder()
-                .region(Region.US_EAST_1)
-                .httpClientBuilder(UrlConnectionHttpClient.builder())
+    /*
+
+        rekognitionAsyncClient: this function returns the non blocking Rekognition client of the async execution mode,
+        or null in the sync execution mode.
+
+    */
+    public static RekognitionAsyncClient rekognitionAsyncClient(PipelineConfig config) {
+
+        if (executionMode(config) != ExecutionMode.ASYNC) {
+            return null;
+        }
+
+        PipelineConfig.ClientSettings settings = config.client("rekognition", Region.US_EAST_1, asyncConcurrency(config));
+        return ClientFactory.configureWithoutRetries(RekognitionAsyncClient.builder(), settings)
+                .httpClientBuilder(ClientFactory.asyncHttpClient(settings))
                 .build();
     }
 
-    public static SqsClient sqsClient() {
-        return SqsClient.builder()
-                .region(Region.US_WEST_2)
-                .httpClientBuilder(UrlConnectionHttpClient.builder())
+    /*
+
+        sqsAsyncClient: this function returns the non blocking SQS client of the async execution mode, or null in the
+        sync execution mode.
+
+    */
+    public static SqsAsyncClient sqsAsyncClient(PipelineConfig config) {
+
+        if (executionMode(config) != ExecutionMode.ASYNC) {
+            return null;
+        }
+
+        PipelineConfig.ClientSettings settings = config.client("sqs", Region.US_WEST_2, asyncConcurrency(config));
+        return ClientFactory.configure(SqsAsyncClient.builder(), settings)
+                .httpClientBuilder(ClientFactory.asyncHttpClient(settings))
                 .build();
     }
 
+    // Note: every worker may hold a connection to each service at once, while the image preprocessor fetches images
+    // on as many threads again, so the pools default to twice the concurrency and never fewer than 50 connections.
+    private static int pooledConnections(PipelineConfig config) {
+        return Math.max(50, concurrency(config) * 2);
+    }
 
 }
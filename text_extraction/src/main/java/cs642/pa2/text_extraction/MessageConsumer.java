@@ -0,0 +1,212 @@
+package cs642.pa2.text_extraction;
+
+import cs642.pa2.pipeline_common.PipelineMetrics;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+
+    MessageConsumer: receives messages from a SQS queue up to 10 at a time. While the caller works on one batch, the
+    next batch is already being long polled on a background thread, so the receive round trip overlaps with
+    processing. Messages are only deleted once the caller acknowledges them, which happens after their results have
+    been written, and the deletes are sent with DeleteMessageBatch.
+
+    When created with a non blocking SQS client, the next batch is long polled by the client itself rather than by a
+    background thread, and the deletes are sent without waiting for them, as the order they complete in does not
+    matter. close() then waits for the deletes still in flight.
+
+*/
+public class MessageConsumer implements AutoCloseable {
+
+    // Note: the largest number of messages SQS returns or deletes in one request.
+    public static final int MAX_BATCH_MESSAGES = 10;
+
+    // Note: the latency of each request, and the time the caller waits on a batch that has not arrived yet, which is
+    // the time the consumer is held back by the queue rather than by its own work.
+    private static final PipelineMetrics.Histogram RECEIVE_MESSAGE = PipelineMetrics.histogram("sqs.receiveMessage");
+    private static final PipelineMetrics.Histogram RECEIVE_WAIT = PipelineMetrics.histogram("sqs.receiveWait");
+    private static final PipelineMetrics.Histogram DELETE_MESSAGE_BATCH = PipelineMetrics.histogram("sqs.deleteMessageBatch");
+    private static final LongAdder MESSAGES_RECEIVED = PipelineMetrics.counter("sqs.messagesReceived");
+    private static final LongAdder FAILED_DELETES = PipelineMetrics.counter("sqs.deleteMessageBatch.failedEntries");
+
+    private final SqsClient sqsClient;
+    private final SqsAsyncClient sqsAsyncClient;
+    private final String queueURL;
+    private final int waitTimeSeconds;
+    private final ExecutorService prefetcher;
+
+    private Future<List<Message>> next_batch;
+    private final List<CompletableFuture<Void>> pending_deletes = new ArrayList<CompletableFuture<Void>>();
+
+    public MessageConsumer(SqsClient sqsClient, String queueURL, int waitTimeSeconds) {
+        this(sqsClient, null, queueURL, waitTimeSeconds);
+    }
+
+    public MessageConsumer(SqsClient sqsClient, SqsAsyncClient sqsAsyncClient, String queueURL, int waitTimeSeconds) {
+        this.sqsClient = sqsClient;
+        this.sqsAsyncClient = sqsAsyncClient;
+        this.queueURL = queueURL;
+        this.waitTimeSeconds = waitTimeSeconds;
+
+        this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sqs-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+
+        receive: this function returns the next batch of messages from the queue.
+
+        Summary: The function waits for the batch that is being prefetched, or starts a receive when none is pending,
+        and then immediately starts prefetching the batch after it. A long poll that comes back without messages
+        returns an empty list instead of failing, so the caller can simply poll again.
+
+    */
+    public List<Message> receive() {
+
+        if (next_batch == null) {
+            next_batch = prefetch();
+        }
+
+        List<Message> messages;
+        long waited = System.nanoTime();
+        try {
+            messages = next_batch.get();
+            RECEIVE_WAIT.record_since(waited);
+            MESSAGES_RECEIVED.add(messages.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while receiving from: " + queueURL, e);
+        } catch (ExecutionException e) {
+            next_batch = null;
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed receiving from: " + queueURL, e.getCause());
+        }
+
+        next_batch = prefetch();
+        return messages;
+
+    }
+
+    /*
+
+        ready: this function checks if the next batch has already arrived, so receive() returns without waiting.
+
+    */
+    public boolean ready() {
+        return next_batch != null && next_batch.isDone();
+    }
+
+    private Future<List<Message>> prefetch() {
+
+        if (sqsAsyncClient != null) {
+            long requested = System.nanoTime();
+            return sqsAsyncClient.receiveMessage(receive_request()).whenComplete((message_response, failure) -> RECEIVE_MESSAGE.record_since(requested)).thenApply(ReceiveMessageResponse::messages);
+        }
+        return prefetcher.submit(this::receive_messages);
+
+    }
+
+    private List<Message> receive_messages() {
+        long requested = System.nanoTime();
+        try {
+            return sqsClient.receiveMessage(receive_request()).messages();
+        } finally {
+            RECEIVE_MESSAGE.record_since(requested);
+        }
+    }
+
+    private ReceiveMessageRequest receive_request() {
+        return ReceiveMessageRequest.builder().queueUrl(queueURL).maxNumberOfMessages(MAX_BATCH_MESSAGES).waitTimeSeconds(waitTimeSeconds).build();
+    }
+
+    /*
+
+        acknowledge: this function deletes processed messages from the queue.
+
+        Summary: The function deletes the passed in messages in groups of up to 10 using DeleteMessageBatch. Entries
+        that fail to delete are reported, as they will be delivered again once their visibility timeout runs out.
+
+    */
+    public void acknowledge(List<Message> messages) {
+
+        for (int start = 0; start < messages.size(); start += MAX_BATCH_MESSAGES) {
+
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+            for (int index = start; index < Math.min(start + MAX_BATCH_MESSAGES, messages.size()); index++) {
+                entries.add(DeleteMessageBatchRequestEntry.builder().id(String.valueOf(index - start)).receiptHandle(messages.get(index).receiptHandle()).build());
+            }
+
+            DeleteMessageBatchRequest delete_request = DeleteMessageBatchRequest.builder().queueUrl(queueURL).entries(entries).build();
+            List<Message> deleted_messages = new ArrayList<Message>(messages.subList(start, Math.min(start + MAX_BATCH_MESSAGES, messages.size())));
+
+            long requested = System.nanoTime();
+            if (sqsAsyncClient == null) {
+                DeleteMessageBatchResponse delete_response = sqsClient.deleteMessageBatch(delete_request);
+                DELETE_MESSAGE_BATCH.record_since(requested);
+                report_failed_deletes(deleted_messages, delete_response);
+                continue;
+            }
+
+            pending_deletes.removeIf(CompletableFuture::isDone);
+            pending_deletes.add(sqsAsyncClient.deleteMessageBatch(delete_request).handle((delete_response, failure) -> {
+                DELETE_MESSAGE_BATCH.record_since(requested);
+                if (failure != null) {
+                    FAILED_DELETES.add(deleted_messages.size());
+                    System.err.println("Delete Failed: " + deleted_messages.size() + " messages " + failure);
+                } else {
+                    report_failed_deletes(deleted_messages, delete_response);
+                }
+                return null;
+            }));
+
+        }
+
+    }
+
+    private static void report_failed_deletes(List<Message> messages, DeleteMessageBatchResponse delete_response) {
+        for (BatchResultErrorEntry failure : delete_response.failed()) {
+            FAILED_DELETES.increment();
+            Message message = messages.get(Integer.parseInt(failure.id()));
+            System.err.println("Delete Failed: " + message.body() + " " + failure.code() + " " + failure.message());
+        }
+    }
+
+    /*
+
+        close: this function stops prefetching and waits for any delete still in flight. A batch that was received but
+        not returned is not deleted, so its messages become visible on the queue again once their visibility timeout
+        runs out.
+
+    */
+    @Override
+    public void close() {
+        prefetcher.shutdownNow();
+        if (next_batch != null) {
+            next_batch.cancel(true);
+        }
+        CompletableFuture.allOf(pending_deletes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+}
@@ -0,0 +1,182 @@
+package cs642.pa2.text_extraction;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+
+    OutputSink: a long lived writer for the output file. Entries are buffered in memory and appended to the open
+    segment of the segment log whenever the buffer fills up. A commit writes the rest of the buffer and forces the
+    segment to disk, and is only due once enough entries or enough time has passed since the last one, so many receive
+    batches share a single force (group commit). The caller removes the messages of the entries from the queue only
+    after a commit, so a entry whose message was removed survives the machine stopping.
+
+    Each line is encoded as UTF-8 straight from the buffer of the text formatter into the reused byte buffer of the
+    sink by a reused encoder, so no String or byte array is built for a entry.
+
+    The segments of a run that crashed are kept by the next run, which adds its own entries after them. When the run
+    is closed, the segments are joined into a in progress file next to the output file, which is renamed over the
+    output file once it is complete, so the output file is never seen half written.
+
+*/
+public class OutputSink implements AutoCloseable {
+
+    // Note: the size of the buffer that is written to the open segment without waiting for the commit.
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path outputPath;
+    private final Path inProgressPath;
+    private final int commitEntries;
+    private final long commitMillis;
+
+    private final SegmentLog segmentLog;
+    private final int recoveredSegments;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private int uncommitted_entries;
+    private long last_commit;
+
+    public OutputSink(String outputFile, int commitEntries, long commitMillis) throws IOException {
+        this.outputPath = Paths.get(outputFile);
+        this.inProgressPath = Paths.get(outputFile + ".inprogress");
+        this.commitEntries = Math.max(1, commitEntries);
+        this.commitMillis = commitMillis;
+
+        this.segmentLog = new SegmentLog(outputFile);
+        this.recoveredSegments = segmentLog.segments().size();
+        this.last_commit = System.currentTimeMillis();
+    }
+
+    /*
+
+        recovered: this function passes every entry kept from a earlier run that crashed to the consumer, in the order
+        they were written, and returns the number of entries.
+
+    */
+    public int recovered(Consumer<String> consumer) throws IOException {
+
+        int entries = 0;
+        List<Path> segments = segmentLog.segments();
+        for (int index = 0; index < recoveredSegments; index++) {
+            try (BufferedReader reader = Files.newBufferedReader(segments.get(index), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    consumer.accept(line);
+                    entries++;
+                }
+            }
+        }
+        return entries;
+
+    }
+
+    /*
+
+        append: this function adds a single line to the output. Whenever the buffer fills up it is written to the open
+        segment, which is not forced to disk until the next commit.
+
+    */
+    public void append(CharSequence line) throws IOException {
+
+        // Note: a unpaired surrogate is replaced by the encoder rather than failing the run.
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            write_buffer();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            write_buffer();
+        }
+
+        if (!buffer.hasRemaining()) {
+            write_buffer();
+        }
+        buffer.put((byte) '\n');
+        uncommitted_entries++;
+
+    }
+
+    /*
+
+        commit_due: this function checks if the number of entries or the time since the last commit has been reached.
+        With no entries waiting, a commit costs nothing and is always due.
+
+    */
+    public boolean commit_due() {
+        return uncommitted_entries == 0 || uncommitted_entries >= commitEntries || System.currentTimeMillis() - last_commit >= commitMillis;
+    }
+
+    /*
+
+        commit: this function writes every buffered entry to the open segment and forces it to disk as a checkpoint
+        of the segment log. Committed entries survive the application and the machine stopping.
+
+    */
+    public void commit() throws IOException {
+        if (uncommitted_entries > 0) {
+            write_buffer();
+            segmentLog.checkpoint();
+            uncommitted_entries = 0;
+        }
+        last_commit = System.currentTimeMillis();
+    }
+
+    /*
+
+        close: this function commits the last entries, joins every segment into the in progress file, forces it to
+        disk, and renames it over the output file in a single step. The segments are kept until delete_segments is
+        called, so the output can be written again if the run stops before the stop message has been removed from the
+        queue.
+
+    */
+    @Override
+    public void close() throws IOException {
+
+        commit();
+        segmentLog.close();
+        try (FileChannel output = FileChannel.open(inProgressPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path segment : segmentLog.segments()) {
+                try (FileChannel input = FileChannel.open(segment, StandardOpenOption.READ)) {
+                    long size = input.size();
+                    for (long position = 0; position < size; ) {
+                        position += input.transferTo(position, size - position, output);
+                    }
+                }
+            }
+            output.force(false);
+        }
+        Files.move(inProgressPath, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    /*
+
+        delete_segments: this function removes the segments of the run once the output file holds them and the last
+        message of the run has been removed from the queue.
+
+    */
+    public void delete_segments() throws IOException {
+        segmentLog.delete();
+    }
+
+    // Note: the buffer of the entries is handed to the segment log as is rather than copied.
+    private void write_buffer() throws IOException {
+        segmentLog.write(buffer.array(), buffer.position());
+        buffer.clear();
+    }
+
+}
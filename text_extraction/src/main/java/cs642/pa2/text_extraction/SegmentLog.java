@@ -0,0 +1,283 @@
+package cs642.pa2.text_extraction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+
+    SegmentLog: the committed entries of a output sink, kept as numbered segment files in a directory next to the
+    output file until the run that wrote them has ended. Entries are appended to the open segment through a single
+    channel and are only forced to disk at a checkpoint, which then records the segment and the length that are on
+    disk in the checkpoint file. The messages of the entries are only removed from the queue once a checkpoint covers
+    them. A segment is closed at the first checkpoint after it has grown past 64MB and the next one is opened.
+
+    A run that crashed leaves its segments behind. The next run keeps the segments up to the last checkpoint, cut to
+    the length it recorded, and numbers its own segments after them. Anything written after the checkpoint held
+    entries whose messages were never removed, so it is dropped and the entries are written again once SQS delivers
+    the messages again.
+
+    Once the output file holds the segments and the stop message has been removed from the queue, the consumed marker
+    records the last segment of the run before the segments are deleted, so a run that crashed while deleting them
+    deletes the rest rather than adding them to its own output.
+
+*/
+final class SegmentLog {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CONSUMED_FILE = "consumed";
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final Path directory;
+    private final List<Path> segments = new ArrayList<Path>();
+    private final ByteBuffer checkpoint = ByteBuffer.allocate(4 + 8);
+    private int nextSegment;
+
+    // Note: the open segment, the number of bytes written to it and forced by the last checkpoint, and the channel of
+    // the checkpoint file, opened by the first write and the first checkpoint of the run.
+    private FileChannel channel;
+    private int channel_segment;
+    private long channel_bytes;
+    private long checkpoint_bytes;
+    private FileChannel checkpointChannel;
+
+    SegmentLog(String outputFile) throws IOException {
+
+        this.directory = Paths.get(outputFile + ".segments");
+        Files.createDirectories(directory);
+
+        delete_consumed();
+
+        int checkpoint_segment = -1;
+        long checkpoint_length = 0;
+        Path checkpoint_file = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint_file)) {
+            ByteBuffer recorded = ByteBuffer.wrap(Files.readAllBytes(checkpoint_file));
+            if (recorded.remaining() >= checkpoint.capacity()) {
+                checkpoint_segment = recorded.getInt();
+                checkpoint_length = recorded.getLong();
+            }
+        }
+
+        // Note: the segments after the last checkpoint, and the part of its segment past the recorded length, were
+        // never on disk as far as the queue knows, so they are dropped.
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.equals(CHECKPOINT_FILE)) {
+                    continue;
+                }
+                int segment = segment_number(name);
+                if (segment < 0 || segment > checkpoint_segment) {
+                    Files.delete(file);
+                    continue;
+                }
+                if (segment == checkpoint_segment) {
+                    try (FileChannel recovered = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        recovered.truncate(checkpoint_length);
+                        recovered.force(false);
+                    }
+                }
+                segments.add(file);
+                nextSegment = Math.max(nextSegment, segment + 1);
+            }
+        }
+        Collections.sort(segments);
+
+    }
+
+    /*
+
+        segments: this function returns the segments in the order they were written, those kept from a earlier run
+        first.
+
+    */
+    List<Path> segments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    /*
+
+        write: this function appends bytes to the open segment, opening the next segment when none is open. The bytes
+        are not forced to disk until the next checkpoint.
+
+    */
+    void write(byte[] bytes, int length) throws IOException {
+
+        if (length == 0) {
+            return;
+        }
+
+        if (channel == null) {
+            open_segment();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel_bytes += length;
+
+    }
+
+    /*
+
+        checkpoint: this function forces the open segment to disk and then records its number and length in the
+        checkpoint file, so everything written so far survives the machine stopping once it returns. A segment that
+        has grown past its size is closed, and the next write opens the next one.
+
+    */
+    void checkpoint() throws IOException {
+
+        if (channel == null || channel_bytes == checkpoint_bytes) {
+            return;
+        }
+
+        channel.force(false);
+
+        boolean created = checkpointChannel == null;
+        if (created) {
+            checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        // Note: the record is smaller than a disk sector, so it is written in place in a single step.
+        checkpoint.clear();
+        checkpoint.putInt(channel_segment).putLong(channel_bytes).flip();
+        while (checkpoint.hasRemaining()) {
+            checkpointChannel.write(checkpoint, checkpoint.position());
+        }
+        checkpointChannel.force(false);
+        checkpoint_bytes = channel_bytes;
+        if (created) {
+            force_directory();
+        }
+
+        if (channel_bytes >= SEGMENT_BYTES) {
+            close_segment();
+        }
+
+    }
+
+    /*
+
+        close: this function closes the open segment and the checkpoint file. Bytes written since the last checkpoint
+        are not forced.
+
+    */
+    void close() throws IOException {
+
+        close_segment();
+        if (checkpointChannel != null) {
+            checkpointChannel.close();
+            checkpointChannel = null;
+        }
+
+    }
+
+    /*
+
+        delete: this function removes every segment once the output file holds them and the run has ended. The last
+        segment of the run is recorded in the consumed marker first, so a run that crashed part way through deletes
+        the rest of them when it starts again.
+
+    */
+    void delete() throws IOException {
+
+        close();
+
+        Path consumed = directory.resolve(CONSUMED_FILE);
+        try (FileChannel marker = FileChannel.open(consumed, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer last_segment = ByteBuffer.allocate(4);
+            last_segment.putInt(nextSegment - 1).flip();
+            while (last_segment.hasRemaining()) {
+                marker.write(last_segment);
+            }
+            marker.force(false);
+        }
+        force_directory();
+
+        segments.clear();
+        delete_consumed();
+        Files.deleteIfExists(directory);
+
+    }
+
+    // Note: finishes a delete that was cut short, removing every segment up to the one in the consumed marker and the
+    // checkpoint that pointed into them.
+    private void delete_consumed() throws IOException {
+
+        Path consumed = directory.resolve(CONSUMED_FILE);
+        if (!Files.exists(consumed)) {
+            return;
+        }
+
+        ByteBuffer recorded = ByteBuffer.wrap(Files.readAllBytes(consumed));
+        int last_segment = recorded.remaining() >= 4 ? recorded.getInt() : Integer.MAX_VALUE;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                int segment = segment_number(file.getFileName().toString());
+                if (segment >= 0 && segment <= last_segment) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.deleteIfExists(directory.resolve(CHECKPOINT_FILE));
+        force_directory();
+        Files.delete(consumed);
+
+    }
+
+    private void open_segment() throws IOException {
+
+        Path segment = directory.resolve(String.format("%s%08d", SEGMENT_PREFIX, nextSegment));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel_segment = nextSegment;
+        channel_bytes = 0;
+        checkpoint_bytes = -1;
+        force_directory();
+
+        segments.add(segment);
+        nextSegment++;
+
+    }
+
+    private void close_segment() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // Note: the number of a segment file, or -1 for any other file, such as a temporary file of a earlier version.
+    private static int segment_number(String name) {
+
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    // Note: a new name is only durable once the directory is forced as well. Directories cannot be opened for writing
+    // on every platform, where the name is left to the file system.
+    private void force_directory() {
+        try (FileChannel directory_channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directory_channel.force(true);
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+}
@@ -1,41 +1,143 @@
 package cs642.pa2.text_extraction;
 
+import cs642.pa2.pipeline_common.AdaptiveLimiter;
+import cs642.pa2.pipeline_common.ImagePreprocessor;
+import cs642.pa2.pipeline_common.PipelineConfig;
+import cs642.pa2.pipeline_common.PipelineMetrics;
+import cs642.pa2.pipeline_common.RetryClassifier;
+import cs642.pa2.pipeline_common.StopMarker;
+
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
 import software.amazon.awssdk.services.rekognition.RekognitionClient;
 import software.amazon.awssdk.services.rekognition.model.*;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 public class TextExtraction {
+
+    // Metrics: these are the latencies and counts recorded by the application, written as snapshots to the file set
+    // by text_extraction.metrics_file. The per image lines of the log are only printed at the debug log level, set by
+    // text_extraction.log_level.
+    private static final PipelineMetrics.Histogram DETECT_TEXT = PipelineMetrics.histogram("rekognition.detectText");
+    private static final PipelineMetrics.Histogram OUTPUT_APPEND = PipelineMetrics.histogram("output.append");
+    private static final PipelineMetrics.Histogram OUTPUT_COMMIT = PipelineMetrics.histogram("output.commit");
+    private static final LongAdder DETECT_TEXT_ERRORS = PipelineMetrics.counter("rekognition.detectText.errors");
+    private static final LongAdder IMAGES_RECEIVED = PipelineMetrics.counter("images.received");
+    private static final LongAdder IMAGES_WRITTEN = PipelineMetrics.counter("images.written");
+    private static final boolean DEBUG_LOGGING = "debug".equalsIgnoreCase(DependencyFactory.config().string("log_level", "info"));
+
     private final S3Client s3Client;
     private final RekognitionClient rekognitionClient;
+    private final RekognitionAsyncClient rekognitionAsyncClient;
     private final SqsClient sqsClient;
+    private final SqsAsyncClient sqsAsyncClient;
+    private final MessageConsumer messageConsumer;
+    private final ImagePreprocessor imagePreprocessor;
     private final String bucketName;
     private final String queueURL;
     private final String outputFile;
+    private final String binaryOutputFile;
+    private final String indexFile;
+    private final int concurrency;
+    private final String metricsFile;
+    private final TextFormatter textFormatter;
+    private final AdaptiveLimiter rekognitionLimiter;
+    private OutputSink outputSink;
+    private BinaryOutputSink binaryOutputSink;
+    private TextIndex textIndex;
+
+    // Pipeline State: these are the images that are being processed by the worker pool, kept in the order they were
+    // dequeued, and the messages whose text has been written but not yet removed from the queue.
+    private final Deque<Message> pendingMessages = new ArrayDeque<Message>();
+    private final Deque<Future<List<TextDetection>>> pendingTexts = new ArrayDeque<Future<List<TextDetection>>>();
+    private final List<Message> completedMessages = new ArrayList<Message>();
+
+    // Note: the stop markers that have arrived, one for every shard of car recognition in every message group.
+    private final BitSet stoppedShards = new BitSet();
 
     public TextExtraction() {
+        this(DependencyFactory.config());
+    }
+
+    private TextExtraction(PipelineConfig config) {
+        this(DependencyFactory.s3Client(config), DependencyFactory.rekognitionClient(config), DependencyFactory.rekognitionAsyncClient(config), DependencyFactory.sqsClient(config), DependencyFactory.sqsAsyncClient(config), config);
+    }
+
+    public TextExtraction(S3Client s3Client, RekognitionClient rekognitionClient, RekognitionAsyncClient rekognitionAsyncClient, SqsClient sqsClient, SqsAsyncClient sqsAsyncClient) {
+        this(s3Client, rekognitionClient, rekognitionAsyncClient, sqsClient, sqsAsyncClient, DependencyFactory.config());
+    }
+
+    public TextExtraction(S3Client s3Client, RekognitionClient rekognitionClient, RekognitionAsyncClient rekognitionAsyncClient, SqsClient sqsClient, SqsAsyncClient sqsAsyncClient, PipelineConfig config) {
         /*
 
             Setting Application Variables: necessary parameters to do two of the following operations.
 
                 1. bucketName: this variable is used to set the bucket for which images are initially pulled from for
-                processing.
+                processing. It can be set by the text_extraction.bucket property.
 
                 2. queueURL: this variable is used to set the queue to read the processed images with people above the
-                90% threshold.
+                90% threshold. It can be set by the text_extraction.queue_url property, such as to the in memory queues
+                of a local run of the pipeline.
+
+                3. outputFile: this variable determines for where to write the found text for each image. It can be
+                set by the text_extraction.output property.
 
-                3. outputFile: this variable determines for where to write the found text for each image.
+                4. concurrency: this variable is used to set how many images have their text detected at once.
+
+                5. textFormatter: this variable is used to write the entry of each image, keeping the detections of
+                the type and confidence set by the text_extraction.detection_type and text_extraction.min_confidence
+                properties.
+
+                6. binaryOutputFile: this variable determines for where to write every detection of each image in the
+                binary format read by BinaryResultReader. It is set by the text_extraction.binary_output property, and
+                no binary output is written when the property is not set.
+
+                7. indexFile: this variable determines for where to save the inverted index of the words detected in
+                each image. It is set by the text_extraction.index property, and no index is built when the property
+                is not set. The index of a earlier run in the same file is merged with the index of this run.
+
+                8. window: this variable is used to set how many images may be in flight at once, twice the
+                concurrency, or in the async execution mode the text_extraction.async_concurrency property.
+
+                9. metricsFile: this variable is used to set the file that a snapshot of the metrics of the run is
+                appended to every text_extraction.metrics_interval seconds, and once more at the end of the run. No
+                metrics are written when the text_extraction.metrics_file property is not set.
+
+                10. rekognitionLimiter: this variable is used to bound the detect text requests in flight by a limit
+                that grows while Rekognition answers quickly and is cut when it throttles, and to retry throttled
+                requests with a backoff. It is shared by every worker, or by every request of the async execution
+                mode, and is tuned by the text_extraction.limiter.* and text_extraction.detection.* properties.
 
         */
-        bucketName = "cs442-unr";
-        queueURL = "https://sqs.us-west-2.amazonaws.com/608375520976/people_indexes.fifo";
-        outputFile = "output.txt";
+        // Note: each setting named by a text_extraction.* property below can also be set by its TEXT_EXTRACTION_*
+        // environment variable or in the file set by text_extraction.config_file, as read by the PipelineConfig.
+        bucketName = config.string("bucket", "cs442-unr");
+        queueURL = config.string("queue_url", "https://sqs.us-west-2.amazonaws.com/608375520976/people_indexes.fifo");
+        outputFile = config.string("output", "output.txt");
+        concurrency = DependencyFactory.concurrency(config);
+        textFormatter = TextFormatter.from_config(config);
+        binaryOutputFile = config.string("binary_output", "");
+        indexFile = config.string("index", "");
+        metricsFile = config.string("metrics_file", "");
+        PipelineMetrics.start_reporting(metricsFile, config.integer("metrics_interval", 10));
+        rekognitionLimiter = AdaptiveLimiter.from_config(config, "rekognition", rekognitionAsyncClient == null ? concurrency : DependencyFactory.asyncConcurrency(config));
 
         /*
 
@@ -51,72 +153,276 @@ public class TextExtraction {
                 3. sqsClient: this service is used to communicate to the car indexes queue when a image has been
                 processed with the required parameters.
 
-        */
-        s3Client = DependencyFactory.s3Client();
-        rekognitionClient = DependencyFactory.rekognitionClient();
-        sqsClient = DependencyFactory.sqsClient();
+                4. messageConsumer: this service is used to receive the people indexes queue in batches of up to 10
+                messages, prefetching the next batch while the current one is processed. Each receive long polls for
+                up to text_extraction.receive_wait_seconds, 20 unless configured.
+
+                In the async execution mode, set by the text_extraction.execution_mode property, rekognitionAsyncClient
+                and sqsAsyncClient are the non blocking clients used to detect text and to receive and delete messages
+                without blocking a thread on each request. Both are null in the default sync execution mode.
 
-        // Note: the function creates a file to store the text detected or if the file exists, clears the output file.
+                The clients are created by the DependencyFactory unless they are passed in, such as the in process
+                clients of a local run of the pipeline.
+
+                5. imagePreprocessor: this service is used in the "bytes" image mode, set by the
+                text_extraction.image_mode property, to fetch each image, scale it down or crop it to
+                text_extraction.max_dimension, and send it to Rekognition as bytes. In the default "s3" image mode it
+                is not created and Rekognition reads the images from the bucket itself.
+
+        */
+        this.s3Client = s3Client;
+        this.rekognitionClient = rekognitionClient;
+        this.rekognitionAsyncClient = rekognitionAsyncClient;
+        this.sqsClient = sqsClient;
+        this.sqsAsyncClient = sqsAsyncClient;
+        messageConsumer = new MessageConsumer(sqsClient, sqsAsyncClient, queueURL, config.integer("receive_wait_seconds", 20));
+        imagePreprocessor = ImagePreprocessor.create(s3Client, config.string("image_mode", "s3"), config.integer("max_dimension", 1920), config.string("resize", "scale"), concurrency);
+
+        // Note: the function opens the output sinks, keeping the results of a earlier run that crashed.
         initialize_file();
 
-        while (true) {
+        // Note: text detection runs on a pool of worker threads while this thread dequeues messages and writes the
+        // results in the order the messages were dequeued. In the async execution mode, the requests are sent
+        // through the non blocking client and the pool only prepares images in the bytes image mode.
+        ExecutorService detection_pool = Executors.newFixedThreadPool(concurrency);
+        int window = rekognitionAsyncClient == null ? concurrency * 2 : DependencyFactory.asyncConcurrency(config);
+
+        Message stop_message = null;
+        while (stop_message == null) {
+
+            // Note: a FIFO queue returns no more messages of a group while earlier messages of the group are in
+            // flight, so the batch being prefetched may be held back by the messages of the last batch. When it has
+            // not arrived yet, the work in flight is finished, committed and its messages removed from the queue
+            // before waiting on it, rather than waiting out the long poll.
+            if (!messageConsumer.ready()) {
+                complete_entries(0);
+                acknowledge_completed(true);
+            }
+
+            // Note: For each iteration, a batch of messages is dequeued from the people indexes queue. A long poll
+            // that returns no messages gives a empty batch, in which case all work in flight is finished before
+            // polling again so no result waits on the next poll.
+            List<Message> messages = messageConsumer.receive();
+            if (messages.isEmpty()) {
+                complete_entries(0);
+            }
 
-            // Note: For each iteration, the image name is saved for later use in the iteration by dequeing a message
-            // from the people indexes queue.
-            String image = dequeue_message();
+            for (Message message : messages) {
+
+                final String image = message.body();
+                if (DEBUG_LOGGING) {
+                    System.out.println("Dequeuing: " + image);
+                }
+
+                // Note: if the "-1" stop signal is detected, the loop stops to end execution of the application as
+                // the last message has arrived. When the bucket was split into shards or the messages were spread
+                // over several message groups, the loop only stops once the stop marker of every shard in every group
+                // has arrived, and any other marker is removed from the queue once the images before it have been
+                // written. The text is written in the order of each message group, not across groups.
+                StopMarker stop_marker = StopMarker.parse(image);
+                if (stop_marker != null && is_last_stop(stop_marker)) {
+                    System.out.println("Stop Detected - shutting down now");
+                    stop_message = message;
+                    break;
+                }
+                if (stop_marker != null) {
+                    System.out.println("Shard Stop Detected: " + image + " Markers: " + stoppedShards.cardinality());
+                    complete_entries(0);
+                    completedMessages.add(message);
+                    continue;
+                }
+
+                // Note: the text is detected on the worker pool and formatted on this thread as it is written. Once
+                // the window of images in flight is full, the oldest result is written before more work is added.
+                IMAGES_RECEIVED.increment();
+                pendingMessages.add(message);
+                if (rekognitionAsyncClient != null) {
+                    pendingTexts.add(read_detected_text_async(image, detection_pool));
+                } else {
+                    pendingTexts.add(detection_pool.submit(() -> read_detected_text(image)));
+                }
+                complete_entries(window - 1);
 
-            // Note: if the "-1" stop signal is detected, the function breaks the while-loop to stop execution of the
-            // application as the last message has arrived.
-            if (image.equals("-1")) {
-                System.out.println("Stop Detected - shutting down now");
-                break;
             }
 
-            // Note: the detected text is processed as one large concatenated string and then used with the helper function
-            // append_file() to append to the output file with the image name and text itself.
-            String detected_text = read_detected_text(image);
-            append_file(image, detected_text);
+            // Note: results that have already finished are written without waiting on the rest. The messages of
+            // the written results are removed from the queue once the output sink is due a commit, or right away
+            // after a empty poll, when there is no more work to share the commit with.
+            while (!pendingTexts.isEmpty() && pendingTexts.peek().isDone()) {
+                complete_entry();
+            }
+            acknowledge_completed(messages.isEmpty());
 
         }
 
+        // Note: the images still in flight when the stop signal arrived are finished and written before the stop
+        // message is removed from the queue and the pool is shut down.
+        complete_entries(0);
+        close_file();
+        completedMessages.add(stop_message);
+        acknowledge_completed(true);
+        delete_segments();
+        detection_pool.shutdown();
+
+        messageConsumer.close();
+        System.out.println(rekognitionLimiter.statistics());
+        PipelineMetrics.stop_reporting(metricsFile);
         s3Client.close();
         rekognitionClient.close();
         sqsClient.close();
+        if (rekognitionAsyncClient != null) {
+            rekognitionAsyncClient.close();
+        }
+        if (sqsAsyncClient != null) {
+            sqsAsyncClient.close();
+        }
 
     }
     public static void main(String[] args) {
         new TextExtraction();
     }
 
+    /*
+
+        is_last_stop: this function records the shard and message group of a stop marker, and checks if every shard has
+        now stopped in every group. The plain "-1" stop signal of a single producer is always the last.
+
+    */
+    private boolean is_last_stop(StopMarker stop_marker) {
+
+        if (stop_marker.isFinal()) {
+            return true;
+        }
+
+        stoppedShards.set(stop_marker.markerIndex());
+        return stoppedShards.cardinality() >= stop_marker.markerCount();
+    }
+
+    /*
+
+        complete_entries: this function writes results in dequeue order until no more than the passed in number of
+        images are still in flight.
+
+    */
+    private void complete_entries(int max_pending) {
+        while (pendingTexts.size() > max_pending) {
+            complete_entry();
+        }
+    }
+
+    /*
+
+        complete_entry: this function waits on the text of the oldest image in flight and uses the helper function
+        append_file() to append it to the output file. The message of the image is then kept to be removed from the
+        queue.
+
+    */
+    private void complete_entry() {
+
+        Message message = pendingMessages.poll();
+        Future<List<TextDetection>> detected_text = pendingTexts.poll();
+
+        try {
+            append_file(message.body(), detected_text.get());
+            IMAGES_WRITTEN.increment();
+            completedMessages.add(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while extracting: " + message.body(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed extracting: " + message.body(), e.getCause());
+        }
+
+    }
+
+    /*
+
+        acknowledge_completed: this function commits the written entries of the output sink and then removes their
+        messages from the queue, so a message is never removed before its text is on disk. Unless the commit is
+        forced, nothing is done until the sink is due a commit, so the entries of several receive batches are forced
+        to disk together and their messages removed after it.
+
+    */
+    private void acknowledge_completed(boolean force) {
+
+        if (completedMessages.isEmpty() || !force && !outputSink.commit_due()) {
+            return;
+        }
+
+        long committed = System.nanoTime();
+        try {
+            outputSink.commit();
+            if (binaryOutputSink != null) {
+                binaryOutputSink.commit();
+            }
+            OUTPUT_COMMIT.record_since(committed);
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+
+        messageConsumer.acknowledge(completedMessages);
+        completedMessages.clear();
+
+    }
+
     /*
 
         generate_image_text: this function is responsible for grabbing the text within a image and storing each string
         of text identified in a list.
 
-        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name.
+        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name, or
+        in the bytes image mode as the scaled down bytes of the image from the image preprocessor.
         From this, a Image object is created in which the returned S3Object is used to create the image object.
         This image object is then used to create a request object for text detection in which is executed by the detect
-        text function. This action results in a list of identified strings of text within the image. If not strings of
-        text are detected, the function returns null.
+        text function, once the Rekognition limiter has a place for it. This action results in a list of identified
+        strings of text within the image. If not strings of text are detected, the function returns null.
+
+        A throttled or transient failure is retried by the limiter, and once its attempts run out it is thrown, which
+        ends the run before the message of the image is removed from the queue, so the image is delivered again to
+        the next run. A permanent failure, such as a image that is not a supported format, would fail on every
+        delivery, so it is written as a image without text. A rejected request, such as access denied or expired
+        credentials, is thrown at once and ends the run in the same way, as it says nothing about the image.
 
     */
     private List<TextDetection> generate_image_text(String image_name) {
 
         try {
-            System.out.println("Extracting text: " + image_name);
-            S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+            if (DEBUG_LOGGING) {
+                System.out.println("Extracting text: " + image_name);
+            }
+            Image unextracted_image = imagePreprocessor == null ? null : imagePreprocessor.image(bucketName, image_name);
 
-            Image unextracted_image = Image.builder().s3Object(retrieved_image).build();
+            if (unextracted_image == null) {
+                S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+                unextracted_image = Image.builder().s3Object(retrieved_image).build();
+            }
 
             DetectTextRequest text_request = DetectTextRequest.builder().image(unextracted_image).build();
 
-            DetectTextResponse text_response = rekognitionClient.detectText(text_request);
+            DetectTextResponse text_response = rekognitionLimiter.call(() -> {
+                long requested = System.nanoTime();
+                try {
+                    return rekognitionClient.detectText(text_request);
+                } finally {
+                    DETECT_TEXT.record_since(requested);
+                }
+            });
 
             return text_response.textDetections();
 
         } catch (RekognitionException e) {
+            DETECT_TEXT_ERRORS.increment();
+            if (RetryClassifier.classify(e) != RetryClassifier.Classification.PERMANENT) {
+                throw e;
+            }
             System.err.println(e);
-            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while extracting: " + image_name, e);
         }
 
         return null;
@@ -124,84 +430,155 @@ public class TextExtraction {
 
     /*
 
-        read_detected_text: this function is responsible for reading the strings detected from a image and then creating
-        a single concatenated string from all the identified text strings.
+        read_detected_text: this function is responsible for reading the strings detected from a image.
 
-        Summary: The function takes in a image, then grabs the image as a S3Object using the passed in image name.
-        From this, a helper function generate_image_text() is used to create a list of detected text objects which then
-        are further processed by the function. If no strings are detected, then the function returns a empty string.
-        Otherwise, a empty string is created called concatenated_text in which the list storing each detected string
-        (image_text) is iterated upon. For each iterated piece of text, the text is appended to the concatenated_text
-        each iteration. Once fully iterated, the concatenated string is returned.
+        Summary: The function takes in a image and uses the helper function generate_image_text() to create a list of
+        detected text objects. If no strings are detected, then the function returns a empty list. The detections are
+        not joined here, as the worker threads only detect text and the single writing thread formats each entry
+        straight into the output sink with the text formatter.
 
     */
-    private String read_detected_text(String image_name) {
+    private List<TextDetection> read_detected_text(String image_name) {
         List<TextDetection> image_text = generate_image_text(image_name);
 
         if (image_text == null) {
-            return "";
+            return Collections.emptyList();
         }
 
-        String concatenated_text = "";
-        for (TextDetection text : image_text) {
-            concatenated_text = concatenated_text + " " + text.detectedText();
+        if (DEBUG_LOGGING) {
+            System.out.println("Detected Text - " + image_name + ": " + image_text.size() + " detections");
         }
-
-        System.out.println("Detected Text - " + image_name + ": " + concatenated_text);
-        return concatenated_text;
+        return image_text;
 
     }
 
     /*
 
-        dequeue_message: this function is responsible for dequeing an image name from the people indexes queue. The
-        function returns the string that is stored in the message body.
+        read_detected_text_async: this function reads the strings detected from a image without blocking a thread on
+        the request.
 
-        Summary: The function creates a request object to grab a message from the people indexes queue. The function
-        long polls the people indexes queue. Once the message response is returned, the message body of the response
-        is then saved to be returned. Before returning the string, the function deletes the message from the people
-        indexes queue using delete_message() to single process a message.
+        Summary: The function follows generate_image_text() and read_detected_text() as a chain of stages. The image
+        is prepared on the passed in pool in the bytes image mode or referenced as a S3Object, and the detect text
+        request is sent through the non blocking Rekognition client once the Rekognition limiter has a place for it.
+        The detections are returned, or a empty list when no strings are detected, and a failed request is handled as
+        in generate_image_text().
 
     */
-    private String dequeue_message() {
-        ReceiveMessageRequest message_request = ReceiveMessageRequest.builder().queueUrl(queueURL).waitTimeSeconds(20).build();
+    private CompletableFuture<List<TextDetection>> read_detected_text_async(String image_name, ExecutorService preprocess_pool) {
 
-        Message message_object = sqsClient.receiveMessage(message_request).messages().get(0);
-        String message = message_object.body();
-        System.out.println("Dequeuing: " + message);
+        if (DEBUG_LOGGING) {
+            System.out.println("Extracting text: " + image_name);
+        }
 
-        delete_message(message_object);
-        return message;
+        CompletableFuture<Image> unextracted_image;
+        if (imagePreprocessor == null) {
+            unextracted_image = CompletableFuture.completedFuture(null);
+        } else {
+            unextracted_image = CompletableFuture.supplyAsync(() -> imagePreprocessor.image(bucketName, image_name), preprocess_pool);
+        }
 
-    }
+        return unextracted_image.thenCompose(image -> {
+            if (image == null) {
+                S3Object retrieved_image = S3Object.builder().bucket(bucketName).name(image_name).build();
+                image = Image.builder().s3Object(retrieved_image).build();
+            }
+            DetectTextRequest text_request = DetectTextRequest.builder().image(image).build();
+            return rekognitionLimiter.call_async(() -> {
+                long requested = System.nanoTime();
+                return rekognitionAsyncClient.detectText(text_request).whenComplete((text_response, failure) -> DETECT_TEXT.record_since(requested));
+            });
+        }).handle((text_response, failure) -> {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof RekognitionException) {
+                DETECT_TEXT_ERRORS.increment();
+            }
+            if (cause instanceof RekognitionException && RetryClassifier.classify((RekognitionException) cause) == RetryClassifier.Classification.PERMANENT) {
+                System.err.println(cause);
+                return Collections.<TextDetection>emptyList();
+            }
+            if (cause != null) {
+                throw new CompletionException(cause);
+            }
 
-    private void delete_message(Message message) {
-        DeleteMessageRequest delete_request = DeleteMessageRequest.builder().queueUrl(queueURL).receiptHandle(message.receiptHandle()).build();
+            List<TextDetection> image_text = text_response.textDetections();
+            if (DEBUG_LOGGING) {
+                System.out.println("Detected Text - " + image_name + ": " + image_text.size() + " detections");
+            }
+            return image_text;
+        });
 
-        sqsClient.deleteMessage(delete_request);
     }
 
     /*
 
-        initialize_file: this function is used  for creating the output file to store the identified images results
+        initialize_file: this function is used  for opening the output sinks that store the identified images results
         at the end of the data pipeline.
 
-        Summary: The function first checks if the output file already exists, in the event the file does exist it will
-        be deleted. This is to remove previous results of the data pipeline. If the file does not exist, then the
-        output file is created for use of appending results to the file. 
+        Summary: The output sink is opened once for the whole run. The sink appends the entries to segments on disk
+        through a single channel until the run has ended and only replaces the output file, and with it the results of
+        the previous run, once the stop signal has been processed, so a crashed run never leaves a partial output file
+        behind. When a earlier run crashed, its segments up to the last commit hold the results whose messages were
+        already removed from the queue, so they are kept and this run adds its results after them. When a binary output
+        file is set, a binary output sink is opened next to it in the same way, and when a index file is set a empty
+        text index is created to be filled as entries are added, starting with the entries kept from a crashed run.
 
     */
     private void initialize_file() {
-        File file = new File(outputFile);
 
-        if (file.exists()) {
-            System.out.println("Deleting Output File: " + outputFile);
-            file.delete();
+        try {
+            System.out.println("Opening Output File: " + outputFile);
+            outputSink = new OutputSink(outputFile, 64, 1000);
+
+            if (!binaryOutputFile.isEmpty()) {
+                System.out.println("Opening Binary Output File: " + binaryOutputFile);
+                binaryOutputSink = new BinaryOutputSink(binaryOutputFile);
+            }
+
+            if (!indexFile.isEmpty()) {
+                textIndex = new TextIndex();
+            }
+
+            int recovered_entries = outputSink.recovered(entry -> {
+                if (textIndex != null) {
+                    int separator = entry.indexOf('\t');
+                    textIndex.add(separator < 0 ? entry : entry.substring(0, separator), separator < 0 ? "" : entry.substring(separator + 1));
+                }
+            });
+            if (recovered_entries > 0) {
+                System.out.println("Recovered Output Entries: " + recovered_entries);
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
         }
 
+    }
+
+    /*
+
+        append_file: this function adds a entry for a image and its text to the output sink. The entry is formatted
+        into the reused buffer of the text formatter, then buffered by the sink and committed together with other
+        entries rather than reopening the output file for each entry. The words of the entry are also added to the
+        text index when one is built.
+
+    */
+    private void append_file(String index_image, List<TextDetection> detected_text) {
+
+        CharSequence index_entry = textFormatter.format(index_image, detected_text);
+
+        long appended = System.nanoTime();
         try {
-            System.out.println("Creating Output File: " + outputFile);
-            file.createNewFile();
+            if (DEBUG_LOGGING) {
+                System.out.println("Adding Entry to Output File: " + index_image);
+            }
+            outputSink.append(index_entry);
+            if (binaryOutputSink != null) {
+                binaryOutputSink.append(index_image, detected_text);
+            }
+            if (textIndex != null) {
+                textIndex.add(index_image, detected_text);
+            }
+            OUTPUT_APPEND.record_since(appended);
         } catch (IOException e) {
             System.err.println(e);
             System.exit(1);
@@ -209,35 +586,68 @@ public class TextExtraction {
 
     }
 
-    private void append_file(String index_image, String detected_text) {
+    /*
 
-        String index_entry = index_image + "\t" + detected_text;
+        close_file: this function commits the last entries of the output sink and moves the completed results into
+        the output file.
 
-        FileWriter file_writer = null;
-        BufferedWriter buffered_writer = null;
-        PrintWriter print_writer = null;
+    */
+    private void close_file() {
 
         try {
+            System.out.println("Closing Output File: " + outputFile);
+            outputSink.close();
+            if (binaryOutputSink != null) {
+                System.out.println("Closing Binary Output File: " + binaryOutputFile);
+                binaryOutputSink.close();
+            }
+            if (textIndex != null) {
+                save_index();
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
 
-            file_writer = new FileWriter(outputFile, true);
-            buffered_writer = new BufferedWriter(file_writer);
-            print_writer = new PrintWriter(buffered_writer);
+    }
 
-            System.out.println("Adding Entry to Output File: " + index_entry);
-            print_writer.println(index_entry);
+    /*
 
-            print_writer.flush();
-            file_writer.close();
-            buffered_writer.close();
-            print_writer.close();
+        delete_segments: this function removes the segments of the output sinks once the stop message has been removed
+        from the queue, as until then a restarted run receives the stop message again and writes the output again.
 
-        } catch (IOException e) {
+    */
+    private void delete_segments() {
 
+        try {
+            outputSink.delete_segments();
+            if (binaryOutputSink != null) {
+                binaryOutputSink.delete_segments();
+            }
+        } catch (IOException e) {
             System.err.println(e);
             System.exit(1);
+        }
 
+    }
+
+    /*
+
+        save_index: this function saves the text index of this run. When the index file already holds the index of
+        a earlier run, this run is merged after it, so images found again in this run replace their earlier entries.
+
+    */
+    private void save_index() throws IOException {
+
+        TextIndex saved_index = textIndex;
+        if (new File(indexFile).exists()) {
+            saved_index = TextIndex.read(indexFile);
+            saved_index.merge(textIndex);
         }
 
+        System.out.println("Saving Text Index: " + indexFile + " Images: " + saved_index.imageCount() + " Terms: " + saved_index.termCount());
+        saved_index.write(indexFile);
+
     }
 
 }
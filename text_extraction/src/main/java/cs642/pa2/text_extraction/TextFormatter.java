@@ -0,0 +1,89 @@
+package cs642.pa2.text_extraction;
+
+import cs642.pa2.pipeline_common.PipelineConfig;
+
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+import software.amazon.awssdk.services.rekognition.model.TextTypes;
+
+import java.util.List;
+
+/*
+
+    TextFormatter: writes the entry of a image, its name followed by a tab and the text detected within it, into a
+    buffer that is reused for every image. Each kept detection is appended after a single space, so the default entry
+    matches the one written by earlier versions of text extraction. Detections can be limited to LINE or WORD
+    detections, as Rekognition returns both for the same text, and to a least confidence.
+
+    The buffer is cleared rather than replaced between images and handed to the output sink as is, which encodes it
+    straight into its own byte buffer, so no String is built for the entry and the cost of a image grows with its text
+    rather than with its text squared.
+
+*/
+public class TextFormatter {
+
+    // Note: the detections of a image that are written, ALL keeps the LINE and the WORD detections as before.
+    public enum DetectionFilter {
+        ALL, LINE, WORD
+    }
+
+    private final DetectionFilter detectionFilter;
+    private final float minConfidence;
+    private final StringBuilder entry = new StringBuilder(1024);
+
+    public TextFormatter(DetectionFilter detectionFilter, float minConfidence) {
+        this.detectionFilter = detectionFilter;
+        this.minConfidence = minConfidence;
+    }
+
+    /*
+
+        from_config: this function creates a formatter from the text_extraction.detection_type setting, one of ALL,
+        LINE or WORD, and the text_extraction.min_confidence setting.
+
+    */
+    public static TextFormatter from_config(PipelineConfig config) {
+        DetectionFilter detection_filter = config.choice("detection_type", DetectionFilter.class, DetectionFilter.ALL);
+        float min_confidence = (float) config.decimal("min_confidence", 0);
+        return new TextFormatter(detection_filter, min_confidence);
+    }
+
+    /*
+
+        format: this function clears the buffer and writes the entry of a image into it. The returned buffer is only
+        valid until the next call, and must be used from a single thread.
+
+    */
+    public CharSequence format(String image_name, List<TextDetection> image_text) {
+
+        entry.setLength(0);
+        entry.append(image_name).append('\t');
+
+        if (image_text == null) {
+            return entry;
+        }
+
+        for (int index = 0; index < image_text.size(); index++) {
+            TextDetection text = image_text.get(index);
+            if (is_kept(text)) {
+                entry.append(' ').append(text.detectedText());
+            }
+        }
+
+        return entry;
+    }
+
+    private boolean is_kept(TextDetection text) {
+
+        if (detectionFilter == DetectionFilter.LINE && text.type() != TextTypes.LINE) {
+            return false;
+        }
+        if (detectionFilter == DetectionFilter.WORD && text.type() != TextTypes.WORD) {
+            return false;
+        }
+
+        // Note: a confidence that was not returned only fails the check when a least confidence is set.
+        Float confidence = text.confidence();
+        return minConfidence <= 0.0F || (confidence != null && confidence >= minConfidence);
+    }
+
+}
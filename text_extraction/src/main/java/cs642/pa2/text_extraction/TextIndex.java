@@ -0,0 +1,514 @@
+package cs642.pa2.text_extraction;
+
+import software.amazon.awssdk.services.rekognition.model.TextDetection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+
+    TextIndex: a inverted index from the words detected in images to the images they were detected in, built as
+    entries are written so a run can be searched without reading the output file.
+
+    Every image is given the next id as it is added, so the ids in a posting list only ever grow. Each posting list
+    is kept as the gaps between its ids written as variable length integers in a byte array, which takes a single byte
+    for most gaps and never boxes a id. Words are normalised to lower case letters and digits, with anything else
+    splitting words.
+
+    A index is saved as a segment file and can be merged with the segment of a earlier run. A image that is added
+    again, in the same run or a later one, replaces its earlier entry, which is marked as deleted and left out of the
+    results of every query.
+
+*/
+public class TextIndex {
+
+    private static final int FILE_MAGIC = 0x54584931;
+
+    private final List<String> imageKeys = new ArrayList<String>();
+    private final Map<String, Integer> imageIds = new HashMap<String, Integer>();
+    private final BitSet deletedImages = new BitSet();
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+    // Note: the terms in sorted order for prefix queries, built when first needed after a new term is added.
+    private String[] sortedTerms;
+
+    private final StringBuilder token = new StringBuilder(32);
+
+    /*
+
+        add: this function gives a image the next id and adds it to the posting list of every word detected in it.
+
+    */
+    public void add(String image_key, List<TextDetection> image_text) {
+
+        int image_id = new_image(image_key);
+
+        if (image_text == null) {
+            return;
+        }
+
+        for (int index = 0; index < image_text.size(); index++) {
+            String text = image_text.get(index).detectedText();
+            if (text != null) {
+                add_tokens(text, image_id);
+            }
+        }
+
+    }
+
+    public void add(String image_key, CharSequence text) {
+        add_tokens(text, new_image(image_key));
+    }
+
+    /*
+
+        term: this function returns the ids of the images a word was detected in, in increasing order.
+
+    */
+    public int[] term(String term) {
+        Postings term_postings = postings.get(normalise(term));
+        return term_postings == null ? new int[0] : term_postings.decode(deletedImages);
+    }
+
+    /*
+
+        and: this function returns the ids of the images every word was detected in. The posting lists are
+        intersected from the shortest one up, so the work is bounded by the rarest word.
+
+    */
+    public int[] and(String... terms) {
+
+        if (terms.length == 0) {
+            return new int[0];
+        }
+
+        int[][] lists = new int[terms.length][];
+        for (int index = 0; index < terms.length; index++) {
+            lists[index] = term(terms[index]);
+        }
+        Arrays.sort(lists, (first, second) -> Integer.compare(first.length, second.length));
+
+        int[] result = lists[0];
+        for (int index = 1; index < lists.length && result.length > 0; index++) {
+            result = intersect(result, lists[index]);
+        }
+        return result;
+    }
+
+    /*
+
+        or: this function returns the ids of the images any of the words was detected in.
+
+    */
+    public int[] or(String... terms) {
+
+        int[] result = new int[0];
+        for (String term : terms) {
+            result = union(result, term(term));
+        }
+        return result;
+    }
+
+    /*
+
+        prefix: this function returns the ids of the images any word starting with the prefix was detected in. The
+        matching words are found by a binary search over the sorted terms.
+
+    */
+    public int[] prefix(String prefix) {
+
+        String normalised_prefix = normalise(prefix);
+        String[] terms = sorted_terms();
+
+        int start = Arrays.binarySearch(terms, normalised_prefix);
+        if (start < 0) {
+            start = -start - 1;
+        }
+
+        int[] result = new int[0];
+        for (int index = start; index < terms.length && terms[index].startsWith(normalised_prefix); index++) {
+            result = union(result, postings.get(terms[index]).decode(deletedImages));
+        }
+        return result;
+    }
+
+    public String image(int image_id) {
+        return imageKeys.get(image_id);
+    }
+
+    public List<String> images(int[] image_ids) {
+        List<String> images = new ArrayList<String>(image_ids.length);
+        for (int image_id : image_ids) {
+            images.add(imageKeys.get(image_id));
+        }
+        return images;
+    }
+
+    public int imageCount() {
+        return imageKeys.size() - deletedImages.cardinality();
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    /*
+
+        merge: this function adds every image of another index after the images of this one. As the ids of the other
+        index are all moved past the last id of this index, each of its posting lists stays in order and is copied
+        as it is, with only the first gap written again.
+
+    */
+    public void merge(TextIndex other) {
+
+        int id_offset = imageKeys.size();
+
+        for (int image_id = 0; image_id < other.imageKeys.size(); image_id++) {
+            new_image(other.imageKeys.get(image_id));
+            if (other.deletedImages.get(image_id)) {
+                deletedImages.set(id_offset + image_id);
+            }
+        }
+
+        for (Map.Entry<String, Postings> other_postings : other.postings.entrySet()) {
+            Postings term_postings = postings.get(other_postings.getKey());
+            if (term_postings == null) {
+                term_postings = new Postings();
+                postings.put(other_postings.getKey(), term_postings);
+                sortedTerms = null;
+            }
+            term_postings.append(other_postings.getValue(), id_offset);
+        }
+
+    }
+
+    /*
+
+        write: this function saves the index as a segment file. The segment is written to a in progress file that
+        is renamed over the segment file once complete.
+
+    */
+    public void write(String index_file) throws IOException {
+
+        Path index_path = Paths.get(index_file);
+        Path in_progress_path = Paths.get(index_file + ".inprogress");
+
+        try (FileOutputStream file = new FileOutputStream(in_progress_path.toFile());
+             DataOutputStream segment = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+
+            segment.writeInt(FILE_MAGIC);
+
+            segment.writeInt(imageKeys.size());
+            for (String image_key : imageKeys) {
+                segment.writeUTF(image_key);
+            }
+
+            long[] deleted = deletedImages.toLongArray();
+            segment.writeInt(deleted.length);
+            for (long word : deleted) {
+                segment.writeLong(word);
+            }
+
+            segment.writeInt(postings.size());
+            for (Map.Entry<String, Postings> term_postings : postings.entrySet()) {
+                segment.writeUTF(term_postings.getKey());
+                term_postings.getValue().write(segment);
+            }
+
+            segment.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(in_progress_path, index_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+    /*
+
+        read: this function loads a index from a segment file saved by write().
+
+    */
+    public static TextIndex read(String index_file) throws IOException {
+
+        TextIndex index = new TextIndex();
+
+        try (DataInputStream segment = new DataInputStream(new BufferedInputStream(new FileInputStream(index_file), 64 * 1024))) {
+
+            if (segment.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a text index file: " + index_file);
+            }
+
+            int image_count = segment.readInt();
+            for (int image_id = 0; image_id < image_count; image_id++) {
+                String image_key = segment.readUTF();
+                index.imageKeys.add(image_key);
+                index.imageIds.put(image_key, image_id);
+            }
+
+            long[] deleted = new long[segment.readInt()];
+            for (int word = 0; word < deleted.length; word++) {
+                deleted[word] = segment.readLong();
+            }
+            index.deletedImages.or(BitSet.valueOf(deleted));
+
+            int term_count = segment.readInt();
+            for (int term = 0; term < term_count; term++) {
+                index.postings.put(segment.readUTF(), Postings.read(segment));
+            }
+        }
+
+        return index;
+    }
+
+    /*
+
+        new_image: this function gives a image key the next id, marking the earlier id of the same key as deleted.
+
+    */
+    private int new_image(String image_key) {
+
+        int image_id = imageKeys.size();
+        imageKeys.add(image_key);
+
+        Integer earlier_id = imageIds.put(image_key, image_id);
+        if (earlier_id != null) {
+            deletedImages.set(earlier_id);
+        }
+
+        return image_id;
+    }
+
+    private void add_tokens(CharSequence text, int image_id) {
+
+        token.setLength(0);
+        for (int index = 0; index <= text.length(); index++) {
+            char character = index < text.length() ? text.charAt(index) : ' ';
+            if (Character.isLetterOrDigit(character)) {
+                token.append(Character.toLowerCase(character));
+            } else if (token.length() > 0) {
+                add_token(token.toString(), image_id);
+                token.setLength(0);
+            }
+        }
+
+    }
+
+    private void add_token(String term, int image_id) {
+
+        Postings term_postings = postings.get(term);
+        if (term_postings == null) {
+            term_postings = new Postings();
+            postings.put(term, term_postings);
+            sortedTerms = null;
+        }
+        term_postings.add(image_id);
+
+    }
+
+    private String[] sorted_terms() {
+        if (sortedTerms == null) {
+            sortedTerms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(sortedTerms);
+        }
+        return sortedTerms;
+    }
+
+    private static String normalise(String term) {
+
+        StringBuilder normalised = new StringBuilder(term.length());
+        for (int index = 0; index < term.length(); index++) {
+            char character = term.charAt(index);
+            if (Character.isLetterOrDigit(character)) {
+                normalised.append(Character.toLowerCase(character));
+            }
+        }
+        return normalised.toString();
+    }
+
+    private static int[] intersect(int[] first, int[] second) {
+
+        int[] result = new int[Math.min(first.length, second.length)];
+        int count = 0;
+        int first_index = 0;
+        int second_index = 0;
+
+        while (first_index < first.length && second_index < second.length) {
+            if (first[first_index] < second[second_index]) {
+                first_index++;
+            } else if (first[first_index] > second[second_index]) {
+                second_index++;
+            } else {
+                result[count++] = first[first_index];
+                first_index++;
+                second_index++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int[] union(int[] first, int[] second) {
+
+        if (first.length == 0) {
+            return second;
+        }
+        if (second.length == 0) {
+            return first;
+        }
+
+        int[] result = new int[first.length + second.length];
+        int count = 0;
+        int first_index = 0;
+        int second_index = 0;
+
+        while (first_index < first.length || second_index < second.length) {
+            if (second_index == second.length || (first_index < first.length && first[first_index] < second[second_index])) {
+                result[count++] = first[first_index++];
+            } else if (first_index == first.length || first[first_index] > second[second_index]) {
+                result[count++] = second[second_index++];
+            } else {
+                result[count++] = first[first_index];
+                first_index++;
+                second_index++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /*
+
+        Postings: the ids of the images a single word was detected in, kept as the gaps between the ids written as
+        variable length integers, seven bits to a byte with the high bit set on every byte but the last.
+
+    */
+    private static class Postings {
+
+        private byte[] gaps = new byte[4];
+        private int length;
+        private int count;
+        private int lastId = -1;
+
+        void add(int image_id) {
+
+            // Note: a word that comes up more than once in a image is only added once.
+            if (image_id == lastId) {
+                return;
+            }
+
+            write_gap(lastId < 0 ? image_id : image_id - lastId);
+            lastId = image_id;
+            count++;
+        }
+
+        /*
+
+            append: this function adds the ids of another posting list moved up by a offset. Only the first gap is
+            written again, as the gaps between the other ids do not change.
+
+        */
+        void append(Postings other, int id_offset) {
+
+            if (other.count == 0) {
+                return;
+            }
+
+            int position = 0;
+            int first_id = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte value = other.gaps[position++];
+                first_id |= (value & 0x7F) << shift;
+                if (value >= 0) {
+                    break;
+                }
+            }
+
+            int moved_first_id = first_id + id_offset;
+            write_gap(lastId < 0 ? moved_first_id : moved_first_id - lastId);
+
+            int remaining = other.length - position;
+            ensure_capacity(remaining);
+            System.arraycopy(other.gaps, position, gaps, length, remaining);
+            length += remaining;
+
+            count += other.count;
+            lastId = other.lastId + id_offset;
+        }
+
+        int[] decode(BitSet deleted_images) {
+
+            int[] image_ids = new int[count];
+            int found = 0;
+            int image_id = 0;
+            int position = 0;
+
+            for (int index = 0; index < count; index++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte value = gaps[position++];
+                    gap |= (value & 0x7F) << shift;
+                    if (value >= 0) {
+                        break;
+                    }
+                }
+
+                image_id = index == 0 ? gap : image_id + gap;
+                if (!deleted_images.get(image_id)) {
+                    image_ids[found++] = image_id;
+                }
+            }
+
+            return found == count ? image_ids : Arrays.copyOf(image_ids, found);
+        }
+
+        void write(DataOutputStream segment) throws IOException {
+            segment.writeInt(count);
+            segment.writeInt(lastId);
+            segment.writeInt(length);
+            segment.write(gaps, 0, length);
+        }
+
+        static Postings read(DataInputStream segment) throws IOException {
+            Postings postings = new Postings();
+            postings.count = segment.readInt();
+            postings.lastId = segment.readInt();
+            postings.length = segment.readInt();
+            postings.gaps = new byte[Math.max(4, postings.length)];
+            segment.readFully(postings.gaps, 0, postings.length);
+            return postings;
+        }
+
+        private void write_gap(int gap) {
+
+            ensure_capacity(5);
+            while ((gap & ~0x7F) != 0) {
+                gaps[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            gaps[length++] = (byte) gap;
+        }
+
+        private void ensure_capacity(int extra) {
+            if (length + extra > gaps.length) {
+                gaps = Arrays.copyOf(gaps, Math.max(gaps.length * 2, length + extra));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package cs642.pa2.text_extraction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+
+    OutputSinkTest: checks that the output file holds every committed entry as UTF-8 once the sink is closed, and that
+    a run started after a crash keeps the entries up to the last commit, drops the ones written after it, and does not
+    add the segments of a run that had already ended.
+
+*/
+class OutputSinkTest {
+
+    // Note: commit thresholds that are never reached, so the entries are only committed when a test asks.
+    private static final int NO_COMMIT_ENTRIES = Integer.MAX_VALUE;
+    private static final long NO_COMMIT_MILLIS = Long.MAX_VALUE;
+
+    private Path directory;
+    private String outputFile;
+
+    @BeforeEach
+    void create_directory() throws IOException {
+        directory = Files.createTempDirectory("output-sink-test");
+        outputFile = directory.resolve("output.txt").toString();
+    }
+
+    @AfterEach
+    void delete_directory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void closed_sink_writes_every_entry() throws IOException {
+
+        OutputSink output_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        output_sink.append("a.jpg:one");
+        output_sink.commit();
+        output_sink.append("b.jpg:two");
+        output_sink.close();
+        output_sink.delete_segments();
+
+        assertEquals(Arrays.asList("a.jpg:one", "b.jpg:two"), output());
+        assertFalse(Files.exists(directory.resolve("output.txt.segments")));
+    }
+
+    @Test
+    void entries_are_written_as_utf8() throws IOException {
+
+        // Note: a entry of multi byte characters longer than the buffer of the sink, so characters are split across
+        // the writes of the buffer.
+        StringBuilder long_entry = new StringBuilder("c.jpg\t");
+        for (int index = 0; index < 30000; index++) {
+            long_entry.append("\u00e9\u65e5\ud83d\ude97");
+        }
+
+        OutputSink output_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        output_sink.append(new StringBuilder("a.jpg\tCaf\u00e9 \u65e5\u672c"));
+        output_sink.append(long_entry);
+        output_sink.append("b.jpg\t");
+        output_sink.close();
+        output_sink.delete_segments();
+
+        assertEquals(Arrays.asList("a.jpg\tCaf\u00e9 \u65e5\u672c", long_entry.toString(), "b.jpg\t"), output());
+    }
+
+    @Test
+    void commit_is_due_after_enough_entries() throws IOException {
+
+        OutputSink output_sink = new OutputSink(outputFile, 2, NO_COMMIT_MILLIS);
+        assertTrue(output_sink.commit_due());
+        output_sink.append("a.jpg:one");
+        assertFalse(output_sink.commit_due());
+        output_sink.append("b.jpg:two");
+        assertTrue(output_sink.commit_due());
+        output_sink.commit();
+        output_sink.close();
+        output_sink.delete_segments();
+    }
+
+    @Test
+    void entries_after_the_last_commit_are_dropped_after_a_crash() throws IOException {
+
+        // Note: a entry larger than the buffer of the sink, so it reaches the segment without being committed.
+        char[] large = new char[128 * 1024];
+        Arrays.fill(large, 'x');
+
+        OutputSink crashed_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        crashed_sink.append("a.jpg:one");
+        crashed_sink.append("b.jpg:two");
+        crashed_sink.commit();
+        crashed_sink.append("c.jpg:" + new String(large));
+
+        OutputSink output_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        List<String> recovered = new ArrayList<String>();
+        assertEquals(2, output_sink.recovered(recovered::add));
+        assertEquals(Arrays.asList("a.jpg:one", "b.jpg:two"), recovered);
+
+        output_sink.append("c.jpg:three");
+        output_sink.close();
+        output_sink.delete_segments();
+
+        assertEquals(Arrays.asList("a.jpg:one", "b.jpg:two", "c.jpg:three"), output());
+    }
+
+    @Test
+    void segments_of_a_ended_run_are_not_added_again() throws IOException {
+
+        OutputSink ended_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        ended_sink.append("a.jpg:one");
+        ended_sink.close();
+
+        // Note: a crash after the consumed marker of the first segment was written, but before it was deleted.
+        Files.write(directory.resolve("output.txt.segments").resolve("consumed"), ByteBuffer.allocate(4).putInt(0).array());
+
+        OutputSink output_sink = new OutputSink(outputFile, NO_COMMIT_ENTRIES, NO_COMMIT_MILLIS);
+        assertEquals(0, output_sink.recovered(entry -> { }));
+        output_sink.append("b.jpg:two");
+        output_sink.close();
+        output_sink.delete_segments();
+
+        assertEquals(Collections.singletonList("b.jpg:two"), output());
+    }
+
+    private List<String> output() throws IOException {
+        return Files.readAllLines(directory.resolve("output.txt"), StandardCharsets.UTF_8);
+    }
+
+}